@@ -29,8 +29,8 @@ import de.mpicbg.ulman.ctc.workers.DEN;
 import de.mpicbg.ulman.ctc.workers.CHA;
 import de.mpicbg.ulman.ctc.workers.OVE;
 import de.mpicbg.ulman.ctc.workers.MIT;
-/*
 import de.mpicbg.ulman.ctc.workers.SHA;
+/*
 import de.mpicbg.ulman.ctc.workers.SYN;
 import de.mpicbg.ulman.ctc.workers.ENTLEAV;
 */
@@ -85,6 +85,11 @@ public class plugin_CTCmeasuresDS implements Command
 	private final String pathFooterB
 		= "http://www.celltrackingchallenge.net/submission-of-results.html";
 
+	@Parameter(label = "Keep pre-calculated data for next runs:",
+		description = "Stores the per-cell statistics into the annotations folder (into file ctc_ds_measures_cache.bin) "
+			+ "and reuses them in the next runs on the same (unchanged) data instead of reading all the images again.")
+	private boolean doPersistentCaching = false;
+
 
 	@Parameter(visibility = ItemVisibility.MESSAGE, persist = false, required = false,
 		label = "Select measures to calculate:")
@@ -110,10 +115,8 @@ public class plugin_CTCmeasuresDS implements Command
 		description = "Evaluates the average resolution, measured as the average size of the cells in number of pixels (2D) or voxels (3D).")
 	private boolean calcRes = true;
 
-	/*
 	@Parameter(label = "Sha",
 		description = "Evaluates the average regularity of the cell shape, normalized between 0 (completely irregular) and 1 (perfectly regular).")
-	*/
 	private boolean calcSha = false;
 
 	@Parameter(label = "Den",
@@ -219,13 +222,24 @@ public class plugin_CTCmeasuresDS implements Command
 		//reference on a shared object that does
 		//pre-fetching of data and some common pre-calculation
 		//
-		//create an "empty" object and tell it what features we wanna calculate,
+		//create an "empty" object and tell it what features we wanna calculate
+		//(the union of what the selected measures need, MIT needs none of them),
 		//the first measure to be calculated will recognize that this object does not fit
 		//and will make a new one that fits and will retain the flags of demanded features
+		final ImgQualityDataCache.Features demand = new ImgQualityDataCache.Features();
+		if (calcSNR)  new SNR(log).setRequiredFeatures(demand);
+		if (calcCR)   new CR(log).setRequiredFeatures(demand);
+		if (calcHeti) new HETI(log).setRequiredFeatures(demand);
+		if (calcHetb) new HETB(log).setRequiredFeatures(demand);
+		if (calcRes)  new RES(log).setRequiredFeatures(demand);
+		if (calcSha)  new SHA(log).setRequiredFeatures(demand);
+		if (calcDen)  new DEN(log).setRequiredFeatures(demand);
+		if (calcCha)  new CHA(log).setRequiredFeatures(demand);
+		if (calcOve)  new OVE(log).setRequiredFeatures(demand);
 		ImgQualityDataCache cache = new ImgQualityDataCache(log);
-		if (calcDen) cache.doDensityPrecalculation = true;
-		if (calcSha) cache.doShapePrecalculation = true;
+		cache.demandFeatures(demand);
 		cache.noOfDigits = noOfDigits;
+		cache.doPersistentCaching = doPersistentCaching;
 
 		//do the calculation and retrieve updated cache afterwards
 		if (calcSNR)
@@ -303,7 +317,6 @@ public class plugin_CTCmeasuresDS implements Command
 			}
 		}
 
-		/*
 		if (calcSha)
 		{
 			try {
@@ -318,7 +331,6 @@ public class plugin_CTCmeasuresDS implements Command
 				log.error("CTC Sha measure error: "+e.getMessage());
 			}
 		}
-		*/
 
 		if (calcDen)
 		{
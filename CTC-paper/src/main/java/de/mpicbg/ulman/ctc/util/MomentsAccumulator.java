@@ -0,0 +1,86 @@
+/*
+ * CC BY-SA 4.0
+ *
+ * The code is licensed with "Attribution-ShareAlike 4.0 International license".
+ * See the license details:
+ *     https://creativecommons.org/licenses/by-sa/4.0/
+ */
+package de.mpicbg.ulman.ctc.util;
+
+/**
+ * Numerically stable single-pass accumulator of the mean and (population)
+ * variance of a sequence of values, after Welford. Two accumulators, e.g.
+ * those filled from different parts of an image or by different threads,
+ * can be merged into one after Chan et al., and the result is the same
+ * (up to rounding) as if all values were added into one accumulator.
+ *
+ * See: https://en.wikipedia.org/wiki/Algorithms_for_calculating_variance#Welford's_online_algorithm
+ * and: https://en.wikipedia.org/wiki/Algorithms_for_calculating_variance#Parallel_algorithm
+ */
+public class MomentsAccumulator
+{
+	/** the number of values seen so far */
+	private long count = 0;
+
+	/** the mean of the values seen so far */
+	private double mean = 0.0;
+
+	/** the sum of squared differences from the current mean */
+	private double M2 = 0.0;
+
+
+	/** Forgets all values seen so far. */
+	public void reset()
+	{
+		count = 0;
+		mean = 0.0;
+		M2 = 0.0;
+	}
+
+	/** Adds one value into the statistics. */
+	public void add(final double value)
+	{
+		++count;
+		final double delta = value - mean;
+		mean += delta / (double)count;
+		M2 += delta * (value - mean);
+	}
+
+	/** Adds all values seen by the 'other' accumulator into this one,
+	    the 'other' accumulator is not changed. */
+	public void merge(final MomentsAccumulator other)
+	{
+		if (other.count == 0) return;
+		if (count == 0)
+		{
+			count = other.count;
+			mean = other.mean;
+			M2 = other.M2;
+			return;
+		}
+
+		final long newCount = count + other.count;
+		final double delta = other.mean - mean;
+		mean += delta * (double)other.count / (double)newCount;
+		M2 += other.M2 + delta*delta * (double)count * (double)other.count / (double)newCount;
+		count = newCount;
+	}
+
+
+	/** Returns the number of values seen so far. */
+	public long getCount()
+	{ return count; }
+
+	/** Returns the mean of the values seen so far, or 0 if no value was seen. */
+	public double getMean()
+	{ return mean; }
+
+	/** Returns the population variance (normalized with the number of values)
+	    of the values seen so far, or 0 if no value was seen. */
+	public double getVariance()
+	{ return count > 0 ? M2 / (double)count : 0.0; }
+
+	/** Returns the population standard deviation, see getVariance(). */
+	public double getStdDev()
+	{ return Math.sqrt( getVariance() ); }
+}
@@ -78,6 +78,20 @@ public class AbstractDSmeasure
 	}
 
 
+	/**
+	 * Sets (adds) the flags of the given \e _features such that a cache, which
+	 * is given them with ImgQualityDataCache.demandFeatures(), will compute the
+	 * features this measure needs in its bottom stage. Only the demanded features
+	 * are computed by the ImgQualityDataCache.calculate(), and so one can prepare
+	 * a cache for several measures by calling this function of every such measure
+	 * on the same \e _features.
+	 *
+	 * This measure needs none of the optional features.
+	 */
+	public void setRequiredFeatures(final ImgQualityDataCache.Features _features)
+	{}
+
+
 	protected void calculateUpperStage(final String imgPath, final double[] resolution,
 	                                 final String annPath,
 	                                 final ImgQualityDataCache _cache)
@@ -86,15 +100,21 @@ public class AbstractDSmeasure
 		//invalidate own cache
 		cache = null;
 
+		//what we need
+		final ImgQualityDataCache.Features demand = new ImgQualityDataCache.Features();
+		setRequiredFeatures(demand);
+
 		//check we got some hint/cache
-		//and if it fits our input, then use it
-		if (_cache != null && _cache.validFor(imgPath,annPath)) cache = _cache;
+		//and if it fits our input and provides what we need, then use it
+		if (_cache != null && _cache.validFor(imgPath,annPath)
+		    && _cache.providesFeaturesOf(demand)) cache = _cache;
 
 		//if no cache is available after all, compute it
 		if (cache == null)
 		{
 			//do the upper stage
 			cache = new ImgQualityDataCache(log, _cache);
+			cache.demandFeatures(demand);
 			cache.calculate(imgPath, resolution, annPath);
 		}
 	}
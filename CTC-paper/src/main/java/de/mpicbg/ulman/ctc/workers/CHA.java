@@ -21,6 +21,14 @@ public class CHA extends AbstractDSmeasure
 	{ super(_log); }
 
 
+	/// CHA needs the objects' mean intensities.
+	@Override
+	public void setRequiredFeatures(final ImgQualityDataCache.Features _features)
+	{
+		_features.doIntensityPrecalculation = true;
+	}
+
+
 	//---------------------------------------------------------------------/
 	/**
 	 * The function returns average FG intensity over all objects found that
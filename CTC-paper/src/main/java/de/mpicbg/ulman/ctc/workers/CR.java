@@ -21,6 +21,15 @@ public class CR extends AbstractDSmeasure
 	{ super(_log); }
 
 
+	/// CR needs the objects' and background mean intensities.
+	@Override
+	public void setRequiredFeatures(final ImgQualityDataCache.Features _features)
+	{
+		_features.doIntensityPrecalculation = true;
+		_features.doBackgroundPrecalculation = true;
+	}
+
+
 	//---------------------------------------------------------------------/
 	/// This is the main CR calculator.
 	@Override
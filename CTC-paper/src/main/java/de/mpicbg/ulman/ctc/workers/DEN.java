@@ -21,6 +21,14 @@ public class DEN extends AbstractDSmeasure
 	{ super(_log); }
 
 
+	/// DEN needs the distances to the nearest neighboring objects.
+	@Override
+	public void setRequiredFeatures(final ImgQualityDataCache.Features _features)
+	{
+		_features.doDensityPrecalculation = true;
+	}
+
+
 	//---------------------------------------------------------------------/
 	/// This is the main DEN calculator.
 	@Override
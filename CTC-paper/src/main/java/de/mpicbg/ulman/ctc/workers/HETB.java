@@ -10,6 +10,7 @@
 package de.mpicbg.ulman.ctc.workers;
 
 import org.scijava.log.LogService;
+import de.mpicbg.ulman.ctc.util.MomentsAccumulator;
 
 import java.util.Vector;
 import java.util.HashMap;
@@ -21,6 +22,15 @@ public class HETB extends AbstractDSmeasure
 	{ super(_log); }
 
 
+	/// HETB needs the objects' and background mean intensities.
+	@Override
+	public void setRequiredFeatures(final ImgQualityDataCache.Features _features)
+	{
+		_features.doIntensityPrecalculation = true;
+		_features.doBackgroundPrecalculation = true;
+	}
+
+
 	//---------------------------------------------------------------------/
 	/// This is the main HETB calculator.
 	@Override
@@ -35,17 +45,14 @@ public class HETB extends AbstractDSmeasure
 		//their respective avg. HETBs and average them
 		for (ImgQualityDataCache.videoDataContainer data : cache.cachedVideoData)
 		{
-			double intSum = 0.; //for mean and variance
-			double int2Sum = 0.;
-			//see ImgQualityDataCache.extractFGObjectStats() for explanation of this variable
-			double valShift=-1.;
+			//for mean and variance
+			final MomentsAccumulator hetbStats = new MomentsAccumulator();
 
 			//shadows of the/short-cuts to the cache data
 			final Vector<HashMap<Integer,Double>> avgFG = data.avgFG;
 			final Vector<Double> avgBG = data.avgBG;
 
 			//go over all FG objects and calc their HETBs
-			long noFGs = 0;
 			double l_hetb = 0.0;
 			//over all time points
 			for (int time=0; time < avgFG.size(); ++time)
@@ -67,24 +74,15 @@ public class HETB extends AbstractDSmeasure
 					//usual signal height in this frame, we have to calculate
 					//std.dev. from these values
 					l_hetb = (fg - avgBG.get(time)) / frameAvgFGSignal;
-
-					if (valShift == -1) valShift = l_hetb;
-
-					intSum  += (l_hetb-valShift);
-					int2Sum += (l_hetb-valShift) * (l_hetb-valShift);
-					++noFGs;
+					hetbStats.add(l_hetb);
 				}
 			}
 
 			//finish the calculation of the average
-			if (noFGs > 0)
+			if (hetbStats.getCount() > 0)
 			{
-				//finish calculation of the variance...
-				int2Sum -= (intSum*intSum/(double)noFGs);
-				int2Sum /= (double)noFGs;
-
-				//...to get the final standard deviation
-				l_hetb = Math.sqrt(int2Sum);
+				//the final standard deviation
+				l_hetb = hetbStats.getStdDev();
 
 				log.info("HETB for video "+data.video+": "+l_hetb);
 
@@ -21,6 +21,15 @@ public class HETI extends AbstractDSmeasure
 	{ super(_log); }
 
 
+	/// HETI needs the objects' mean intensities and std. devs., and background mean intensities.
+	@Override
+	public void setRequiredFeatures(final ImgQualityDataCache.Features _features)
+	{
+		_features.doIntensityPrecalculation = true;
+		_features.doBackgroundPrecalculation = true;
+	}
+
+
 	//---------------------------------------------------------------------/
 	/// This is the main HETI calculator.
 	@Override
@@ -13,7 +13,6 @@ import org.scijava.log.LogService;
 
 import net.imglib2.img.Img;
 import net.imglib2.img.array.ArrayImgFactory;
-import net.imglib2.IterableInterval;
 import net.imglib2.RandomAccessibleInterval;
 import net.imglib2.view.Views;
 import net.imglib2.view.ExtendedRandomAccessibleInterval;
@@ -27,11 +26,20 @@ import net.imglib2.type.numeric.real.FloatType;
 
 import java.io.File;
 import java.io.IOException;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.nio.file.AtomicMoveNotSupportedException;
 import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
 import io.scif.img.ImgIOException;
 
+import de.mpicbg.ulman.ctc.util.MomentsAccumulator;
+
 import java.util.Vector;
-import java.util.HashSet;
 import java.util.HashMap;
 import java.util.List;
 import java.util.LinkedList;
@@ -41,17 +49,35 @@ public class ImgQualityDataCache
 	///shortcuts to some Fiji services
 	private final LogService log;
 
+	/*
+	 * The feature flags: only the features that are demanded are computed,
+	 * the volumes of the objects are, however, always computed. The flags
+	 * are typically set with demandFeatures().
+	 */
+	///flag to notify ClassifyLabels() if to bother itself with mean and std. dev. of objects' intensities
+	public boolean doIntensityPrecalculation = false;
+	///flag to notify ClassifyLabels() if to bother itself with mean and std. dev. of background intensities
+	public boolean doBackgroundPrecalculation = false;
+	///flag to notify ClassifyLabels() if to bother itself with overlaps of objects in consecutive frames
+	public boolean doOverlapPrecalculation = false;
 	/**
 	 * flag to notify ClassifyLabels() if to call extractObjectDistance()
-	 * (which will be called in addition to extractFGObjectStats())
+	 * (which will be called in addition to the per-object statistics)
 	 */
 	public boolean doDensityPrecalculation = false;
-	///flag to notify extractFGObjectStats() if to bother itself with surface mesh
+	///flag to notify ClassifyLabels() if to bother itself with surface area estimation
 	public boolean doShapePrecalculation = false;
 
 	///specifies how many digits are to be expected in the input filenames
 	public int noOfDigits = 3;
 
+	/**
+	 * flag to notify calculate() if to try to load the cache content from
+	 * a file (instead of computing it), and to save it into this file after
+	 * it has been computed, see getPersistentCacheFile()
+	 */
+	public boolean doPersistentCaching = false;
+
 	///a constructor requiring connection to Fiji report/log services
 	public ImgQualityDataCache(final LogService _log)
 	{
@@ -79,8 +105,15 @@ public class ImgQualityDataCache
 		if (_cache != null)
 		{
 			//preserve the feature flags
-			doDensityPrecalculation = _cache.doDensityPrecalculation;
-			doShapePrecalculation   = _cache.doShapePrecalculation;
+			doIntensityPrecalculation  = _cache.doIntensityPrecalculation;
+			doBackgroundPrecalculation = _cache.doBackgroundPrecalculation;
+			doOverlapPrecalculation    = _cache.doOverlapPrecalculation;
+			doDensityPrecalculation    = _cache.doDensityPrecalculation;
+			doShapePrecalculation      = _cache.doShapePrecalculation;
+
+			//preserve also the operational flags
+			noOfDigits = _cache.noOfDigits;
+			doPersistentCaching = _cache.doPersistentCaching;
 		}
 	}
 
@@ -98,6 +131,46 @@ public class ImgQualityDataCache
 		     && annPath == _annPath);
 	}
 
+	/**
+	 * A demand of the optional features, with the same meaning as the feature
+	 * flags of the cache. Measures declare what they need into it, see
+	 * AbstractDSmeasure.setRequiredFeatures(), without any cache being created.
+	 */
+	public static class Features
+	{
+		public boolean doIntensityPrecalculation = false;
+		public boolean doBackgroundPrecalculation = false;
+		public boolean doOverlapPrecalculation = false;
+		public boolean doDensityPrecalculation = false;
+		public boolean doShapePrecalculation = false;
+	}
+
+	///adds the features demanded in the \e features to the feature flags of this cache
+	public void demandFeatures(final Features features)
+	{
+		doIntensityPrecalculation  |= features.doIntensityPrecalculation;
+		doBackgroundPrecalculation |= features.doBackgroundPrecalculation;
+		doOverlapPrecalculation    |= features.doOverlapPrecalculation;
+		doDensityPrecalculation    |= features.doDensityPrecalculation;
+		doShapePrecalculation      |= features.doShapePrecalculation;
+	}
+
+	///check if this cache computes (at least) all features that are demanded in the \e features
+	public boolean providesFeaturesOf(final Features features)
+	{
+		return ( (doIntensityPrecalculation  || !features.doIntensityPrecalculation)
+		      && (doBackgroundPrecalculation || !features.doBackgroundPrecalculation)
+		      && (doOverlapPrecalculation    || !features.doOverlapPrecalculation)
+		      && (doDensityPrecalculation    || !features.doDensityPrecalculation)
+		      && (doShapePrecalculation      || !features.doShapePrecalculation) );
+	}
+
+	///check if the raw images need to be read at all to compute the demanded features
+	public boolean needsRawImages()
+	{
+		return (doIntensityPrecalculation || doBackgroundPrecalculation);
+	}
+
 
 	// ----------- the common upper stage essentially starts here -----------
 	//auxiliary data:
@@ -168,6 +241,18 @@ public class ImgQualityDataCache
 		/// Stores REAL SURFACE (in square micrometers) of the FG masks at time points.
 		public final Vector<HashMap<Integer,Double>> surfaceFG = new Vector<>(1000,100);
 
+		/// Dimensionality of the images of this video (typically 2 or 3)
+		public int dimensionality = 0;
+
+		/// Converts this.volumeFG values (no. of voxels) into a real area or volume
+		/// (in square or cubic micrometers) considering only this.dimensionality axes
+		public double getRealSize(final long vxlCnt)
+		{
+			double v = (double)vxlCnt;
+			for (int n=0; n < dimensionality; ++n) v *= resolution[n];
+			return (v);
+		}
+
 		/**
 		 * Stores how many voxels are there in the intersection of masks of the same
 		 * marker at time point and previous time point.
@@ -199,129 +284,57 @@ public class ImgQualityDataCache
 	//aux data fillers -- merely markers' properties calculator
 
 	/**
-	 * The cursor \e imgPosition points into the raw image at voxel whose counterparting voxel
-	 * in the \e imgFGcurrent image stores the first (in the sense of \e imgPosition internal
-	 * sweeping order) occurence of the marker that is to be processed with this function.
-	 *
-	 * This function pushes into global data at the specific \e time .
+	 * Accumulator of the properties of one FG object (marker) that are collected
+	 * during the single sweep over the current frame in ClassifyLabels().
 	 */
-	private <T extends RealType<T>>
-	void extractFGObjectStats(final Cursor<T> imgPosition, final int time, //who: "object" @ time
-		final RandomAccessibleInterval<UnsignedShortType> imgFGcurrent,     //where: input masks
-		final RandomAccessibleInterval<UnsignedShortType> imgFGprevious,
-		final videoDataContainer data)
-	{
-		//working pointers into the mask images
-		final RandomAccess<UnsignedShortType> fgCursor = imgFGcurrent.randomAccess();
-
-		//obtain the ID of the processed object
-		//NB: imgPosition points already at sure existing voxel
-		fgCursor.setPosition(imgPosition);
-		final int marker = fgCursor.get().getInteger();
-
-		//init aux variables:
-		double intSum = 0.; //for single-pass calculation of mean and variance
-		double int2Sum = 0.;
-		//according to: https://en.wikipedia.org/wiki/Algorithms_for_calculating_variance#Computing_shifted_data
-		//to fight against numerical issues we introduce a "value shifter",
-		//which we can already initiate with an "estimate of mean" which we
-		//derive from the object's first spotted voxel value
-		//NB: imgPosition points already at sure existing voxel
-		final double valShift=imgPosition.get().getRealDouble();
-
-		//the voxel counter (for volume)
+	private class FGObjectStats
+	{
+		///the voxel counter (for volume)
 		long vxlCnt = 0L;
 
-		//working copy of the input cursor, this one drives the image sweeping
-		//sweep the image and search for this object/marker
-		final Cursor<T> rawCursor = imgPosition.copyCursor();
-		rawCursor.reset();
-		while (rawCursor.hasNext())
-		{
-			rawCursor.next();
-			fgCursor.setPosition(rawCursor);
-
-			if (fgCursor.get().getInteger() == marker)
-			{
-				//processing voxel that belongs to the current FG object:
-				//increase current volume
-				++vxlCnt;
-
-				final double val = rawCursor.get().getRealDouble();
-				intSum += (val-valShift);
-				int2Sum += (val-valShift) * (val-valShift);
-			}
-		}
-		//must hold: vxlCnt > 1 (otherwise ClassifyLabels wouldn't call this function)
-
-		//finish processing of the FG objects stats:
-		//mean intensity
-		data.avgFG.get(time).put(marker, (intSum / (double)vxlCnt) + valShift );
-
-		//variance
-		int2Sum -= (intSum*intSum/(double)vxlCnt);
-		int2Sum /= (double)vxlCnt;
-		//
-		//std. dev.
-		data.stdFG.get(time).put(marker, Math.sqrt(int2Sum) );
-
-		//voxel count
-		data.volumeFG.get(time).put(marker, vxlCnt );
+		///for single-pass calculation of mean and variance of the intensities
+		final MomentsAccumulator intensity = new MomentsAccumulator();
 
-		//call dedicated function to calculate surface in real coordinates,
-		//the real area/surface
-		if (doShapePrecalculation)
-			data.surfaceFG.get(time).put(marker, 999.9 ); //TODO replace 999 with some function call
+		///sum of areas of the object boundary faces, see ClassifyLabels()
+		double surface = 0.;
 
-		//also process the "overlap feature" (if the object was found in the previous frame)
-		if (time > 0 && data.volumeFG.get(time-1).get(marker) != null)
-			data.overlapFG.get(time).put(marker,
-				measureObjectsOverlap(imgPosition,imgFGcurrent, marker,imgFGprevious) );
+		///the number of voxels shared with the same marker in the previous frame
+		long overlap = 0L;
 	}
 
+	//"time saver" for ClassifyLabels(): accumulators of the discovered objects indexed with
+	//their marker values (which are 16bit) and their list (in the order of their discovery)
+	private final FGObjectStats[] fgObjects = new FGObjectStats[1 << 16];
+	private final Vector<Integer> fgObjectsDiscovered = new Vector<>(1000,100);
+
 
 	/**
-	 * The functions counts how many times the current marker (see below) in the image \e imgFGcurrent
-	 * co-localizes with marker \e prevID in the image \e imgFGprevious. This number is returned.
-	 *
-	 * The cursor \e imgPosition points into the raw image at voxel whose counterparting voxel
-	 * in the \e imgFGcurrent image stores the first (in the sense of \e imgPosition internal
-	 * sweeping order) occurence of the marker that is to be processed with this function.
+	 * Returns the real area (in square micrometers) of a face of a voxel,
+	 * that is orthogonal to the given axis, for every axis of the \e D-dimensional
+	 * image. For 2D images, the "area" is in fact the length of a pixel edge.
 	 */
-	private <T extends RealType<T>>
-	long measureObjectsOverlap(final Cursor<T> imgPosition, //pointer to the raw image -> gives current FG ID
-	                           final RandomAccessibleInterval<UnsignedShortType> imgFGcurrent, //FG mask
-									   final int prevID, //prev FG ID
-	                           final RandomAccessibleInterval<UnsignedShortType> imgFGprevious) //FG mask
-	{
-		//working copy of the input cursor, this one drives the image sweeping
-		final Cursor<T> rawCursor = imgPosition.copyCursor();
-
-		//working pointers into the (current and previous) object masks
-		final RandomAccess<UnsignedShortType> fgCursor = imgFGcurrent.randomAccess();
-		final RandomAccess<UnsignedShortType> prevFgCursor = imgFGprevious.randomAccess();
-
-		//obtain the ID of the processed object
-		//NB: imgPosition points already at sure existing voxel
-		//NB: rawCursor is as if newly created cursor, i.e., now it points before the image
-		fgCursor.setPosition(imgPosition);
-		final int marker = fgCursor.get().getInteger();
-
-		//return value...
-		long count = 0;
-
-		rawCursor.reset();
-		while (rawCursor.hasNext())
+	private double[] getFaceAreas(final int D)
+	{
+		final double[] faceArea = new double[D];
+		for (int d=0; d < D; ++d)
 		{
-			rawCursor.next();
-			fgCursor.setPosition(rawCursor);
-			prevFgCursor.setPosition(rawCursor);
-
-			if (fgCursor.get().getInteger() == marker && prevFgCursor.get().getInteger() == prevID)
-				++count;
+			faceArea[d] = 1.0;
+			for (int i=0; i < D; ++i)
+				if (i != d) faceArea[d] *= resolution[i];
 		}
+		return faceArea;
+	}
 
-		return(count);
+	/**
+	 * Counting the boundary faces of a digital object overestimates its true
+	 * surface as the faces follow only the image axes. For an object with
+	 * isotropically distributed surface normals, the expected overestimation
+	 * is given by the Cauchy-Crofton formula: it is 4/PI in 2D (perimeter)
+	 * and 3/2 in 3D (surface area). The faces count is divided with this factor.
+	 */
+	private double getFacesCountingBias(final int D)
+	{
+		return (D == 2 ? 4.0/Math.PI : 1.5);
 	}
 
 
@@ -347,7 +360,7 @@ public class ImgQualityDataCache
 
 		//working (float-type) "copies" of the input image
 		if (dilIgA == null || dilIgB == null)
-			throw new IllegalArgumentException("Internal error in extractFGObjectStats(), sorry.");
+			throw new IllegalArgumentException("Internal error in extractObjectDistance(), sorry.");
 		//could also check for proper size of the two images vs. img...
 
 		//overlays over the working copies with extended boundary
@@ -540,9 +553,20 @@ public class ImgQualityDataCache
 	}
 
 
+	/**
+	 * Sweeps (once) over the raw image and its annotations, and computes the
+	 * demanded background and per-object statistics of the frame at time \e time.
+	 * The images are swept in their flat iteration order in synchrony, so
+	 * no positioning of random accesses is needed at all (the surface estimation
+	 * reads the preceding neighbors from a buffer of the last swept image slice).
+	 * The \e imgFGprev can be null if no previous frame exists or if overlaps
+	 * are not demanded, the \e imgBG can be null if background statistics
+	 * are not demanded, and the \e imgRaw can be null if neither background
+	 * nor intensity statistics are demanded (see needsRawImages()).
+	 */
 	public <T extends RealType<T>>
 	void ClassifyLabels(final int time,
-	                    IterableInterval<T> imgRaw,
+	                    RandomAccessibleInterval<T> imgRaw,
 	                    RandomAccessibleInterval<UnsignedByteType> imgBG,
 	                    Img<UnsignedShortType> imgFG,
 	                    RandomAccessibleInterval<UnsignedShortType> imgFGprev,
@@ -554,25 +578,38 @@ public class ImgQualityDataCache
 		//assume that resolution is sane
 
 		//check we have a resolution data available for every dimension
-		if (imgRaw.numDimensions() > resolution.length)
-			throw new IllegalArgumentException("Raw image has greater dimensionality"
+		if (imgFG.numDimensions() > resolution.length)
+			throw new IllegalArgumentException("FG label image has greater dimensionality"
 				+" than the available resolution data.");
 
+		//check the demanded images are available
+		if (imgRaw == null && needsRawImages())
+			throw new IllegalArgumentException("Raw image is required but was not given.");
+		if (imgBG == null && doBackgroundPrecalculation)
+			throw new IllegalArgumentException("BG label image is required but was not given.");
+
 		//check the sizes of the images
-		if (imgRaw.numDimensions() != imgFG.numDimensions())
+		if (imgRaw != null && imgRaw.numDimensions() != imgFG.numDimensions())
 			throw new IllegalArgumentException("Raw image and FG label image"
 				+" are not of the same dimensionality.");
-		if (imgRaw.numDimensions() != imgBG.numDimensions())
-			throw new IllegalArgumentException("Raw image and BG label image"
+		if (imgBG != null && imgBG.numDimensions() != imgFG.numDimensions())
+			throw new IllegalArgumentException("BG label image and FG label image"
+				+" are not of the same dimensionality.");
+		if (imgFGprev != null && imgFGprev.numDimensions() != imgFG.numDimensions())
+			throw new IllegalArgumentException("Previous FG label image and FG label image"
 				+" are not of the same dimensionality.");
 
-		for (int n=0; n < imgRaw.numDimensions(); ++n)
+		for (int n=0; imgRaw != null && n < imgFG.numDimensions(); ++n)
 			if (imgRaw.dimension(n) != imgFG.dimension(n))
 				throw new IllegalArgumentException("Raw image and FG label image"
 					+" are not of the same size.");
-		for (int n=0; n < imgRaw.numDimensions(); ++n)
-			if (imgRaw.dimension(n) != imgBG.dimension(n))
-				throw new IllegalArgumentException("Raw image and BG label image"
+		for (int n=0; imgBG != null && n < imgFG.numDimensions(); ++n)
+			if (imgBG.dimension(n) != imgFG.dimension(n))
+				throw new IllegalArgumentException("BG label image and FG label image"
+					+" are not of the same size.");
+		for (int n=0; imgFGprev != null && n < imgFG.numDimensions(); ++n)
+			if (imgFGprev.dimension(n) != imgFG.dimension(n))
+				throw new IllegalArgumentException("Previous FG label image and FG label image"
 					+" are not of the same size.");
 
 		//.... populate the internal structures ....
@@ -581,111 +618,214 @@ public class ImgQualityDataCache
 		long volFGvoxelCnt = 0L;
 		long volFGBGcollisionVoxelCnt = 0L;
 
-		double intSum = 0.; //for mean and variance
-		double int2Sum = 0.;
-		//see extractFGObjectStats() for explanation of this variable
-		double valShift=-1.;
+		//for mean and variance of the pure BG voxels
+		final MomentsAccumulator bgIntensity = new MomentsAccumulator();
+
+		//surface estimation: sum of areas of the object boundary faces,
+		//a face is shared between an object voxel and its neighbor (along some axis)
+		//that is not of the same marker, or that is already outside the image;
+		//since every row of object voxels along the axis 'd' is delimited with
+		//exactly two such faces, it is enough to look into one neighbor only
+		//(the preceding one) and count every such face twice;
+		//the preceding neighbors were already visited by the flat sweep, their labels
+		//are kept in a ring buffer of the size of one (hyper)slice of the image and
+		//are found at the flat offsets given by the strides of the image axes
+		final int D = imgFG.numDimensions();
+		final double[] faceArea = doShapePrecalculation ? getFaceAreas(D) : null;
+		final int[] nbStrides = doShapePrecalculation ? new int[D] : null;
+		int[] nbLabels = null;
+		int nbIdx = 0;
+		if (doShapePrecalculation)
+		{
+			long stride = 1;
+			for (int d=0; d < D; ++d)
+			{
+				nbStrides[d] = (int)stride;
+				if (d < D-1) stride *= imgFG.dimension(d);
+			}
+			if (stride > Integer.MAX_VALUE)
+				throw new IllegalArgumentException("FG label image has too large slices"
+					+" for the surface estimation.");
+			nbLabels = new int[(int)stride];
+		}
 
 		//sweeping variables:
-		final Cursor<T> rawCursor = imgRaw.localizingCursor();
-		final RandomAccess<UnsignedByteType> bgCursor = imgBG.randomAccess();
-		final RandomAccess<UnsignedShortType> fgCursor = imgFG.randomAccess();
-
-		while (rawCursor.hasNext())
+		//NB: the same-sized images iterate in the same order when iterated "flat"
+		//NB: images that are not needed are not swept at all
+		final boolean doIntensity = doIntensityPrecalculation;
+		final Cursor<T> rawCursor
+			= needsRawImages() ? Views.flatIterable(imgRaw).cursor() : null;
+		final Cursor<UnsignedByteType> bgCursor
+			= doBackgroundPrecalculation ? Views.flatIterable(imgBG).cursor() : null;
+		final Cursor<UnsignedShortType> fgCursor = Views.flatIterable(imgFG).localizingCursor();
+		final Cursor<UnsignedShortType> prevFgCursor
+			= doOverlapPrecalculation && imgFGprev != null ? Views.flatIterable(imgFGprev).cursor() : null;
+
+		//discovered FG objects
+		fgObjectsDiscovered.clear();
+		try
 		{
-			//update cursors...
-			rawCursor.next();
-			bgCursor.setPosition(rawCursor);
-			fgCursor.setPosition(rawCursor);
+			FGObjectStats obj = null;
+			int objMarker = 0;
 
-			//analyze background voxels
-			if (bgCursor.get().getInteger() > 0)
+			while (fgCursor.hasNext())
 			{
-				if (fgCursor.get().getInteger() > 0)
+				//update cursors...
+				final double val = rawCursor != null ? rawCursor.next().getRealDouble() : 0.0;
+				final int bgLabel = bgCursor != null ? bgCursor.next().getInteger() : 0;
+				final int fgLabel = fgCursor.next().getInteger();
+				final int prevFgLabel = prevFgCursor != null ? prevFgCursor.next().getInteger() : 0;
+
+				//analyze background voxels
+				if (bgLabel > 0)
 				{
-					//found colliding BG voxel, exclude it from BG stats
-					++volFGBGcollisionVoxelCnt;
+					if (fgLabel > 0)
+					{
+						//found colliding BG voxel, exclude it from BG stats
+						++volFGBGcollisionVoxelCnt;
+					}
+					else
+					{
+						//found non-colliding BG voxel, include it for BG stats
+						++volBGvoxelCnt;
+						bgIntensity.add(val);
+					}
 				}
-				else
+
+				//analyze foreground voxels
+				if (fgLabel > 0)
 				{
-					//found non-colliding BG voxel, include it for BG stats
-					++volBGvoxelCnt;
+					++volFGvoxelCnt; //found FG voxel, update FG stats
+
+					//get the accumulator of this object
+					//NB: the same object is likely to be found in the next voxel too
+					if (fgLabel != objMarker)
+					{
+						objMarker = fgLabel;
+						obj = fgObjects[fgLabel];
+						if (obj == null)
+						{
+							//found not-yet-seen FG object
+							obj = new FGObjectStats();
+							fgObjects[fgLabel] = obj;
+							fgObjectsDiscovered.add(fgLabel);
+						}
+					}
 
-					final double val = rawCursor.get().getRealDouble();
-					if (valShift == -1) valShift = val;
+					//processing voxel that belongs to the current FG object:
+					//increase current volume
+					++obj.vxlCnt;
+					if (doIntensity) obj.intensity.add(val);
+
+					//the "overlap feature"
+					if (prevFgLabel == fgLabel) ++obj.overlap;
+
+					if (doShapePrecalculation)
+					{
+						for (int d=0; d < D; ++d)
+						{
+							if (fgCursor.getLongPosition(d) == imgFG.min(d))
+							{
+								//at the image border, the face is there for sure
+								obj.surface += faceArea[d];
+							}
+							else
+							{
+								int nb = nbIdx - nbStrides[d];
+								if (nb < 0) nb += nbLabels.length;
+								if (nbLabels[nb] != fgLabel) obj.surface += faceArea[d];
+							}
+						}
+					}
+				}
 
-					intSum += (val-valShift);
-					int2Sum += (val-valShift) * (val-valShift);
+				//remember the label of this voxel for its following neighbors,
+				//it replaces the label of the voxel one slice before
+				if (doShapePrecalculation)
+				{
+					nbLabels[nbIdx] = fgLabel;
+					if (++nbIdx == nbLabels.length) nbIdx = 0;
 				}
 			}
-			if (fgCursor.get().getInteger() > 0)
-				++volFGvoxelCnt; //found FG voxel, update FG stats
-		}
 
-		//report the "occupancy stats"
-		log.info("Frame at time "+time+" overview:");
-		final long imgSize = imgRaw.size();
-		log.info("all FG voxels           : "+volFGvoxelCnt+" ( "+100.0*(double)volFGvoxelCnt/imgSize+" %)");
-		log.info("pure BG voxels          : "+volBGvoxelCnt+" ( "+100.0*(double)volBGvoxelCnt/imgSize+" %)");
-		log.info("BG&FG overlapping voxels: "+volFGBGcollisionVoxelCnt+" ( "+100.0*(double)volFGBGcollisionVoxelCnt/imgSize+" %)");
-		final long untouched = imgSize - volFGvoxelCnt - volBGvoxelCnt;
-		log.info("not annotated voxels    : "+untouched+" ( "+100.0*(double)untouched/imgSize+" %)");
-
-		//finish processing of the BG stats of the current frame
-		if (volBGvoxelCnt > 0)
-		{
-			//great, some pure-background voxels have been found
-			data.avgBG.add( (intSum / (double)volBGvoxelCnt) + valShift );
+			//report the "occupancy stats"
+			log.info("Frame at time "+time+" overview:");
+			final long imgSize = imgFG.size();
+			log.info("all FG voxels           : "+volFGvoxelCnt+" ( "+100.0*(double)volFGvoxelCnt/imgSize+" %)");
+			if (doBackgroundPrecalculation)
+			{
+				log.info("pure BG voxels          : "+volBGvoxelCnt+" ( "+100.0*(double)volBGvoxelCnt/imgSize+" %)");
+				log.info("BG&FG overlapping voxels: "+volFGBGcollisionVoxelCnt+" ( "+100.0*(double)volFGBGcollisionVoxelCnt/imgSize+" %)");
+				final long untouched = imgSize - volFGvoxelCnt - volBGvoxelCnt;
+				log.info("not annotated voxels    : "+untouched+" ( "+100.0*(double)untouched/imgSize+" %)");
+			}
 
-			int2Sum -= (intSum*intSum/(double)volBGvoxelCnt);
-			int2Sum /= (double)volBGvoxelCnt;
-			data.stdBG.add( Math.sqrt(int2Sum) );
-		}
-		else
-		{
-			log.info("Warning: Background annotation has no pure background voxels.");
-			data.avgBG.add( 0.0 );
-			data.stdBG.add( 0.0 );
-		}
+			//finish processing of the BG stats of the current frame
+			if (!doBackgroundPrecalculation)
+			{
+				//BG stats not demanded, data.avgBG and data.stdBG stay empty
+			}
+			else if (volBGvoxelCnt > 0)
+			{
+				//great, some pure-background voxels have been found
+				data.avgBG.add( bgIntensity.getMean() );
+				data.stdBG.add( bgIntensity.getStdDev() );
+			}
+			else
+			{
+				log.info("Warning: Background annotation has no pure background voxels.");
+				data.avgBG.add( 0.0 );
+				data.stdBG.add( 0.0 );
+			}
 
-		//now, sweep the image, detect all labels and calculate & save their properties
-		log.info("Retrieving per object statistics, might take some time...");
-		//
-		//set to remember already discovered labels
-		//(with initial capacity for 1000 labels)
-		HashSet<Integer> mDiscovered = new HashSet<Integer>(1000);
-
-		//prepare the per-object data structures
-		data.avgFG.add( new HashMap<>() );
-		data.stdFG.add( new HashMap<>() );
-		data.volumeFG.add( new HashMap<>() );
-		data.surfaceFG.add( new HashMap<>() );
-		data.overlapFG.add( new HashMap<>() );
-		data.nearDistFG.add( new HashMap<>() );
-
-		rawCursor.reset();
-		while (rawCursor.hasNext())
-		{
-			//update cursors...
-			rawCursor.next();
-			fgCursor.setPosition(rawCursor);
+			//now, finish and save the properties of all discovered objects
+			log.info("Retrieving per object statistics, might take some time...");
+
+			//prepare the per-object data structures
+			data.avgFG.add( new HashMap<>() );
+			data.stdFG.add( new HashMap<>() );
+			data.volumeFG.add( new HashMap<>() );
+			data.surfaceFG.add( new HashMap<>() );
+			data.overlapFG.add( new HashMap<>() );
+			data.nearDistFG.add( new HashMap<>() );
 
-			//analyze foreground voxels
-			final int curMarker = fgCursor.get().getInteger();
-			if ( curMarker > 0 && (!mDiscovered.contains(curMarker)) )
+			for (int marker : fgObjectsDiscovered)
 			{
-				//found not-yet-processed FG voxel,
-				//that means: found not-yet-processed FG object
-				extractFGObjectStats(rawCursor, time, imgFG, imgFGprev, data);
+				obj = fgObjects[marker];
 
-				if (doDensityPrecalculation)
-					data.nearDistFG.get(time).put(curMarker,
-						extractObjectDistance(imgFG,curMarker, 50) );
+				//finish processing of the FG objects stats:
+				if (doIntensity)
+				{
+					//mean intensity
+					data.avgFG.get(time).put(marker, obj.intensity.getMean() );
+
+					//std. dev.
+					data.stdFG.get(time).put(marker, obj.intensity.getStdDev() );
+				}
+
+				//voxel count
+				data.volumeFG.get(time).put(marker, obj.vxlCnt );
 
-				//mark the object (and all its voxels consequently) as processed
-				mDiscovered.add(curMarker);
+				//the real area/surface
+				if (doShapePrecalculation)
+					data.surfaceFG.get(time).put(marker, 2.0*obj.surface / getFacesCountingBias(D) );
+
+				//also process the "overlap feature" (if the object was found in the previous frame)
+				if (doOverlapPrecalculation && time > 0 && data.volumeFG.get(time-1).get(marker) != null)
+					data.overlapFG.get(time).put(marker, obj.overlap );
+
+				if (doDensityPrecalculation)
+					data.nearDistFG.get(time).put(marker,
+						extractObjectDistance(imgFG,marker, 50) );
 			}
 		}
+		finally
+		{
+			//clean up the shared accumulators for the next frame,
+			//also if the sweep above has failed
+			for (int marker : fgObjectsDiscovered) fgObjects[marker] = null;
+			fgObjectsDiscovered.clear();
+		}
 	}
 
 	//---------------------------------------------------------------------/
@@ -711,6 +851,20 @@ public class ImgQualityDataCache
 		//test and save the given resolution
 		setResolution(resolution);
 
+		//maybe we have computed this already in some previous run?
+		long fingerprint = 0;
+		if (doPersistentCaching)
+		{
+			fingerprint = getInputFingerprint(imgPath,annPath);
+			if (loadFromFile(getPersistentCacheFile(annPath), imgPath,annPath, fingerprint))
+			{
+				//note for what data this cache is valid, see validFor() above
+				this.imgPath = imgPath;
+				this.annPath = annPath;
+				return;
+			}
+		}
+
 		//single or multiple video situation?
 		if (Files.isReadable(
 			new File(String.format("%s/01/t000.tif",imgPath)).toPath()))
@@ -739,6 +893,9 @@ public class ImgQualityDataCache
 		//this cache is valid, see validFor() above
 		this.imgPath = imgPath;
 		this.annPath = annPath;
+
+		if (doPersistentCaching)
+			saveToFile(getPersistentCacheFile(annPath), imgPath,annPath, fingerprint);
 	}
 
 	/// this functions processes given video folders and outputs to \e data
@@ -766,19 +923,22 @@ public class ImgQualityDataCache
 		while (Files.isReadable(
 			new File(String.format("%s/t%0"+noOfDigits+"d.tif",imgPath,time)).toPath()))
 		{
-			//read the image tripple (raw image, FG labels, BG label)
-			Img<?> img
-				= tCache.ReadImage(String.format("%s/t%0"+noOfDigits+"d.tif",imgPath,time));
+			//read the image tripple (raw image, FG labels, BG label),
+			//but only those that are needed for the demanded features
+			Img<?> img = needsRawImages()
+				? tCache.ReadImage(String.format("%s/t%0"+noOfDigits+"d.tif",imgPath,time)) : null;
 
 			Img<UnsignedShortType> imgFG
 				= tCache.ReadImageG16(String.format("%s/TRA/man_track%0"+noOfDigits+"d.tif",annPath,time));
 
-			Img<UnsignedByteType> imgBG
-				= tCache.ReadImageG8(String.format("%s/BG/mask%0"+noOfDigits+"d.tif",annPath,time));
+			Img<UnsignedByteType> imgBG = doBackgroundPrecalculation
+				? tCache.ReadImageG8(String.format("%s/BG/mask%0"+noOfDigits+"d.tif",annPath,time)) : null;
 
 			//time to allocate helper variables?
 			if (time == 0)
 			{
+				data.dimensionality = imgFG.numDimensions();
+
 				//positions and box sweeping:
 				pos = new int[imgFG.numDimensions()];
 				box = new int[imgFG.numDimensions()];
@@ -803,10 +963,10 @@ public class ImgQualityDataCache
 				imgFactory = null;
 			}
 
-			ClassifyLabels(time, (IterableInterval)img, imgBG, imgFG, imgFGprev, data);
+			ClassifyLabels(time, (RandomAccessibleInterval)img, imgBG, imgFG, imgFGprev, data);
 
 			imgFGprev = null; //be explicit that we do not want this in memory anymore
-			imgFGprev = imgFG;
+			if (doOverlapPrecalculation) imgFGprev = imgFG;
 			++time;
 
 			//to be on safe side (with memory)
@@ -822,7 +982,313 @@ public class ImgQualityDataCache
 		if (data.volumeFG.size() != time)
 			throw new IllegalArgumentException("Internal consistency problem with FG data!");
 
-		if (data.avgBG.size() != time)
+		if (doBackgroundPrecalculation && data.avgBG.size() != time)
 			throw new IllegalArgumentException("Internal consistency problem with BG data!");
 	}
+
+
+	//---------------------------------------------------------------------/
+	//persistent storage of the cache content
+
+	///identifies the file format (reads "CTCQ") and its version
+	private static final int FILE_MAGIC = 0x43544351;
+	private static final int FILE_VERSION = 2;
+
+	/// returns the file into which the cache content for the given annotations is stored
+	public File getPersistentCacheFile(final String annPath)
+	{
+		return new File(annPath, "ctc_ds_measures_cache.bin");
+	}
+
+	/**
+	 * Computes a fingerprint of all input image files, that is, of the raw images
+	 * and their FG and BG annotations. Only the names, sizes and modification times
+	 * of the files are considered (not their content) as reading them is what the
+	 * persistent caching aims to avoid. The files are enumerated the same way the
+	 * calculate() and calculateVideo() do it.
+	 */
+	long getInputFingerprint(final String imgPath, final String annPath)
+	{
+		long hash = 1125899906842597L;
+
+		//single or multiple video situation?
+		if (Files.isReadable(
+			new File(String.format("%s/01/t000.tif",imgPath)).toPath()))
+		{
+			int video = 1;
+			while (Files.isReadable(
+				new File(String.format("%s/%02d/t000.tif",imgPath,video)).toPath()))
+			{
+				hash = getVideoFingerprint(String.format("%s/%02d",imgPath,video),
+				                           String.format("%s/%02d_GT",annPath,video), hash);
+				++video;
+			}
+		}
+		else
+			hash = getVideoFingerprint(imgPath,annPath, hash);
+
+		return hash;
+	}
+
+	private long getVideoFingerprint(final String imgPath, final String annPath, long hash)
+	{
+		int time = 0;
+		File file = new File(String.format("%s/t%0"+noOfDigits+"d.tif",imgPath,time));
+		while (Files.isReadable(file.toPath()))
+		{
+			hash = updateFingerprint(hash, file);
+			hash = updateFingerprint(hash,
+				new File(String.format("%s/TRA/man_track%0"+noOfDigits+"d.tif",annPath,time)));
+			hash = updateFingerprint(hash,
+				new File(String.format("%s/BG/mask%0"+noOfDigits+"d.tif",annPath,time)));
+
+			++time;
+			file = new File(String.format("%s/t%0"+noOfDigits+"d.tif",imgPath,time));
+		}
+		return hash;
+	}
+
+	private long updateFingerprint(long hash, final File file)
+	{
+		hash = 31*hash + file.getName().hashCode();
+		hash = 31*hash + file.length();
+		hash = 31*hash + file.lastModified();
+		return hash;
+	}
+
+	/**
+	 * Saves the content of this cache into the given file, together with the
+	 * description of the data for which the content was computed (the key).
+	 * Failures are only reported as the saving is not essential.
+	 */
+	public void saveToFile(final File file,
+	                       final String imgPath, final String annPath,
+	                       final long fingerprint)
+	{
+		//NB: the content is written aside, and it replaces the previous file only once complete,
+		//    so that a failure (or a kill) does not destroy a previously valid cache
+		File tmpFile = null;
+		boolean isSaved = false;
+		try
+		{
+			tmpFile = File.createTempFile(file.getName()+".", ".tmp", file.getAbsoluteFile().getParentFile());
+			try (final DataOutputStream out = new DataOutputStream(
+					new BufferedOutputStream(new FileOutputStream(tmpFile), 1 << 16)))
+			{
+				//the key
+				out.writeInt(FILE_MAGIC);
+				out.writeInt(FILE_VERSION);
+				out.writeUTF(new File(imgPath).getAbsolutePath());
+				out.writeUTF(new File(annPath).getAbsolutePath());
+				out.writeInt(resolution.length);
+				for (double r : resolution) out.writeDouble(r);
+				out.writeBoolean(doIntensityPrecalculation);
+				out.writeBoolean(doBackgroundPrecalculation);
+				out.writeBoolean(doOverlapPrecalculation);
+				out.writeBoolean(doDensityPrecalculation);
+				out.writeBoolean(doShapePrecalculation);
+				out.writeLong(fingerprint);
+
+				//the content
+				out.writeInt(cachedVideoData.size());
+				for (videoDataContainer data : cachedVideoData)
+				{
+					out.writeInt(data.video);
+					out.writeInt(data.dimensionality);
+					writeDoubleMaps(out, data.avgFG);
+					writeDoubleMaps(out, data.stdFG);
+					writeLongMaps(out, data.volumeFG);
+					writeDoubleMaps(out, data.surfaceFG);
+					writeLongMaps(out, data.overlapFG);
+					writeFloatMaps(out, data.nearDistFG);
+					writeDoubles(out, data.avgBG);
+					writeDoubles(out, data.stdBG);
+				}
+			}
+
+			try {
+				Files.move(tmpFile.toPath(), file.toPath(), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+			}
+			catch (AtomicMoveNotSupportedException e) {
+				Files.move(tmpFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+			}
+			isSaved = true;
+			log.info("Saved pre-calculated data into: "+file.getAbsolutePath());
+		}
+		catch (IOException e) {
+			log.warn("Could not save pre-calculated data into "+file.getAbsolutePath()+": "+e.getMessage());
+		}
+		finally
+		{
+			if (!isSaved && tmpFile != null) tmpFile.delete();
+		}
+	}
+
+	/**
+	 * Attempts to load the content of this cache from the given file. The file
+	 * is used only if it was computed for the same input paths, resolution and
+	 * input files fingerprint, and if it provides at least the currently
+	 * requested features. Returns true if the content has been loaded.
+	 */
+	public boolean loadFromFile(final File file,
+	                            final String imgPath, final String annPath,
+	                            final long fingerprint)
+	{
+		if (!file.canRead()) return false;
+
+		try (final DataInputStream in = new DataInputStream(
+				new BufferedInputStream(new FileInputStream(file), 1 << 16)))
+		{
+			//check the key
+			if (in.readInt() != FILE_MAGIC || in.readInt() != FILE_VERSION) return false;
+			if (!in.readUTF().equals(new File(imgPath).getAbsolutePath())) return false;
+			if (!in.readUTF().equals(new File(annPath).getAbsolutePath())) return false;
+			if (in.readInt() != resolution.length) return false;
+			for (double r : resolution)
+				if (in.readDouble() != r) return false;
+			final boolean hasIntensity  = in.readBoolean();
+			final boolean hasBackground = in.readBoolean();
+			final boolean hasOverlap    = in.readBoolean();
+			final boolean hasDensity    = in.readBoolean();
+			final boolean hasShape      = in.readBoolean();
+			if ((doIntensityPrecalculation && !hasIntensity)
+			 || (doBackgroundPrecalculation && !hasBackground)
+			 || (doOverlapPrecalculation && !hasOverlap)
+			 || (doDensityPrecalculation && !hasDensity)
+			 || (doShapePrecalculation && !hasShape)) return false;
+			if (in.readLong() != fingerprint) return false;
+
+			//read the content
+			final List<videoDataContainer> loadedVideoData = new LinkedList<>();
+			final int videosCnt = in.readInt();
+			for (int v=0; v < videosCnt; ++v)
+			{
+				final videoDataContainer data = new videoDataContainer(in.readInt());
+				data.dimensionality = in.readInt();
+				readDoubleMaps(in, data.avgFG);
+				readDoubleMaps(in, data.stdFG);
+				readLongMaps(in, data.volumeFG);
+				readDoubleMaps(in, data.surfaceFG);
+				readLongMaps(in, data.overlapFG);
+				readFloatMaps(in, data.nearDistFG);
+				readDoubles(in, data.avgBG);
+				readDoubles(in, data.stdBG);
+				loadedVideoData.add(data);
+			}
+
+			//all went fine, adopt it (including possibly extra features)
+			cachedVideoData.clear();
+			cachedVideoData.addAll(loadedVideoData);
+			doIntensityPrecalculation  = hasIntensity;
+			doBackgroundPrecalculation = hasBackground;
+			doOverlapPrecalculation    = hasOverlap;
+			doDensityPrecalculation    = hasDensity;
+			doShapePrecalculation      = hasShape;
+
+			log.info("Reusing pre-calculated data from: "+file.getAbsolutePath());
+			return true;
+		}
+		catch (IOException e) {
+			log.warn("Could not read pre-calculated data from "+file.getAbsolutePath()+": "+e.getMessage());
+			return false;
+		}
+	}
+
+	private void writeDoubleMaps(final DataOutputStream out, final Vector<HashMap<Integer,Double>> maps)
+	throws IOException
+	{
+		out.writeInt(maps.size());
+		for (HashMap<Integer,Double> map : maps)
+		{
+			out.writeInt(map.size());
+			for (Integer key : map.keySet())
+			{
+				out.writeInt(key);
+				out.writeDouble(map.get(key));
+			}
+		}
+	}
+
+	private void writeFloatMaps(final DataOutputStream out, final Vector<HashMap<Integer,Float>> maps)
+	throws IOException
+	{
+		out.writeInt(maps.size());
+		for (HashMap<Integer,Float> map : maps)
+		{
+			out.writeInt(map.size());
+			for (Integer key : map.keySet())
+			{
+				out.writeInt(key);
+				out.writeFloat(map.get(key));
+			}
+		}
+	}
+
+	private void writeLongMaps(final DataOutputStream out, final Vector<HashMap<Integer,Long>> maps)
+	throws IOException
+	{
+		out.writeInt(maps.size());
+		for (HashMap<Integer,Long> map : maps)
+		{
+			out.writeInt(map.size());
+			for (Integer key : map.keySet())
+			{
+				out.writeInt(key);
+				out.writeLong(map.get(key));
+			}
+		}
+	}
+
+	private void writeDoubles(final DataOutputStream out, final Vector<Double> values)
+	throws IOException
+	{
+		out.writeInt(values.size());
+		for (Double v : values) out.writeDouble(v);
+	}
+
+	private void readDoubleMaps(final DataInputStream in, final Vector<HashMap<Integer,Double>> maps)
+	throws IOException
+	{
+		final int mapsCnt = in.readInt();
+		for (int t=0; t < mapsCnt; ++t)
+		{
+			final int size = in.readInt();
+			final HashMap<Integer,Double> map = new HashMap<>(2*size+1);
+			for (int i=0; i < size; ++i) map.put(in.readInt(), in.readDouble());
+			maps.add(map);
+		}
+	}
+
+	private void readFloatMaps(final DataInputStream in, final Vector<HashMap<Integer,Float>> maps)
+	throws IOException
+	{
+		final int mapsCnt = in.readInt();
+		for (int t=0; t < mapsCnt; ++t)
+		{
+			final int size = in.readInt();
+			final HashMap<Integer,Float> map = new HashMap<>(2*size+1);
+			for (int i=0; i < size; ++i) map.put(in.readInt(), in.readFloat());
+			maps.add(map);
+		}
+	}
+
+	private void readLongMaps(final DataInputStream in, final Vector<HashMap<Integer,Long>> maps)
+	throws IOException
+	{
+		final int mapsCnt = in.readInt();
+		for (int t=0; t < mapsCnt; ++t)
+		{
+			final int size = in.readInt();
+			final HashMap<Integer,Long> map = new HashMap<>(2*size+1);
+			for (int i=0; i < size; ++i) map.put(in.readInt(), in.readLong());
+			maps.add(map);
+		}
+	}
+
+	private void readDoubles(final DataInputStream in, final Vector<Double> values)
+	throws IOException
+	{
+		final int size = in.readInt();
+		for (int i=0; i < size; ++i) values.add(in.readDouble());
+	}
 }
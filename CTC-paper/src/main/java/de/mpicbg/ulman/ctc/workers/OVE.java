@@ -21,6 +21,14 @@ public class OVE extends AbstractDSmeasure
 	{ super(_log); }
 
 
+	/// OVE needs the objects' volumes and overlaps with previous frames.
+	@Override
+	public void setRequiredFeatures(final ImgQualityDataCache.Features _features)
+	{
+		_features.doOverlapPrecalculation = true;
+	}
+
+
 	//---------------------------------------------------------------------/
 	/// This is the main OVE calculator.
 	@Override
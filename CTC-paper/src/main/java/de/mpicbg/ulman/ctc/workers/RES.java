@@ -21,6 +21,12 @@ public class RES extends AbstractDSmeasure
 	{ super(_log); }
 
 
+	/// RES needs only the objects' volumes, which are always computed.
+	@Override
+	public void setRequiredFeatures(final ImgQualityDataCache.Features _features)
+	{}
+
+
 	//---------------------------------------------------------------------/
 	/// This is the main RES calculator.
 	@Override
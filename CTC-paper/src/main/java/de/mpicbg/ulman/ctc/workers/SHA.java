@@ -14,12 +14,6 @@ import org.scijava.log.LogService;
 import java.util.Vector;
 import java.util.HashMap;
 
-/*
- * ====================================================================================
- *       THIS CLASS IS NOT PROPERLY IMPLEMENTED! DO NOT USE! (and sorry for that)
- * ====================================================================================
- */
-
 public class SHA extends AbstractDSmeasure
 {
 	///a constructor requiring connection to Fiji report/log services
@@ -27,6 +21,14 @@ public class SHA extends AbstractDSmeasure
 	{ super(_log); }
 
 
+	/// SHA needs the objects' volumes and surfaces.
+	@Override
+	public void setRequiredFeatures(final ImgQualityDataCache.Features _features)
+	{
+		_features.doShapePrecalculation = true;
+	}
+
+
 	//---------------------------------------------------------------------/
 	/// This is the main SHA calculator.
 	@Override
@@ -43,17 +45,32 @@ public class SHA extends AbstractDSmeasure
 		{
 			//shadows of the/short-cuts to the cache data
 			final Vector<HashMap<Integer,Long>> volumeFG = data.volumeFG;
+			final Vector<HashMap<Integer,Double>> surfaceFG = data.surfaceFG;
 
-			//go over all FG objects and calc their RESs
+			//go over all FG objects and calc their SHAs
 			long noFGs = 0;
 			double l_sha = 0.0;
 			//over all time points
-			for (int time=0; time < volumeFG.size(); ++time)
+			for (int time=0; time < surfaceFG.size(); ++time)
 			{
 				//over all objects
-				for (Long vol : volumeFG.get(time).values())
+				for (Integer fgID : surfaceFG.get(time).keySet())
 				{
-					l_sha += (double)vol;
+					final double surface = surfaceFG.get(time).get(fgID);
+					if (surface <= 0.0) continue;
+
+					//real area (2D) or volume (3D) of the object
+					final double size = data.getRealSize( volumeFG.get(time).get(fgID) );
+
+					//the regularity of the shape: circularity in 2D, sphericity in 3D,
+					//both are 1.0 for the perfect disc/ball, and are getting smaller
+					//for the more irregular shapes
+					final double regularity = data.dimensionality == 2 ?
+						4.0*Math.PI * size / (surface*surface) :
+						Math.cbrt(Math.PI) * Math.pow(6.0*size, 2.0/3.0) / surface;
+
+					//NB: the surface is only estimated, prevent from exceeding the upper bound
+					l_sha += Math.min(regularity, 1.0);
 					++noFGs;
 				}
 			}
@@ -62,35 +79,15 @@ public class SHA extends AbstractDSmeasure
 			if (noFGs > 0)
 			{
 				l_sha /= (double)noFGs;
-				log.info("RES for video "+data.video+": "+l_sha);
+				log.info("SHA for video "+data.video+": "+l_sha);
 
 				sha += l_sha;
 				++videoCnt;
 			}
 			else
-				log.info("RES for video "+data.video+": Couldn't calculate average RES because there are no cells labelled.");
+				log.info("SHA for video "+data.video+": Couldn't calculate average SHA because there are no cells labelled.");
 		}
 
-
-
-		//NOTES:
-		//use imagej-ops to convert RAI to DefaultMesh
-		//via: src/main/java/net/imagej/ops/geom/geom3d/DefaultMarchingCubes.java
-		// (need to figure out how binarization is achieved -- see .isolevel and interpolatorClass)
-		//
-		//That seems to be an implementation of http://paulbourke.net/geometry/polygonise/
-		//(which is likely a defacto standard approach, 1st hit on Google at least)
-		//
-		//once image is meshified, go through all facets of the mesh and stretch vertices
-		//according to the current resolution, call mesh.getSurfaceArea() afterwards
-		//
-		//(alternatively, make a copy of the MC class, and change it by
-		// incorporating the resolution directly, see L178-L186)
-		//
-		//some MC is in 3D_Viewer by Ulrik, some MC is done Kyle...
-		//see: https://gitter.im/fiji/fiji/archives/2016/01/22
-
-
 		//summarize over all datasets:
 		if (videoCnt > 0)
 		{
@@ -21,6 +21,15 @@ public class SNR extends AbstractDSmeasure
 	{ super(_log); }
 
 
+	/// SNR needs the objects' and background mean intensities, and the background std. dev.
+	@Override
+	public void setRequiredFeatures(final ImgQualityDataCache.Features _features)
+	{
+		_features.doIntensityPrecalculation = true;
+		_features.doBackgroundPrecalculation = true;
+	}
+
+
 	//---------------------------------------------------------------------/
 	/// This is the main SNR calculator.
 	@Override
@@ -65,6 +65,15 @@ public class TrackRecords
 	{
 		tracks.remove(ID);
 	}
+
+	/** Removes the tracks that begin after the time point 'lastTime', and
+	    shortens the remaining tracks to end not later than at 'lastTime'. */
+	public void clipTracks(final int lastTime)
+	{
+		tracks.values().removeIf(t -> t.m_begin > lastTime);
+		for (final Track t : tracks.values())
+			if (t.m_end > lastTime) t.m_end = lastTime;
+	}
 	//------------------------------------------------------------------------
 
 
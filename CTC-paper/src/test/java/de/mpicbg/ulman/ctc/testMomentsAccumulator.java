@@ -0,0 +1,96 @@
+/*
+ * CC BY-SA 4.0
+ *
+ * The code is licensed with "Attribution-ShareAlike 4.0 International license".
+ * See the license details:
+ *     https://creativecommons.org/licenses/by-sa/4.0/
+ */
+package de.mpicbg.ulman.ctc;
+
+import de.mpicbg.ulman.ctc.util.MomentsAccumulator;
+
+import java.util.Random;
+
+/**
+ * Checks the MomentsAccumulator: merging partial accumulators must give the
+ * same mean and variance as one accumulator fed all the values, and both must
+ * agree (within rounding) with the shifted-sums formula that the avgFG/stdFG
+ * and avgBG/stdBG used to be computed with.
+ */
+public class testMomentsAccumulator
+{
+	public static void main(final String... args)
+	{
+		int failures = 0;
+
+		//16-bit-like intensities, float intensities far from zero, and very few values
+		failures += check("uint16 noise",      1000000, 3, 100.0, 65535.0, true);
+		failures += check("float far from 0",  1000000, 7, 1.0e7,  50.0,   false);
+		failures += check("small objects",     5,       2, 500.0, 20.0,    true);
+		failures += check("constant values",   10000,   4, 1234.0, 0.0,    true);
+
+		System.out.println(failures == 0 ? "All checks OK." : failures+" check(s) FAILED.");
+	}
+
+
+	///adds 'noOfValues' random values (around 'offset', of the 'spread') into one
+	///accumulator and, split into 'noOfParts' contiguous parts, into partial
+	///accumulators which are then merged; returns 1 if the results differ
+	static
+	int check(final String name, final int noOfValues, final int noOfParts,
+	          final double offset, final double spread, final boolean integers)
+	{
+		final Random rnd = new Random(42);
+		final double[] values = new double[noOfValues];
+		for (int i = 0; i < noOfValues; ++i)
+		{
+			final double v = offset + spread*rnd.nextDouble();
+			values[i] = integers ? Math.floor(v) : v;
+		}
+
+		//the whole sequence
+		final MomentsAccumulator all = new MomentsAccumulator();
+		for (double v : values) all.add(v);
+
+		//the parts, merged in order
+		final MomentsAccumulator merged = new MomentsAccumulator();
+		final int partSize = (noOfValues + noOfParts -1) / noOfParts;
+		for (int from = 0; from < noOfValues; from += partSize)
+		{
+			final MomentsAccumulator part = new MomentsAccumulator();
+			for (int i = from; i < Math.min(from+partSize, noOfValues); ++i) part.add(values[i]);
+			merged.merge(part);
+		}
+		merged.merge(new MomentsAccumulator()); //merging an empty one changes nothing
+
+		//the former shifted-sums formula
+		final double shift = values[0];
+		double sum = 0, sum2 = 0;
+		for (double v : values)
+		{
+			sum  += v-shift;
+			sum2 += (v-shift)*(v-shift);
+		}
+		final double baseMean = sum/noOfValues + shift;
+		final double baseStd  = Math.sqrt( (sum2 - sum*sum/noOfValues) / noOfValues );
+
+		String problem = null;
+		if (merged.getCount() != noOfValues)
+			problem = "merged count "+merged.getCount();
+		else if (!isClose(merged.getMean(), all.getMean()) || !isClose(merged.getStdDev(), all.getStdDev()))
+			problem = "merged "+merged.getMean()+" +- "+merged.getStdDev()+" vs. "+all.getMean()+" +- "+all.getStdDev();
+		else if (!isClose(all.getMean(), baseMean) || !isClose(all.getStdDev(), baseStd))
+			problem = "baseline "+baseMean+" +- "+baseStd+" vs. "+all.getMean()+" +- "+all.getStdDev();
+
+		System.out.println((problem == null ? "OK     : " : "FAILED : ")+name
+		                   +(problem == null ? " ("+all.getMean()+" +- "+all.getStdDev()+")" : " "+problem));
+		return problem == null ? 0 : 1;
+	}
+
+	///the relative (or, close to zero, absolute) difference is within rounding
+	static
+	boolean isClose(final double a, final double b)
+	{
+		return Math.abs(a-b) <= 1e-9 * Math.max(1.0, Math.max(Math.abs(a), Math.abs(b)));
+	}
+}
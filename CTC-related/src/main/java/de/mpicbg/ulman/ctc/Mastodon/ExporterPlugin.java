@@ -7,8 +7,17 @@ import javax.swing.BoxLayout;
 import org.jhotdraw.samples.svg.gui.ProgressIndicator;
 
 import java.io.File;
+import java.io.IOException;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.scijava.log.LogService;
 import org.scijava.command.Command;
@@ -28,11 +37,10 @@ import bdv.viewer.SourceAndConverter;
 import net.imglib2.RandomAccessibleInterval;
 import net.imglib2.img.planar.PlanarImgFactory;
 import net.imglib2.img.Img;
-import net.imglib2.Cursor;
+import net.imglib2.RandomAccess;
 import net.imglib2.type.NativeType;
 import net.imglib2.type.numeric.RealType;
 import net.imglib2.util.Util;
-import net.imglib2.view.Views;
 
 import org.mastodon.revised.mamut.MamutAppModel;
 import org.mastodon.revised.model.mamut.Spot;
@@ -44,8 +52,12 @@ import org.mastodon.collection.RefIntMap;
 import org.mastodon.collection.RefMaps;
 
 import de.mpicbg.ulman.ctc.Mastodon.util.ButtonHandler;
-import de.mpicbg.ulman.ctc.Mastodon.util.ParallelImgSaver;
+import de.mpicbg.ulman.ctc.Mastodon.util.QueuedImgSaver;
+import de.mpicbg.ulman.ctc.Mastodon.util.DirectTiffWriter;
+import de.mpicbg.ulman.ctc.Mastodon.util.SparseLabelImg;
 import de.mpicbg.ulman.ctc.Mastodon.auxPlugins.TRAMarkersProvider;
+import de.mpicbg.ulman.ctc.Mastodon.auxPlugins.TRAMarkers.BoxesWithFixedShape;
+import de.mpicbg.ulman.ctc.Mastodon.auxPlugins.TRAMarkers.SpheresWithFixedRadius;
 import de.mpicbg.ulman.ctc.workers.TrackRecords;
 
 @Plugin( type = Command.class, name = "CTC format exporter @ Mastodon" )
@@ -160,6 +172,32 @@ extends DynamicCommand
 	           description = "Increase if during the saving the hardware is not saturated.")
 	int writerThreads = 1;
 
+	@Parameter(label = "How many images to render in parallel:", min = "1",
+	           description = "Every image being rendered, or waiting to be saved, occupies memory.")
+	int renderThreads = Runtime.getRuntime().availableProcessors();
+
+	@Parameter(label = "Save markers only as non-empty blocks:",
+	           description = "Markers are stored in N5-style directories of gzip-compressed blocks instead of TIFFs, "
+	                       + "use SparseLabelImg to convert them to TIFFs.")
+	boolean doSparseOutput = false;
+
+	/** the size of the blocks of the sparse output, along every axis */
+	static final int SPARSE_BLOCK_SIZE = 64;
+
+	/** the blocks directory of the sparse output instead of the given image file */
+	static
+	String getSparseImgFilename(final String imgFilename)
+	{
+		final String lname = imgFilename.toLowerCase();
+		if (lname.endsWith(".tif"))  return imgFilename.substring(0, imgFilename.length()-4) + ".n5";
+		if (lname.endsWith(".tiff")) return imgFilename.substring(0, imgFilename.length()-5) + ".n5";
+		return imgFilename + ".n5";
+	}
+
+	@Parameter(label = "Compress images (LZW):",
+	           description = "Compressed images are smaller, but take longer to write.")
+	boolean doCompressImages = false;
+
 
 	@Override
 	public void run()
@@ -203,24 +241,29 @@ extends DynamicCommand
 			//reset dimensionality-based attributes to become compatible again
 			outImgDims = outImgTemplate.numDimensions();
 			resLen  = new double[outImgDims];
-			spotMin = new long[outImgDims];
-			spotMax = new long[outImgDims];
-			radii = new double[2*outImgDims];
-			coord = new RealPoint(outImgDims);
 		}
 
 		//update voxel sizes
 		imgSource.getVoxelDimensions().dimensions(resLen);
+		stencilCache.clear();
 		logService.info("Considering resolution: "+resLen[0]
 		               +" x "+resLen[1]+" x "+resLen[2]
 		               +" "+imgSource.getVoxelDimensions().unit()+"/px");
 
-		final ParallelImgSaver saver = new ParallelImgSaver(writerThreads);
+		//NB: at most 2 images wait in the queue to be saved
+		final QueuedImgSaver saver = new QueuedImgSaver(writerThreads, 2,
+			new DirectTiffWriter(doCompressImages, Math.max(Runtime.getRuntime().availableProcessors()/writerThreads, 1)));
 		final int outputTimeCorrection = resetTimePointNumbers? timeFrom : 0;
 
 		//debug report
-		outImgTemplate.dimensions(spotMin);
-		logService.info("Output image size     : "+Util.printCoordinates(spotMin));
+		final long[] outImgSize = new long[outImgDims];
+		outImgTemplate.dimensions(outImgSize);
+		logService.info("Output image size     : "+Util.printCoordinates(outImgSize));
+
+		//the blocks of the sparse output, stored with the bit depth of the output voxel type
+		final int[] sparseBlockSize = new int[outImgDims];
+		Arrays.fill(sparseBlockSize, SPARSE_BLOCK_SIZE);
+		final String sparseDataType = SparseLabelImg.getDataType(outImgVoxelType);
 
 		//PROGRESS BAR stuff
 		final ButtonHandler pbtnHandler = new ButtonHandler();
@@ -258,26 +301,24 @@ extends DynamicCommand
 		final Spot sRef = modelGraph.vertices().createRef(); //spot reference
 		final Spot fRef = modelGraph.vertices().createRef(); //some spot's future buddy
 
+		//the spots to be rendered, per time point, with their already decided labels
+		final ArrayList<ArrayList<SpotToRender>> spotsToRender = new ArrayList<>(timeTill-timeFrom+1);
+
+		final ExecutorService renderers = Executors.newFixedThreadPool(renderThreads);
+
 		try
 		{
 
-		//over all time points
-		for (int time = timeFrom; time <= timeTill && isCanceled() == false && !pbtnHandler.buttonPressed(); ++time)
+		//the lineage pass: over all time points, decide the track IDs of all spots,
+		//this is inherently sequential, but it is fast as nothing is rendered here
+		int time = timeFrom;
+		for (; time <= timeTill && isCanceled() == false && !pbtnHandler.buttonPressed(); ++time)
 		{
-			final String outImgFilename    = String.format(outImgFilenameFormat,    time-outputTimeCorrection);
-			final String outRawImgFilename = String.format(outRawImgFilenameFormat, time-outputTimeCorrection);
 			if (doOutputOnlyTXTfile)
 				logService.info("Processing time point: "+time);
-			else
-			{
-				if (doOutputRawImages)
-					logService.info("Populating image: "+outRawImgFilename);
-				if (doOutputTRAImages)
-					logService.info("Populating image: "+outImgFilename);
-			}
 
-			final Img<T> outImg
-				= doOutputTRAImages? outImgFactory.create(outImgTemplate) : null;
+			final ArrayList<SpotToRender> frameSpots = new ArrayList<>();
+			spotsToRender.add(frameSpots);
 
 			//over all spots in the current time point
 			for ( final Spot spot : spots.getSpatialIndex( time ) )
@@ -416,9 +457,9 @@ extends DynamicCommand
 					}
 				}
 
-				//finally, render the spot into the current image with its CTC's trackID
+				//finally, remember the spot to be rendered with its CTC's trackID
 				if (doOutputTRAImages)
-					renderSpot( outImg, coordTransWorld2Img, spot, knownTracks.get(spot) );
+					frameSpots.add( new SpotToRender(spot, knownTracks.get(spot)) );
 
 				//forget the currently closed track
 				knownTracks.remove( spot );
@@ -429,33 +470,124 @@ extends DynamicCommand
 					System.out.println(s.getLabel()+" -> "+knownTracks.get(s));
 				*/
 			}
+		}
+		final int lastLineageTime = time-1;
+
+		//the rendering pass: the frames are rendered in parallel, at most 'renderThreads'
+		//ahead of the saving, and are handed to the saver in the order of time points
+		final ArrayDeque<Future<Img<T>>> renderedImgs = new ArrayDeque<>(renderThreads);
+		int nextToRender = timeFrom;
+
+		//the last time point whose TRA image was handed to the saver (or whose blocks were written),
+		//and the first time point whose TRA image failed to be saved (in the saver's threads)
+		int lastExportedTime = timeFrom-1;
+		final AtomicInteger firstFailedTime = new AtomicInteger(Integer.MAX_VALUE);
+		for (time = timeFrom; time <= lastLineageTime && !doOutputOnlyTXTfile
+		     && isCanceled() == false && !pbtnHandler.buttonPressed(); ++time)
+		{
+			final String outImgFilename    = String.format(outImgFilenameFormat,    time-outputTimeCorrection);
+			final String outRawImgFilename = String.format(outRawImgFilenameFormat, time-outputTimeCorrection);
+
+			if (doOutputTRAImages)
+			{
+				for (; nextToRender <= lastLineageTime && nextToRender < time+renderThreads; ++nextToRender)
+				{
+					final ArrayList<SpotToRender> frameSpots = spotsToRender.get(nextToRender-timeFrom);
+					spotsToRender.set(nextToRender-timeFrom, null); //NB: not needed after rendering
+					final String sparseImgFilename = getSparseImgFilename(
+						String.format(outImgFilenameFormat, nextToRender-outputTimeCorrection) );
+					renderedImgs.add( renderers.submit( () -> {
+						if (doSparseOutput)
+						{
+							//render into the non-empty blocks only, and store just them
+							final SparseLabelImg outImg = new SparseLabelImg(outImgSize, sparseBlockSize);
+							final SpotRenderer renderer = new SpotRenderer(outImg);
+							for (final SpotToRender s : frameSpots)
+								renderer.renderSpot( coordTransWorld2Img, s );
+							outImg.write(sparseImgFilename, sparseDataType);
+							return null;
+						}
+
+						final Img<T> outImg = outImgFactory.create(outImgTemplate);
+						final SpotRenderer renderer = new SpotRenderer(outImg);
+						for (final SpotToRender s : frameSpots)
+							renderer.renderSpot( coordTransWorld2Img, s );
+						return outImg;
+					} ) );
+				}
+			}
 
 			//save the image
-			//add, or wait until the list of images to be saved is small
+			//add, or wait until the queue of images to be saved is not full
 			try
 			{
 				if (doOutputRawImages)
-					saver.addImgSaveRequestOrBlockUntilLessThan(2,
-						(RandomAccessibleInterval)imgSource.getSource(time,0),outRawImgFilename);
-				if (doOutputTRAImages)
-					saver.addImgSaveRequestOrBlockUntilLessThan(2, outImg,outImgFilename);
+				{
+					logService.info("Populating image: "+outRawImgFilename);
+					saver.addImgSaveRequest((RandomAccessibleInterval)imgSource.getSource(time,0),outRawImgFilename)
+					     .whenComplete( (v,e) -> { if (e != null) logService.error(e.getMessage()); } );
+				}
+				if (doOutputTRAImages && doSparseOutput)
+				{
+					logService.info("Populating blocks: "+getSparseImgFilename(outImgFilename));
+					renderedImgs.poll().get();
+				}
+				else if (doOutputTRAImages)
+				{
+					logService.info("Populating image: "+outImgFilename);
+					final int savedTime = time;
+					saver.addImgSaveRequest(renderedImgs.poll().get(),outImgFilename)
+					     .whenComplete( (v,e) -> {
+					         if (e == null) return;
+					         logService.error(e.getMessage());
+					         firstFailedTime.accumulateAndGet(savedTime, Math::min);
+					     } );
+				}
+				lastExportedTime = time;
 			}
 			catch (InterruptedException e) {
 				this.cancel("cancel requested");
 			}
+			catch (ExecutionException e) {
+				logService.error("Failed rendering image: "+(doSparseOutput ? getSparseImgFilename(outImgFilename) : outImgFilename)
+				                +": "+e.getCause().getMessage());
+				this.cancel("rendering failed");
+			}
 
 			pbar.setProgress(time+1-timeFrom);
 		}
 
+		//stop the rendering ahead, and wait for it as the sparse frames are written by the renderers
+		for (Future<Img<T>> f : renderedImgs) f.cancel(true);
+		renderers.shutdownNow();
+		renderers.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+
+		//remove the blocks written beyond the last exported time point
+		if (doOutputTRAImages && doSparseOutput)
+			for (int t = lastExportedTime+1; t < nextToRender; ++t)
+			{
+				final String sparseImgFilename = getSparseImgFilename(String.format(outImgFilenameFormat, t-outputTimeCorrection));
+				try { SparseLabelImg.remove(sparseImgFilename); }
+				catch (IOException e) {
+					logService.warn("Failed removing the blocks beyond the exported lineage: "+sparseImgFilename+": "+e.getMessage());
+				}
+			}
+
 		if (!doOutputOnlyTXTfile)
 		{
 			logService.info("Finishing, but saving first already prepared images...");
-			saver.closeAllWorkers_FinishFirstAllUnsavedImages();
+			saver.shutdownAndAwaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
 		}
 
 		//finish the export by creating the supplementary .txt file
 		if (doOutputOnlyTXTfile || doOutputTRAImages)
 		{
+			//the lineage must not cover time points for which the TRA images are missing
+			final int lastTime = doOutputTRAImages
+				? Math.min(lastExportedTime, firstFailedTime.get()-1) : lastLineageTime;
+			if (lastTime < timeTill)
+				logService.warn("The export was stopped or has failed, the lineage file covers time points till "+lastTime);
+			tracks.clipTracks(lastTime);
 			tracks.exportToFile(
 			    String.format("%s%s%s", outputFolder.getAbsolutePath(),File.separator,filenameTXT),
 			    -outputTimeCorrection );
@@ -467,6 +599,11 @@ extends DynamicCommand
 		}
 		finally
 		{
+			//stop the rendering and image saving threads, if not stopped already
+			renderers.shutdownNow();
+			try { saver.shutdownNow(); }
+			catch (InterruptedException e) { /* we're closing anyway */ }
+
 			pbtn.removeActionListener(pbtnHandler);
 			pbframe.dispose();
 
@@ -483,83 +620,230 @@ extends DynamicCommand
 	//some shortcut variables worth remembering
 	private int outImgDims = -1;
 	private double[] resLen;        //aux 1px lengths (in some physical unit)
-	private long[] spotMin,spotMax; //image coordinates (in voxel units)
-	private double[] radii;         //BBox corners relative to spot's center
-	private RealPoint coord;        //aux tmp coordinate
 	private TRAMarkersProvider.intersectionDecidable markerShape;
 
-	private
-	void renderSpot(final Img<T> img,final AffineTransform3D transform, //world2img transform
-	                final Spot spot, final int label)
+	/** a spot as seen in the lineage pass: Spot refs must not be
+	    shared among threads, so the spot's data is copied here */
+	private static
+	class SpotToRender
 	{
-		//the spot size
-		final double radius = Math.sqrt(spot.getBoundingSphereRadiusSquared());
+		final RealPoint position;       //spot's centre (in world units)
+		final double radius;
+		final String name;
+		final int label;
 
-		logService.info("rendering spot "+spot.getLabel()
-		  +" with label "+label+", at "+Util.printCoordinates(spot)
-		  +" with radius="+radius);
+		SpotToRender(final Spot spot, final int label)
+		{
+			this.position = new RealPoint(spot);
+			this.radius = Math.sqrt(spot.getBoundingSphereRadiusSquared());
+			this.name = spot.getLabel();
+			this.label = label;
+		}
+	}
 
-		//project the spot's centre into the output image (coord in pixel units)
-		transform.apply(spot, coord);
+	/** the (flat) voxel offsets of a rendered marker relative to the spot's centre
+	    voxel, stored as runs along the x-axis: a run is its offsets along the other
+	    axes and its span along the x-axis */
+	private static
+	class Stencil
+	{
+		final int D;
+		final int noOfRuns;
+		final long[] rowOffsets; //D-1 offsets per run, the x-axis is not stored
+		final long[] xFrom, xTo;
 
-		//setup a sweeping bbox around it: define half-width (aka radius) in some physical unit
-		markerShape.setHalfBBoxInterval(radii, radius);
+		Stencil(final int D, final ArrayList<long[]> runs)
+		{
+			this.D = D;
+			noOfRuns = runs.size();
+			rowOffsets = new long[noOfRuns*(D-1)];
+			xFrom = new long[noOfRuns];
+			xTo   = new long[noOfRuns];
+			for (int r = 0; r < noOfRuns; ++r)
+			{
+				final long[] run = runs.get(r);
+				xFrom[r] = run[0];
+				xTo[r]   = run[1];
+				for (int d = 1; d < D; ++d) rowOffsets[r*(D-1) + d-1] = run[d+1];
+			}
+		}
+	}
 
-		//finalize the bbox parameters, per dimension....
-		for (int d=0; d < outImgDims; ++d)
+	/** the stencils of the current export, the fixed-shape markers share one stencil
+	    (under the key -1), the other markers have one per their radius */
+	private final ConcurrentHashMap<Double,Stencil> stencilCache = new ConcurrentHashMap<>();
+
+	/** at most this many radius-driven stencils are cached, the others are created per spot */
+	private static final int MAX_CACHED_STENCILS = 1024;
+
+	private
+	Stencil getStencil(final double radius)
+	{
+		final boolean isFixedShape = markerShape instanceof SpheresWithFixedRadius
+		                          || markerShape instanceof BoxesWithFixedShape;
+		final Double key = isFixedShape ? -1.0 : radius;
+
+		Stencil s = stencilCache.get(key);
+		if (s == null)
 		{
-			//round centre position to the nearest pixel coord
-			coord.setPosition( Math.round(coord.getDoublePosition(d)), d );
+			s = createStencil(radius);
+			if (isFixedShape || stencilCache.size() < MAX_CACHED_STENCILS)
+				stencilCache.putIfAbsent(key, s);
+		}
+		return s;
+	}
+
+	/** sweeps the bbox of the marker (around the centre voxel at the origin)
+	    and collects the runs of voxels that are inside the marker */
+	private
+	Stencil createStencil(final double radius)
+	{
+		//setup a sweeping bbox around the centre: define half-width (aka radius) in some physical unit
+		final double[] halfSize = new double[Math.max(outImgDims,3)];
+		markerShape.setHalfBBoxInterval(halfSize, radius);
 
-			//define the sweeping interval around this rounded centre
-			final double R = radii[d]/resLen[d];         //half-width in pixel units
-			radii[d           ] = coord.getDoublePosition(d) - R;
-			radii[d+outImgDims] = coord.getDoublePosition(d) + R;
+		final long[] min = new long[outImgDims];
+		final long[] max = new long[outImgDims];
+		for (int d=0; d < outImgDims; ++d)
+		{
+			//NB: the centre is at an integer coordinate, so rounding the bbox
+			//around it equals to rounding the half-widths
+			final double R = halfSize[d]/resLen[d];         //half-width in pixel units
+			min[d] = Math.round(-R);
+			max[d] = Math.round(+R);
 		}
 		//if, however, only one zSlice is requested, squash the BBox to a plane in 2nd (z) axis
 		if (doOneZslicePerMarker && outImgDims > 2)
 		{
-			radii[2           ] = coord.getDoublePosition(2);
-			radii[2+outImgDims] = coord.getDoublePosition(2);
+			min[2] = 0;
+			max[2] = 0;
 		}
-		//System.out.println("real-px sweeping box: "+Util.printCoordinates(radii));
 
-		//now, radii[] (an imgBBox) has to be in pixel (integer) units and intersect with img,
-		//also check if there is some intersection with the image at all
-		for (int d=0; d < outImgDims; ++d)
+		final ArrayList<long[]> runs = new ArrayList<>();
+		final double[] distVec = new double[Math.max(outImgDims,3)];
+		final long[] pos = min.clone();
+		while (pos[outImgDims-1] <= max[outImgDims-1])
 		{
-			spotMin[d] = Math.max( (long)Math.round(radii[d           ]), img.min(d) );
-			spotMax[d] = Math.min( (long)Math.round(radii[d+outImgDims]), img.max(d) );
+			//the current row, its image-units distances along the other axes
+			for (int d=1; d < outImgDims; ++d)
+				distVec[d] = pos[d]*resLen[d];
+
+			long runStart = Long.MIN_VALUE;
+			for (long x = min[0]; x <= max[0]+1; ++x)
+			{
+				distVec[0] = x*resLen[0];
+				final boolean isInside = x <= max[0] && markerShape.isInside(distVec, radius);
+				if (isInside && runStart == Long.MIN_VALUE) runStart = x;
+				else if (!isInside && runStart != Long.MIN_VALUE)
+				{
+					final long[] run = new long[outImgDims+1];
+					run[0] = runStart;
+					run[1] = x-1;
+					for (int d=1; d < outImgDims; ++d) run[d+1] = pos[d];
+					runs.add(run);
+					runStart = Long.MIN_VALUE;
+				}
+			}
 
-			if (spotMin[d] > spotMax[d])
+			//next row
+			int d = 1;
+			while (d < outImgDims && ++pos[d] > max[d] && d < outImgDims-1)
 			{
-				//no intersection along this axis
-				//System.out.println(" int-px sweeping box: no intersection");
-				return ;
+				pos[d] = min[d];
+				++d;
 			}
+			if (outImgDims == 1) break;
 		}
-		//System.out.println(" int-px sweeping box: "+Util.printCoordinates(spotMin)+" -> "+Util.printCoordinates(spotMax));
 
-		//NB: the tests above assure that spotMin and spotMax make sense and live inside the img
-		final Cursor<T> p = Views.interval(img, spotMin, spotMax).localizingCursor();
-		T voxelAtP;
-		while (p.hasNext())
+		return new Stencil(outImgDims, runs);
+	}
+
+	/** renders spots into an image, or into a sparse image, every
+	    rendering thread must use its own renderer */
+	private
+	class SpotRenderer
+	{
+		SpotRenderer(final Img<T> img)
+		{
+			this.ra = img.randomAccess();
+			this.sparseImg = null;
+			img.min(imgMin);
+			img.max(imgMax);
+		}
+
+		SpotRenderer(final SparseLabelImg sparseImg)
+		{
+			this.ra = null;
+			this.sparseImg = sparseImg;
+			for (int d=0; d < outImgDims; ++d)
+				imgMax[d] = sparseImg.dimension(d)-1;
+		}
+
+		//the rendering target, either of the two
+		private final RandomAccess<T> ra;
+		private final SparseLabelImg sparseImg;
+
+		private final long[] imgMin = new long[outImgDims];
+		private final long[] imgMax = new long[outImgDims];
+
+		private final long[] centre = new long[outImgDims]; //image coordinates (in voxel units)
+		private final long[] pos = new long[outImgDims];
+		private final RealPoint coord = new RealPoint(outImgDims); //aux tmp coordinate
+
+		void renderSpot(final AffineTransform3D transform, //world2img transform
+		                final SpotToRender spot)
 		{
-			//get next voxel
-			voxelAtP = p.next();
+			//the spot size and label
+			final double radius = spot.radius;
+			final int label = spot.label;
+
+			logService.trace("rendering spot "+spot.name
+			  +" with label "+label+", at "+Util.printCoordinates(spot.position)
+			  +" with radius="+radius);
 
-			//get it's (pixel) image coordinate, and convert to image-units distance vector
+			//project the spot's centre into the output image (coord in pixel units),
+			//and round it to the nearest pixel coord
+			transform.apply(spot.position, coord);
 			for (int d=0; d < outImgDims; ++d)
-				radii[d] = (p.getDoublePosition(d) - coord.getDoublePosition(d))*resLen[d];
+				centre[d] = Math.round(coord.getDoublePosition(d));
 
-			//if close to the spot's center, draw into this voxel
-			if (markerShape.isInside(radii, radius))
+			//stamp the marker's stencil around the centre, clipped to the img
+			final Stencil s = getStencil(radius);
+			for (int r = 0; r < s.noOfRuns; ++r)
 			{
-				if (voxelAtP.getRealDouble() > 0)
-					logService.warn("spot "+spot.getLabel()+" with label "+label
-					               +" is overwriting label "+voxelAtP.getRealDouble()
-					               +" at "+Util.printCoordinates(p));
-				voxelAtP.setReal(label);
+				boolean isInside = true;
+				for (int d=1; d < outImgDims && isInside; ++d)
+				{
+					pos[d] = centre[d] + s.rowOffsets[r*(outImgDims-1) + d-1];
+					if (pos[d] < imgMin[d] || pos[d] > imgMax[d]) isInside = false;
+				}
+				if (!isInside) continue;
+
+				final long xFrom = Math.max(centre[0] + s.xFrom[r], imgMin[0]);
+				final long xTo   = Math.min(centre[0] + s.xTo[r],   imgMax[0]);
+				if (xFrom > xTo) continue;
+
+				pos[0] = xFrom;
+				if (sparseImg != null)
+				{
+					final int overwritten = sparseImg.setLabelRun(pos, xTo, label);
+					if (overwritten > 0)
+						logService.warn("spot "+spot.name+" with label "+label
+						               +" is overwriting "+overwritten+" voxels of other labels"
+						               +" at "+Util.printCoordinates(pos)+" -> x="+xTo);
+					continue;
+				}
+
+				ra.setPosition(pos);
+				for (long x = xFrom; x <= xTo; ++x, ra.fwd(0))
+				{
+					final T voxelAtP = ra.get();
+					if (voxelAtP.getRealDouble() > 0)
+						logService.warn("spot "+spot.name+" with label "+label
+						               +" is overwriting label "+voxelAtP.getRealDouble()
+						               +" at "+Util.printCoordinates(ra));
+					voxelAtP.setReal(label);
+				}
 			}
 		}
 	}
@@ -8,8 +8,11 @@ import org.jhotdraw.samples.svg.gui.ProgressIndicator;
 
 import java.io.File;
 import java.io.IOException;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
 import java.util.concurrent.ExecutionException;
 
@@ -23,13 +26,10 @@ import org.scijava.plugin.Plugin;
 import org.scijava.plugin.Parameter;
 
 import net.imglib2.realtransform.AffineTransform3D;
-import net.imglib2.IterableInterval;
+import net.imglib2.RandomAccessibleInterval;
 import net.imglib2.RealInterval;
 
 import bdv.viewer.SourceAndConverter;
-import net.imglib2.Cursor;
-import net.imglib2.type.NativeType;
-import net.imglib2.type.numeric.RealType;
 import net.imglib2.util.LinAlgHelpers;
 
 import org.mastodon.revised.ui.util.FileChooser;
@@ -47,6 +47,7 @@ import de.mpicbg.ulman.ctc.Mastodon.util.ButtonHandler;
 import de.mpicbg.ulman.ctc.Mastodon.util.ImgProviders;
 import de.mpicbg.ulman.ctc.Mastodon.auxPlugins.FileTemplateProvider;
 import de.mpicbg.ulman.ctc.workers.TrackRecords;
+import de.mpicbg.ulman.ctc.util.LabelIndex;
 
 @Plugin( type = Command.class, name = "CTC format importer @ Mastodon" )
 public class ImporterPlugin
@@ -167,6 +168,10 @@ extends DynamicCommand
 	@Parameter(label = "Checks if created spots overlap with their markers significantly:")
 	boolean doMatchCheck = true;
 
+	@Parameter(label = "How many time points to read in parallel:", min = "1",
+	           description = "The images are read and their spots computed in parallel, the spots are added to Mastodon one time point after another.")
+	int readerThreads = Runtime.getRuntime().availableProcessors();
+
 
 	@Override
 	public void run()
@@ -219,12 +224,8 @@ extends DynamicCommand
 
 		new AbstractModelImporter< Model >( model ){{ startImport(); }};
 
-		//transformation used
-		final AffineTransform3D coordTransImg2World = new AffineTransform3D();
-
 		//some more dimensionality-based attributes
 		inImgDims = imgSource.numDimensions();
-		position = new int[inImgDims];
 
 		//volume and squared lengths of one voxel along all axes
 		resSqLen  = new double[inImgDims];
@@ -242,17 +243,42 @@ extends DynamicCommand
 		nSpot = modelGraph.vertices().createRef();
 		oSpot = modelGraph.vertices().createRef();
 
+		//the images are read, and their spots computed, in parallel at most
+		//'readerThreads' time points ahead of the time point being inserted
+		final ExecutorService readers = Executors.newFixedThreadPool(readerThreads);
+		final ArrayDeque<Future<FrameSpots>> readSpots = new ArrayDeque<>(readerThreads);
+		int nextToRead = timeFrom;
+
 		try
 		{
 
-		//iterate through time points and extract spots
+		//iterate through time points and insert their spots (in this thread only)
 		for (int time = timeFrom; time <= timeTill && isCanceled() == false && !pbtnHandler.buttonPressed(); ++time)
 		{
+			for (; nextToRead <= timeTill && nextToRead < time+readerThreads; ++nextToRead)
+			{
+				final int readTime = nextToRead;
+				readSpots.add( readers.submit( () -> computeSpots(imgSource, readTime) ) );
+			}
+
 			logService.info("Processing time point : "+time);
 
-			imgSource.getSourceTransform(time, coordTransImg2World);
-			readSpots( (IterableInterval)imgSource.getImage(time),
-			           time, coordTransImg2World, modelGraph, tracks );
+			final FrameSpots spots;
+			try
+			{
+				spots = readSpots.poll().get();
+			}
+			catch (InterruptedException e) {
+				this.cancel("cancel requested");
+				break;
+			}
+			catch (ExecutionException e) {
+				//NB: typically the IllegalArgumentException from the ImgProvider
+				if (e.getCause() instanceof RuntimeException) throw (RuntimeException)e.getCause();
+				throw new RuntimeException(e.getCause());
+			}
+
+			insertSpots( spots, time, modelGraph, tracks );
 
 			pbar.setProgress(time+1-timeFrom);
 		}
@@ -260,6 +286,8 @@ extends DynamicCommand
 		}
 		finally
 		{
+			readers.shutdownNow();
+
 			pbtn.removeActionListener(pbtnHandler);
 			pbframe.dispose();
 
@@ -275,95 +303,77 @@ extends DynamicCommand
 
 	//some shortcut variables worth remembering
 	private int inImgDims = -1;
-	private int[] position;         //aux px coordinate
 	private double[] resSqLen;      //aux 1px square lengths
 	private double   resVolume;     //aux 1px volume
 	private double   resArea;       //aux 1px xy-plane area
 	private IntRefMap< Spot > recentlyUsedSpots;
 	private Spot nSpot,oSpot;       //spots references
 	private Link linkRef;           //link reference
-	final private double[][] cov = new double[3][3];
-	final private double[][] T   = new double[3][3];
-	final private double[][] Tc  = new double[3][3];
-
-	private <T extends NativeType<T> & RealType<T>>
-	void readSpots(final IterableInterval<T> img, final int time,
-	               final AffineTransform3D transform,
-	               final ModelGraph modelGraph, final TrackRecords tracks)
-	{
-		//description of a marker:
-		class Marker
-		{
-			Marker(final T l)
-			{
-				label = l.copy();
-				accCoords = new double[inImgDims];
-			}
 
-			//label (voxel value) of this marker
-			final T label;
-
-			//volume/area of the marker
-			long size;
-
-			//overlap of this marker with its corresponding spot
-			long markerOverlap;
-
-			//accumulated coordinates
-			double[] accCoords;
-
-			//z-coordinate span
-			int minZ=inImgDims < 3 ? 0 : Integer.MAX_VALUE;
-			int maxZ=inImgDims < 3 ? 0 : Integer.MIN_VALUE;
-		}
-
-		//markers discovered in this image
-		HashMap<T,Marker> currentMarkers = new HashMap<>(100);
+	/** the spots of one time point, as computed from its markers: the labels, the
+	    spots' centres and covariances (in Mastodon's world coordinates), and if the
+	    spots do not cover their markers well, all indexed in the order of discovery */
+	private static
+	class FrameSpots
+	{
+		final int[] labels;
+		final double[][] centres;
+		final double[][][] covs;
+		final boolean[] isNotCovering;
 
-		//sweep the image and define the markers
-		final Cursor<T> voxelCursor = img.localizingCursor();
-		while (voxelCursor.hasNext())
-		if (voxelCursor.next().getRealFloat() > 0)
+		FrameSpots(final int noOfSpots)
 		{
-			//get functional reference on a marker description
-			Marker m = currentMarkers.get(voxelCursor.get());
-			if (m == null)
-			{
-				m = new Marker( voxelCursor.get() );
-				currentMarkers.put(m.label, m);
-			}
-
-			//update it...
-			m.size++;
-
-			voxelCursor.localize(position);
-			for (int i=0; i < inImgDims; ++i)
-				m.accCoords[i] += position[i];
-
-			if (inImgDims > 2)
-			{
-				m.minZ = position[2] < m.minZ ? position[2] : m.minZ;
-				m.maxZ = position[2] > m.maxZ ? position[2] : m.maxZ;
-			}
+			labels = new int[noOfSpots];
+			centres = new double[noOfSpots][3];
+			covs = new double[noOfSpots][3][3];
+			isNotCovering = new boolean[noOfSpots];
 		}
+	}
 
-		//process markers and create respective spots in Mastodon
-		for (final Marker m : currentMarkers.values())
+	/** reads the image at the given time point, and computes its spots,
+	    it can be called from more threads in parallel */
+	private
+	FrameSpots computeSpots(final ImgProviders.ImgProvider imgSource, final int time)
+	{
+		//transformation used
+		final AffineTransform3D transform = new AffineTransform3D();
+		imgSource.getSourceTransform(time, transform);
+
+		//sweep the image and define the markers:
+		//their sizes, geometrical centres and bounding boxes,
+		//and their runs if the markers shall be checked against their spots
+		final LabelIndex markers = new LabelIndex((RandomAccessibleInterval)imgSource.getImage(time), doMatchCheck);
+		final double[] centre = new double[Math.max(inImgDims,3)];
+		final long[] minBound = new long[inImgDims];
+		final long[] maxBound = new long[inImgDims];
+		final double[][] T  = new double[3][3];
+		final double[][] Tc = new double[3][3];
+
+		final FrameSpots spots = new FrameSpots(markers.getNoOfLabels());
+
+		//process markers and define their spots
+		for (int mi = 0; mi < markers.getNoOfLabels(); ++mi)
 		{
-			final int label = (int)m.label.getRealFloat();
+			final int label = markers.getLabel(mi);
+			final long size = markers.getVoxelCount(label);
+			final double[][] cov = spots.covs[mi];
+
+			//the geometrical centre coordinate (img coords, in px)
+			markers.getCentre(label, centre);
 
-			//finalize the geometrical centre coordinate (img coords, in px)
-			for (int i=0; i < inImgDims; ++i)
-				m.accCoords[i] /= m.size;
+			//z-coordinate span
+			markers.getAABB(label, minBound,maxBound);
+			final long minZ = inImgDims < 3 ? 0 : minBound[2];
+			final long maxZ = inImgDims < 3 ? 0 : maxBound[2];
 
 			//convert the coordinate into Mastodon's world coordinate
-			transform.apply(m.accCoords,m.accCoords);
+			transform.apply(centre,centre);
 
 			//estimate radius...
-			if (m.minZ == m.maxZ)
+			if (minZ == maxZ)
 			{
 				//...as if marker is 2D
-				final double r = Math.sqrt( resArea * (double)m.size / Math.PI );
+				final double r = Math.sqrt( resArea * (double)size / Math.PI );
 				cov[0][0] = r*r / resSqLen[0];
 				cov[1][1] = r*r / resSqLen[1];
 				cov[2][2] = 0.5;
@@ -372,15 +382,12 @@ extends DynamicCommand
 			else
 			{
 				//...as if marker is 3D
-				final double r = Math.cbrt( 0.75 * resVolume * (double)m.size / Math.PI );
+				final double r = Math.cbrt( 0.75 * resVolume * (double)size / Math.PI );
 				cov[0][0] = r*r / resSqLen[0];
 				cov[1][1] = r*r / resSqLen[1];
 				cov[2][2] = r*r / resSqLen[2];
 			}
-			//reset non-diagonal elements
-			cov[0][1] = 0; cov[0][2] = 0;
-			cov[1][0] = 0; cov[1][2] = 0;
-			cov[2][0] = 0; cov[2][1] = 0;
+			//NB: non-diagonal elements are zero
 
 			//adapt the canonical/img-based covariance to Mastodon's world coordinate system
 			for ( int r = 0; r < 3; ++r )
@@ -389,8 +396,73 @@ extends DynamicCommand
 			LinAlgHelpers.mult( T, cov, Tc );
 			LinAlgHelpers.multABT( Tc, T, cov );
 
-			//System.out.println("adding spot at "+Util.printCoordinates(m.accCoords)+" with label="+label);
-			nSpot = modelGraph.addVertex( nSpot ).init( time, m.accCoords, cov );
+			spots.labels[mi] = label;
+			System.arraycopy(centre,0, spots.centres[mi],0, 3);
+		}
+
+		//check markers vs. their spots how well do they overlap
+		if (doMatchCheck)
+		{
+			final long[] runPos = new long[inImgDims];
+			final double[] positionV = new double[3];
+
+			//over the markers, and over their voxels given with the runs (no other sweep of the image)
+			for (int mi = 0; mi < markers.getNoOfLabels(); ++mi)
+			{
+				final int label = markers.getLabel(mi);
+
+				//the marker's spot
+				final double[] positionS = spots.centres[mi];
+				final double[][] cov = spots.covs[mi];
+
+				long markerOverlap = 0;
+				for (int r = 0; r < markers.getNoOfRuns(label); ++r)
+				{
+					markers.getRunPosition(label, r, runPos);
+					final long runLength = markers.getRunLength(label, r);
+					for (long x = 0; x < runLength; ++x)
+					{
+						//Mastodon's world coordinate of this voxel (of this voxel's centre)
+						positionV[0] = runPos[0] + x;
+						for (int i=1; i < 3; ++i)
+							positionV[i] = i < inImgDims ? runPos[i] : 0;
+						transform.apply(positionV, positionV);
+
+						double sum=0;
+						for (int i=0; i < inImgDims && i < 3; ++i)
+						{
+							positionV[i] -= positionS[i];
+							positionV[i] *= positionV[i];
+							positionV[i] /= cov[i][i];
+							sum += positionV[i];
+						}
+
+						//is the voxel "covered" with the spot?
+						if (sum <= 1.0) ++markerOverlap;
+					}
+				}
+
+				//check the matching criterion
+				//System.out.println(label+": "+markerOverlap+" / "+markers.getVoxelCount(label));
+				spots.isNotCovering[mi] = 2*markerOverlap < markers.getVoxelCount(label);
+			}
+		}
+
+		return spots;
+	}
+
+	/** creates the spots of the given time point in Mastodon, and links them
+	    to their previous occurrences, must be called in the order of time points */
+	private
+	void insertSpots(final FrameSpots spots, final int time,
+	                 final ModelGraph modelGraph, final TrackRecords tracks)
+	{
+		for (int mi = 0; mi < spots.labels.length; ++mi)
+		{
+			final int label = spots.labels[mi];
+
+			//System.out.println("adding spot at "+Util.printCoordinates(spots.centres[mi])+" with label="+label);
+			nSpot = modelGraph.addVertex( nSpot ).init( time, spots.centres[mi], spots.covs[mi] );
 
 			if (recentlyUsedSpots.containsKey(label))
 			{
@@ -419,51 +491,12 @@ extends DynamicCommand
 			//NB: we shall not remove finished tracks until we're sure they are no longer parents to some future tracks
 		}
 
-		//check markers vs. created spots how well do they overlap
-		if (doMatchCheck)
-		{
-			final double[] positionV = new double[inImgDims];
-			final double[] positionS = new double[inImgDims];
-
-			//sweep the image and define the markers
-			voxelCursor.reset();
-			while (voxelCursor.hasNext())
-			if (voxelCursor.next().getRealFloat() > 0)
-			{
-				//Mastodon's world coordinate of this voxel (of this voxel's centre)
-				voxelCursor.localize(positionV);
-				transform.apply(positionV, positionV);
-
-				//found some marker voxel, find its spot,
-				//and increase overlap counter if voxel falls into the spot
-				recentlyUsedSpots.get((int)voxelCursor.get().getRealFloat(), nSpot);
-				nSpot.localize(positionS);
-				nSpot.getCovariance(cov);
-
-				double sum=0;
-				for (int i=0; i < inImgDims && i < 3; ++i)
-				{
-					positionV[i] -= positionS[i];
-					positionV[i] *= positionV[i];
-					positionV[i] /= cov[i][i];
-					sum += positionV[i];
-				}
-
-				//is the voxel "covered" with the spot?
-				if (sum <= 1.0)
-					currentMarkers.get(voxelCursor.get()).markerOverlap++;
-			}
-
-			//now scan over the markers and check the matching criterion
-			for (final Marker m : currentMarkers.values())
-			{
-				//System.out.println((int)m.label.getRealFloat()+": "+m.markerOverlap+" / "+m.size);
-				if (2*m.markerOverlap < m.size)
-					logService.error("time "+time
-					                  +": spot "+recentlyUsedSpots.get((int)m.label.getRealFloat(),nSpot).getLabel()
-					                  +" does not cover image marker "+(int)m.label.getRealFloat());
-			}
-		}
+		//report the markers that are not well covered by their spots
+		for (int mi = 0; mi < spots.labels.length; ++mi)
+			if (spots.isNotCovering[mi])
+				logService.error("time "+time
+				                  +": spot "+recentlyUsedSpots.get(spots.labels[mi],nSpot).getLabel()
+				                  +" does not cover image marker "+spots.labels[mi]);
 	}
 
 
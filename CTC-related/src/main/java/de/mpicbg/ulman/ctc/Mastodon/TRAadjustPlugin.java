@@ -2,7 +2,9 @@ package de.mpicbg.ulman.ctc.Mastodon;
 
 import mpicbg.spim.data.sequence.VoxelDimensions;
 import net.imglib2.RandomAccess;
+import net.imglib2.RandomAccessibleInterval;
 import net.imglib2.type.numeric.RealType;
+import net.imglib2.util.Intervals;
 
 import org.scijava.log.LogService;
 import org.scijava.command.Command;
@@ -12,9 +14,24 @@ import org.scijava.plugin.Parameter;
 
 import net.imglib2.realtransform.AffineTransform3D;
 
+import org.mastodon.collection.RefCollections;
+import org.mastodon.collection.RefList;
 import org.mastodon.revised.mamut.MamutAppModel;
+import org.mastodon.revised.model.mamut.ModelGraph;
 import org.mastodon.revised.model.mamut.Spot;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import de.mpicbg.ulman.ctc.Mastodon.util.BoxArgMaxFilter;
 import de.mpicbg.ulman.ctc.Mastodon.util.ImgProviders;
 
 @Plugin( type = Command.class, name = "CTC TRA marker positions auto adjuster @ Mastodon" )
@@ -45,26 +62,78 @@ extends DynamicCommand
 	           description = "This is useful mainly only when many spots are adjusted in one go.")
 	boolean reportStats = false;
 
+	@Parameter(label = "How many time points to keep in memory:", min="1",
+	           description = "The selected spots are visited in no particular order, images of recently visited time points are reused. "
+	                       + "Not used with the spots grouped by time points, every time point is then visited only once.")
+	int cachedTimepoints = 10;
+
+	@Parameter(label = "How many next time points (with selected spots) to read ahead:", min="0")
+	int readAheadTimepoints = 1;
+
+	@Parameter(label = "Adjust spots grouped by time points, in parallel:",
+	           description = "Every time point is then visited only once, and its spots are adjusted in parallel.")
+	boolean doGroupByTimepoints = true;
+
+	@Parameter(label = "Number of threads to adjust spots:", min="1")
+	int noOfThreads = Runtime.getRuntime().availableProcessors();
+
+	@Parameter(label = "Search with a box max-filter computed per image tile:",
+	           description = "Faster for many spots close to each other. Only with the spots grouped by time points, "
+	                       + "and if the search box size is not multiplied. Every thread holds up to 44 MB of a 3D tile.")
+	boolean doUseMaxFilter = false;
+
+	/** the max-filter of one tile (together with the reach of the search around it)
+	    is not computed over more voxels than this, that is 44 MB for 3D images as the
+	    filter holds 8+3 bytes per voxel, and every thread holds one tile at a time */
+	static final long MAX_FILTER_VOXELS = 1L << 22;
+
+	/** the image of a time point is copied into memory (rather than accessed lazily,
+	    which loads only the cells around the search boxes) only if the search boxes
+	    of its spots cover at least this fraction of the image */
+	static final double MIN_BOXES_COVERAGE_TO_COPY = 0.125;
+
+	/** the fraction of the JVM's memory the cached images can hold together */
+	static final double MAX_CACHE_MEMORY_FRACTION = 0.25;
+
 	@Override
 	public void run()
 	{
 		if (appModel.getSelectionModel().getSelectedVertices().size() == 0) return;
 
+		//the number of the selected spots per time point
+		final ModelGraph modelGraph = appModel.getModel().getGraph();
+		final TreeMap<Integer,Integer> noOfSpotsPerTime = new TreeMap<>();
+		modelGraph.getLock().readLock().lock();
+		try
+		{
+			for (Spot spot : appModel.getSelectionModel().getSelectedVertices())
+				noOfSpotsPerTime.merge(spot.getTimepoint(), 1, Integer::sum);
+		}
+		finally
+		{
+			modelGraph.getLock().readLock().unlock();
+		}
+
 		//TODO: provide the view choosing dialog
-		final ImgProviders.ImgProvider imgSource
-			= new ImgProviders.ImgProviderFromMastodon(appModel.getSharedBdvData().getSources().get(0).getSpimSource(),0);
+		//NB: every time point is visited only once when grouped, only the read ahead ones are then kept
+		final ImgProviders.CachingImgProvider imgSource = new ImgProviders.CachingImgProvider(
+			new ImgProviders.ImgProviderFromMastodon(appModel.getSharedBdvData().getSources().get(0).getSpimSource(),0),
+			doGroupByTimepoints ? 1+readAheadTimepoints : cachedTimepoints,
+			(long)(MAX_CACHE_MEMORY_FRACTION * Runtime.getRuntime().maxMemory()),
+			readAheadTimepoints,
+			(time,img) -> isWorthCopying(noOfSpotsPerTime.get(time), img) );
 			//NB: we rely on the fact the time point 0 has metadata representative of the rest of the time lapse sequence
+			//NB: the BDV sources are lazy views, the images with many spots are thus copied into memory (so that
+			//    the voxels are really read ahead and are not reloaded once evicted from the BDV's cache)
+		imgSource.setReadAheadOrder( noOfSpotsPerTime::higherKey );
 
 		//some more dimensionality-based attributes
-		final int inImgDims = imgSource.numDimensions();
-		final int[]    posPx = new int[inImgDims];
-		final double[] posUm = new double[inImgDims];
+		inImgDims = imgSource.numDimensions();
+		pixelSize = imgSource.getVoxelDimensions();
 
-		final long[] imgBounds = new long[inImgDims];
+		/*
 		final int[] radiusPx = new int[inImgDims];
 		getPxHalfBoxSize(radiusPx,boxSizeUM,imgSource.getVoxelDimensions());
-
-		/*
 		logService.info("Considering resolution: "+imgSource.getVoxelDimensions().dimension(0)
 		               +" x "+imgSource.getVoxelDimensions().dimension(1)
 		               +" x "+imgSource.getVoxelDimensions().dimension(2)
@@ -74,24 +143,84 @@ extends DynamicCommand
 		               +" x "+radiusPx[2]);
 		*/
 
-		//transformation
-		final AffineTransform3D coordTransImg2World = new AffineTransform3D();
-
 		//stats:
-		final int[] cntsPerDist = new int[20];
-		final int[] cntsPerIter = new int[safetyMaxIters+1];
+		cntsPerDist = new int[20];
+		cntsPerIter = new int[safetyMaxIters+1];
 
 		//"progress bar"
-		final long pbSize = appModel.getSelectionModel().getSelectedVertices().size();
-		final long pbReportChunk = Math.max( pbSize / 10, 1 );
-		long pbDone = 0;
+		pbSize = appModel.getSelectionModel().getSelectedVertices().size();
+		pbReportChunk = Math.max( pbSize / 10, 1 );
+		pbDone = 0;
+
+		if (doGroupByTimepoints)
+			adjustGroupedByTimepoints(imgSource);
+		else
+			adjustInSelectionOrder(imgSource);
+
+		imgSource.close();
+
+		if (reportStats)
+		{
+			logService.info(imgSource.printStats());
+			logService.info("Histogram with bins of 1px distance:");
+			for (int i=0; i < cntsPerDist.length; ++i)
+				logService.info(i+" px:\t"+cntsPerDist[i]);
+
+			logService.info("Histogram with bins of 1 iteration:");
+			for (int i=0; i < cntsPerIter.length; ++i)
+				logService.info(i+" iters:\t"+cntsPerIter[i]);
+		}
+	}
+
+
+	//some shortcut variables worth remembering
+	private int inImgDims;
+	private VoxelDimensions pixelSize;
+
+	//stats:
+	private int[] cntsPerDist;
+	private int[] cntsPerIter;
+
+	//"progress bar"
+	private long pbSize, pbReportChunk, pbDone;
+
+
+	/** returns true if the search boxes of the 'noOfSpots' spots cover enough of the
+	    (lazy) image 'img' for a full in-memory copy of it to be cheaper than accessing it */
+	private
+	boolean isWorthCopying(final Integer noOfSpots, final RandomAccessibleInterval<?> img)
+	{
+		if (noOfSpots == null) return false;
+
+		final int[] radiusPx = new int[inImgDims];
+		getPxHalfBoxSize(radiusPx,boxSizeUM,pixelSize);
+		double boxesVoxels = noOfSpots;
+		for (int d = 0; d < inImgDims; ++d) boxesVoxels *= 2*radiusPx[d]+1;
+
+		return boxesVoxels >= MIN_BOXES_COVERAGE_TO_COPY * (double)Intervals.numElements(img);
+	}
+
+
+	/** the original mode: visits the selected spots one by one, in the order of the selection */
+	private
+	void adjustInSelectionOrder(final ImgProviders.ImgProvider imgSource)
+	{
+		final int[]    posPx = new int[inImgDims];
+		final double[] posUm = new double[inImgDims];
+
+		final long[] imgBounds = new long[inImgDims];
+		final int[] radiusPx = new int[inImgDims];
+
+		//transformation
+		final AffineTransform3D coordTransImg2World = new AffineTransform3D();
 
 		//scan over all selected spots
 		for (Spot spot : appModel.getSelectionModel().getSelectedVertices())
 		{
 			//get current image data
-			final RandomAccess<? extends RealType<?>> ra = (RandomAccess)imgSource.getImage(spot.getTimepoint()).randomAccess();
-			imgSource.getImage(spot.getTimepoint()).dimensions( imgBounds );
+			final RandomAccessibleInterval<?> img = imgSource.getImage(spot.getTimepoint());
+			final RandomAccess<? extends RealType<?>> ra = (RandomAccess)img.randomAccess();
+			img.dimensions( imgBounds );
 
 			//get current image->world coords transformation
 			imgSource.getSourceTransform(spot.getTimepoint(), coordTransImg2World);
@@ -99,102 +228,374 @@ extends DynamicCommand
 			//get current image coordinate
 			spot.localize(posUm);                           //real world coord
 			coordTransImg2World.applyInverse(posUm,posUm);  //real img coord
-			for (int d = 0; d < inImgDims; ++d)
-				posPx[d] = (int)Math.round( posUm[d] );      //int img coord
 
-			//start scanning around the posPx
-			ra.setPosition(posPx);
+			final int iters = findLocalMax(ra, imgBounds, posUm, posPx, radiusPx);
+			updateSpot(spot, posUm, posPx, iters, coordTransImg2World);
+		}
+	}
 
-			//find the local max intensity
-			double lastBestInt = -1;
-			double tmpInt;
-			//NB: posUm will hold the px pos realizing the current local max intensity
+	/**
+	 * Groups the selected spots by their time points, and visits every time point
+	 * only once: the local maxima of all its spots are searched in parallel, and
+	 * the spots are then updated at once while the model graph is locked.
+	 */
+	private
+	void adjustGroupedByTimepoints(final ImgProviders.ImgProvider imgSource)
+	{
+		final ModelGraph modelGraph = appModel.getModel().getGraph();
 
-			boolean sawDrift = false;
-			double currBoxSize = boxSizeUM;
-			int iters = 0;
-			do {
-				if (sawDrift)
-				{
-					//if we got here, this is not the first round then
-					currBoxSize *= repeatBoxSizeFact;
-					getPxHalfBoxSize(radiusPx,currBoxSize,imgSource.getVoxelDimensions());
+		//group the selected spots by their time points
+		final TreeMap<Integer,RefList<Spot>> spotsPerTime = new TreeMap<>();
+		modelGraph.getLock().readLock().lock();
+		try
+		{
+			for (Spot spot : appModel.getSelectionModel().getSelectedVertices())
+				spotsPerTime.computeIfAbsent( spot.getTimepoint(),
+				                              t -> RefCollections.createRefList(modelGraph.vertices(),100) ).add(spot);
+		}
+		finally
+		{
+			modelGraph.getLock().readLock().unlock();
+		}
 
-					for (int d = 0; d < inImgDims; ++d)
-						ra.setPosition( (int)Math.round( posUm[d] ), d );
+		final ExecutorService workers = Executors.newFixedThreadPool(noOfThreads);
+		final Spot spot = modelGraph.vertices().createRef();
+		final AffineTransform3D coordTransImg2World = new AffineTransform3D();
+		try
+		{
+			for (Map.Entry<Integer,RefList<Spot>> timeSpots : spotsPerTime.entrySet())
+			{
+				final int time = timeSpots.getKey();
+				final RefList<Spot> spots = timeSpots.getValue();
+				final int noOfSpots = spots.size();
+
+				//get current image data, and image->world coords transformation
+				final RandomAccessibleInterval<?> img = imgSource.getImage(time);
+				final long[] imgBounds = new long[inImgDims];
+				img.dimensions( imgBounds );
+				imgSource.getSourceTransform(time, coordTransImg2World);
+
+				//get current image coordinates of all spots
+				final double[][] posUm = new double[noOfSpots][inImgDims];
+				final int[][]    posPx = new int[noOfSpots][inImgDims];
+				final int[]      iters = new int[noOfSpots];
+				for (int i = 0; i < noOfSpots; ++i)
+				{
+					spots.get(i, spot).localize(posUm[i]);            //real world coord
+					coordTransImg2World.applyInverse(posUm[i],posUm[i]); //real img coord
 				}
 
-				sawDrift = false;
-				ra.move(-radiusPx[2],2);
-				for (int dzPx = -radiusPx[2]; dzPx <= +radiusPx[2]; ++dzPx)
-				{
-				ra.move(-radiusPx[1],1);
-				for (int dyPx = -radiusPx[1]; dyPx <= +radiusPx[1]; ++dyPx)
+				//search in parallel, every worker over the spots of one image tile with
+				//the max-filter of the tile, or over its own contiguous chunk of the spots
+				final ArrayList<Callable<Void>> tasks = new ArrayList<>(noOfThreads);
+				if (doUseMaxFilter && repeatBoxSizeFact == 1.0)
+					addMaxFilterTasks(tasks, img, imgBounds, posUm, posPx, iters);
+
+				final int chunkSize = (noOfSpots + noOfThreads -1) / noOfThreads;
+				for (int from = 0; from < noOfSpots && tasks.isEmpty(); from += chunkSize)
 				{
-				ra.move(-radiusPx[0],0);
-				for (int dxPx = -radiusPx[0]; dxPx <= +radiusPx[0]; ++dxPx)
+					final int chunkFrom = from;
+					final int chunkTill = Math.min(from+chunkSize, noOfSpots);
+					tasks.add( () -> {
+						final RandomAccess<? extends RealType<?>> ra = (RandomAccess)img.randomAccess();
+						final int[] radiusPx = new int[inImgDims];
+						for (int i = chunkFrom; i < chunkTill; ++i)
+							iters[i] = findLocalMax(ra, imgBounds, posUm[i], posPx[i], radiusPx);
+						return null;
+					} );
+				}
+				for (Future<Void> f : workers.invokeAll(tasks)) f.get();
+
+				//write the adjusted positions back
+				modelGraph.getLock().writeLock().lock();
+				try
 				{
-					boolean isOutsideImg = false;
-					if (posUm[0]+dxPx < 0 || posUm[0]+dxPx >= imgBounds[0]) isOutsideImg = true;
-					if (posUm[1]+dyPx < 0 || posUm[1]+dyPx >= imgBounds[1]) isOutsideImg = true;
-					if (posUm[2]+dzPx < 0 || posUm[2]+dzPx >= imgBounds[2]) isOutsideImg = true;
-
-					tmpInt = !isOutsideImg ? ra.get().getRealDouble() : -1;
-					if (tmpInt > lastBestInt)
-					{
-						lastBestInt = tmpInt;
-						ra.localize(posUm);
-						sawDrift = dxPx != 0 || dyPx != 0 || dzPx != 0 ? true : false;
-					}
-					ra.move(1,0);
+					for (int i = 0; i < noOfSpots; ++i)
+						updateSpot(spots.get(i, spot), posUm[i], posPx[i], iters[i], coordTransImg2World);
 				}
-				ra.move(-radiusPx[0]-1,0);
-				ra.move(+1            ,1);
+				finally
+				{
+					modelGraph.getLock().writeLock().unlock();
 				}
-				ra.move(-radiusPx[1]-1,1);
-				ra.move(+1            ,2);
+			}
+		}
+		catch (InterruptedException e) {
+			logService.warn("Adjusting of the spots was interrupted.");
+		}
+		catch (ExecutionException e) {
+			logService.error("Adjusting of the spots failed: "+e.getCause().getMessage());
+		}
+		finally
+		{
+			workers.shutdownNow();
+			modelGraph.vertices().releaseRef(spot);
+		}
+	}
+
+
+	/**
+	 * Finds the local max intensity in the search box around the (real) image
+	 * coordinate \e posUm, the search is possibly repeated around the found max.
+	 * Returns the number of iterations, \e posUm holds the px pos realizing
+	 * the found local max intensity, and \e posPx the (rounded) initial pos.
+	 * The \e radiusPx is only a working array. This method can be called from
+	 * more threads in parallel, given every thread has its own \e ra and arrays.
+	 */
+	private
+	int findLocalMax(final RandomAccess<? extends RealType<?>> ra, final long[] imgBounds,
+	                 final double[] posUm, final int[] posPx, final int[] radiusPx)
+	{
+		for (int d = 0; d < inImgDims; ++d)
+			posPx[d] = (int)Math.round( posUm[d] );      //int img coord
+
+		//start scanning around the posPx
+		ra.setPosition(posPx);
+		getPxHalfBoxSize(radiusPx,boxSizeUM,pixelSize);
+
+		//find the local max intensity
+		double lastBestInt = -1;
+		double tmpInt;
+		//NB: posUm will hold the px pos realizing the current local max intensity
+
+		boolean sawDrift = false;
+		double currBoxSize = boxSizeUM;
+		int iters = 0;
+		do {
+			if (sawDrift)
+			{
+				//if we got here, this is not the first round then
+				currBoxSize *= repeatBoxSizeFact;
+				getPxHalfBoxSize(radiusPx,currBoxSize,pixelSize);
+
+				for (int d = 0; d < inImgDims; ++d)
+					ra.setPosition( (int)Math.round( posUm[d] ), d );
+			}
+
+			sawDrift = false;
+			ra.move(-radiusPx[2],2);
+			for (int dzPx = -radiusPx[2]; dzPx <= +radiusPx[2]; ++dzPx)
+			{
+			ra.move(-radiusPx[1],1);
+			for (int dyPx = -radiusPx[1]; dyPx <= +radiusPx[1]; ++dyPx)
+			{
+			ra.move(-radiusPx[0],0);
+			for (int dxPx = -radiusPx[0]; dxPx <= +radiusPx[0]; ++dxPx)
+			{
+				boolean isOutsideImg = false;
+				if (posUm[0]+dxPx < 0 || posUm[0]+dxPx >= imgBounds[0]) isOutsideImg = true;
+				if (posUm[1]+dyPx < 0 || posUm[1]+dyPx >= imgBounds[1]) isOutsideImg = true;
+				if (posUm[2]+dzPx < 0 || posUm[2]+dzPx >= imgBounds[2]) isOutsideImg = true;
+
+				tmpInt = !isOutsideImg ? ra.get().getRealDouble() : -1;
+				if (tmpInt > lastBestInt)
+				{
+					lastBestInt = tmpInt;
+					ra.localize(posUm);
+					sawDrift = dxPx != 0 || dyPx != 0 || dzPx != 0 ? true : false;
 				}
+				ra.move(1,0);
+			}
+			ra.move(-radiusPx[0]-1,0);
+			ra.move(+1            ,1);
+			}
+			ra.move(-radiusPx[1]-1,1);
+			ra.move(+1            ,2);
+			}
 
-				++iters;
-			} while (repeatUntilNoChange && sawDrift && iters < safetyMaxIters);
+			++iters;
+		} while (repeatUntilNoChange && sawDrift && iters < safetyMaxIters);
 
-			//if repeatUntilNoChange is true, iters will show one round more (the one that had to confirm no change -> sawDrift == false)
-			if (repeatUntilNoChange && !sawDrift) --iters;
+		//if repeatUntilNoChange is true, iters will show one round more (the one that had to confirm no change -> sawDrift == false)
+		if (repeatUntilNoChange && !sawDrift) --iters;
 
-			//first update the spot's label (while the coords are still in px units)
-			double dist=0;
-			for (int d = 0; d < inImgDims; ++d)
+		return iters;
+	}
+
+	/**
+	 * Groups the spots, given with their (real) image coordinates \e posUm, by the
+	 * tiles of the image, and adds a task per tile that searches its spots with the
+	 * max-filter computed over the region the search can reach from them. The box
+	 * scan is used instead for the tiles where the filter would cost more than
+	 * scanning the boxes of its spots. Nothing is added if the search reaches too
+	 * far for the filter, the arrays \e posPx and \e iters are filled by the tasks.
+	 */
+	private
+	void addMaxFilterTasks(final List<Callable<Void>> tasks, final RandomAccessibleInterval<?> img,
+	                       final long[] imgBounds, final double[][] posUm, final int[][] posPx, final int[] iters)
+	{
+		final int[] radiusPx = new int[inImgDims];
+		getPxHalfBoxSize(radiusPx,boxSizeUM,pixelSize);
+
+		//every search iteration moves at most by the box half-size
+		final int maxIters = repeatUntilNoChange ? Math.max(safetyMaxIters,1) : 1;
+		final long[] reach = new long[inImgDims];
+		long boxVoxels = 1;
+		for (int d = 0; d < inImgDims; ++d)
+		{
+			if (radiusPx[d] > BoxArgMaxFilter.MAX_RADIUS)
 			{
-				posPx[d] = (int)posUm[d] - posPx[d];
-				dist += posPx[d]*posPx[d];
+				logService.info("The search box is too large for the max-filter, scanning the search boxes instead.");
+				return;
 			}
-			dist = Math.min( Math.sqrt(dist), cntsPerDist.length-1 );
+			reach[d] = (long)radiusPx[d] * maxIters;
+			boxVoxels *= 2*radiusPx[d]+1;
+		}
 
-			++cntsPerDist[(int)dist];
-			++cntsPerIter[iters];
+		final int tileSize = getMaxFilterTileSize(imgBounds, reach);
+		if (tileSize == 0)
+		{
+			logService.info("The search reaches too far for the max-filter, scanning the search boxes instead.");
+			return;
+		}
 
-			spot.setLabel( spot.getLabel()+"+("+posPx[0]+","+posPx[1]+","+posPx[2]+")@"+iters );
-			//NB: where did inImgDims go?
+		//the spots per tile, the spots outside the image go into the nearest tile
+		final TreeMap<Long,ArrayList<Integer>> tiles = new TreeMap<>();
+		for (int i = 0; i < posUm.length; ++i)
+		{
+			long tile = 0;
+			for (int d = inImgDims-1; d >= 0; --d)
+			{
+				final long p = Math.min(Math.max(Math.round(posUm[i][d]), img.min(d)), img.max(d));
+				tile = tile * (imgBounds[d]/tileSize +1) + (p - img.min(d))/tileSize;
+			}
+			tiles.computeIfAbsent(tile, t -> new ArrayList<>()).add(i);
+		}
 
-			//convert the best obtained px image coord into real world coord
-			coordTransImg2World.apply(posUm,posUm);
-			spot.setPosition(posUm);
+		for (ArrayList<Integer> spots : tiles.values())
+		{
+			//the region the search can reach from the spots of this tile
+			final long[] min = new long[inImgDims];
+			final long[] max = new long[inImgDims];
+			Arrays.fill(min, Long.MAX_VALUE);
+			Arrays.fill(max, Long.MIN_VALUE);
+			for (int i : spots)
+				for (int d = 0; d < inImgDims; ++d)
+				{
+					min[d] = Math.min(min[d], Math.round(posUm[i][d]));
+					max[d] = Math.max(max[d], Math.round(posUm[i][d]));
+				}
+
+			long size = 1;
+			for (int d = 0; d < inImgDims; ++d)
+			{
+				min[d] = Math.max(min[d] - reach[d], img.min(d));
+				max[d] = Math.min(max[d] + reach[d], img.max(d));
+				size *= Math.max(max[d]-min[d]+1, 0);
+			}
 
-			++pbDone;
-			if ((pbDone % pbReportChunk) == 0)
-				logService.info((100*pbDone/pbSize)+" % adjusted");
+			//NB: the filter is computed in the task, so that at most one per thread is held
+			final boolean useFilter = size > 0 && spots.size() * boxVoxels >= size;
+			tasks.add( () -> {
+				final BoxArgMaxFilter filter = useFilter
+					? new BoxArgMaxFilter((RandomAccessibleInterval)img, min, max, radiusPx) : null;
+				final RandomAccess<? extends RealType<?>> ra = (RandomAccess)img.randomAccess();
+				final int[] workRadiusPx = new int[inImgDims];
+				final long[] pos = new long[inImgDims];
+				for (int i : spots)
+				{
+					iters[i] = filter != null ? findLocalMax(filter, posUm[i], posPx[i], pos) : -1;
+					if (iters[i] == -1)
+						iters[i] = findLocalMax(ra, imgBounds, posUm[i], posPx[i], workRadiusPx);
+				}
+				return null;
+			} );
 		}
+	}
 
-		if (reportStats)
+	/**
+	 * Returns the largest size of the (cubic) tile such that the tile with the
+	 * \e reach around it, clipped to the image, has at most MAX_FILTER_VOXELS,
+	 * or 0 if the reach alone is too large.
+	 */
+	private
+	int getMaxFilterTileSize(final long[] imgBounds, final long[] reach)
+	{
+		int tileSize = 0;
+		for (int d = 0; d < inImgDims; ++d)
+			tileSize = (int)Math.max(tileSize, imgBounds[d]);
+
+		for (; tileSize > 0; --tileSize)
 		{
-			logService.info("Histogram with bins of 1px distance:");
-			for (int i=0; i < cntsPerDist.length; ++i)
-				logService.info(i+" px:\t"+cntsPerDist[i]);
+			long size = 1;
+			for (int d = 0; d < inImgDims; ++d)
+				size *= Math.min(tileSize + 2*reach[d], imgBounds[d]);
+			if (size <= MAX_FILTER_VOXELS) break;
+		}
+		return tileSize;
+	}
 
-			logService.info("Histogram with bins of 1 iteration:");
-			for (int i=0; i < cntsPerIter.length; ++i)
-				logService.info(i+" iters:\t"+cntsPerIter[i]);
+	/**
+	 * The same as findLocalMax() with the box scan, but follows the precomputed
+	 * argmax-es of the search boxes (so every iteration is a single lookup).
+	 * Returns -1 if the initial pos is outside the \e filter's region, the
+	 * \e pos is only a working array.
+	 */
+	private
+	int findLocalMax(final BoxArgMaxFilter filter,
+	                 final double[] posUm, final int[] posPx, final long[] pos)
+	{
+		for (int d = 0; d < inImgDims; ++d)
+		{
+			posPx[d] = (int)Math.round( posUm[d] );      //int img coord
+			pos[d] = posPx[d];
+		}
+		if (!filter.contains(pos)) return -1;
+
+		//NB: idx will hold the px pos realizing the current local max intensity
+		int idx = filter.getIndex(pos);
+		double lastBestInt = 0;
+
+		boolean sawDrift = false;
+		int iters = 0;
+		do {
+			//the first search takes any max in the box (as the box scan does),
+			//the repeated search moves only if it finds a strictly larger intensity
+			final int argMax = filter.getArgMax(idx);
+			sawDrift = iters == 0 ? argMax != idx : filter.getMax(idx) > lastBestInt;
+			lastBestInt = filter.getMax(idx);
+			if (sawDrift) idx = argMax;
+
+			++iters;
+		} while (repeatUntilNoChange && sawDrift && iters < safetyMaxIters);
+
+		//if repeatUntilNoChange is true, iters will show one round more (the one that had to confirm no change -> sawDrift == false)
+		if (repeatUntilNoChange && !sawDrift) --iters;
+
+		filter.getPosition(idx, pos);
+		for (int d = 0; d < inImgDims; ++d)
+			posUm[d] = pos[d];
+
+		return iters;
+	}
+
+	/** updates the spot's label and position with the result of findLocalMax(),
+	    and the stats; it must be called from one thread only */
+	private
+	void updateSpot(final Spot spot, final double[] posUm, final int[] posPx, final int iters,
+	                final AffineTransform3D coordTransImg2World)
+	{
+		//first update the spot's label (while the coords are still in px units)
+		double dist=0;
+		for (int d = 0; d < inImgDims; ++d)
+		{
+			posPx[d] = (int)posUm[d] - posPx[d];
+			dist += posPx[d]*posPx[d];
 		}
+		dist = Math.min( Math.sqrt(dist), cntsPerDist.length-1 );
+
+		++cntsPerDist[(int)dist];
+		++cntsPerIter[iters];
+
+		spot.setLabel( spot.getLabel()+"+("+posPx[0]+","+posPx[1]+","+posPx[2]+")@"+iters );
+		//NB: where did inImgDims go?
+
+		//convert the best obtained px image coord into real world coord
+		coordTransImg2World.apply(posUm,posUm);
+		spot.setPosition(posUm);
+
+		++pbDone;
+		if ((pbDone % pbReportChunk) == 0)
+			logService.info((100*pbDone/pbSize)+" % adjusted");
 	}
 
 	//determine effective pixel ranges - half box size in px along every image axis
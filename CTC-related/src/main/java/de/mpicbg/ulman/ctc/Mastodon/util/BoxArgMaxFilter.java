@@ -0,0 +1,188 @@
+package de.mpicbg.ulman.ctc.Mastodon.util;
+
+import net.imglib2.Cursor;
+import net.imglib2.FinalInterval;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.type.numeric.RealType;
+import net.imglib2.view.Views;
+
+/**
+ * Box max-filter that remembers for every voxel also the position of the
+ * maximum within the box around the voxel (the argmax). The filter is computed
+ * only over a region of interest of the image, separably with a sliding window
+ * along one axis after another, so the cost does not depend on the box size.
+ *
+ * The boxes are clipped to the region (which is clipped to the image), that is,
+ * voxels outside the region are never considered. If more voxels in a box share
+ * the maximum value, the one that comes first in the flat iteration order (the
+ * x-axis iterates fastest) is the argmax -- the same voxel a box scan with a
+ * strict comparison over z, y and x loops would find.
+ *
+ * The values are kept as doubles (so that also 32-bit integer intensities are
+ * compared exactly), and the argmax as a per-axis byte offset within the box,
+ * which limits the box half-size to MAX_RADIUS. The filter thus holds 8+D bytes
+ * per voxel of the region, the passes work in place with only line buffers.
+ *
+ * The voxels are referred to with the flat indices within the region.
+ */
+public class BoxArgMaxFilter
+{
+	/** the largest box half-size the argmax offsets can express */
+	public static final int MAX_RADIUS = Byte.MAX_VALUE;
+
+	/**
+	 * Computes the filter for the region 'min' to 'max' (inclusive, which
+	 * is clipped to the image) with the box of the half-size 'radius' (the
+	 * box is 2*radius+1 voxels wide along every axis).
+	 */
+	public BoxArgMaxFilter(final RandomAccessibleInterval<? extends RealType<?>> img,
+	                       final long[] min, final long[] max, final int[] radius)
+	{
+		D = img.numDimensions();
+		regionMin = new long[D];
+		regionDims = new int[D];
+		strides = new int[D];
+
+		long size = 1;
+		for (int d = 0; d < D; ++d)
+		{
+			if (radius[d] < 0 || radius[d] > MAX_RADIUS)
+				throw new IllegalArgumentException("BoxArgMaxFilter: the box half-size "+radius[d]
+				                                   +" is not within 0 and "+MAX_RADIUS+".");
+
+			regionMin[d] = Math.max(min[d], img.min(d));
+			final long regionMax = Math.min(max[d], img.max(d));
+			regionDims[d] = (int)Math.max(regionMax - regionMin[d] + 1, 0);
+			strides[d] = (int)size;
+			size *= regionDims[d];
+		}
+		if (size > Integer.MAX_VALUE)
+			throw new IllegalArgumentException("BoxArgMaxFilter: the region is too large.");
+		noOfVoxels = (int)size;
+
+		//read in the region
+		maxVals = new double[noOfVoxels];
+		argMaxOffsets = new byte[D][noOfVoxels];
+		if (noOfVoxels > 0)
+		{
+			final long[] regionMax = new long[D];
+			for (int d = 0; d < D; ++d) regionMax[d] = regionMin[d] + regionDims[d] -1;
+
+			final Cursor<? extends RealType<?>> c
+				= Views.flatIterable(Views.interval(img, new FinalInterval(regionMin, regionMax))).cursor();
+			for (int i = 0; i < noOfVoxels; ++i)
+				maxVals[i] = c.next().getRealDouble();
+		}
+
+		//the separable passes, one axis after another, every line is
+		//copied aside and the filtered line is written in its place
+		int maxDim = 0;
+		for (int d = 0; d < D; ++d) maxDim = Math.max(maxDim, regionDims[d]);
+		final int[] window = new int[maxDim];
+		final double[] lineVals = new double[maxDim];
+		final byte[][] lineOffsets = new byte[D][maxDim];
+
+		for (int d = 0; d < D && noOfVoxels > 0; ++d)
+		{
+			final int n = regionDims[d];
+			final int stride = strides[d];
+			final int r = radius[d];
+
+			//over all lines along this axis
+			for (int hi = 0; hi < noOfVoxels; hi += stride*n)
+			for (int lo = 0; lo < stride; ++lo)
+			{
+				final int lineStart = hi + lo;
+				for (int j = 0; j < n; ++j)
+				{
+					lineVals[j] = maxVals[lineStart + j*stride];
+					//NB: the offsets along this and the next axes are all zero yet
+					for (int dd = 0; dd < d; ++dd)
+						lineOffsets[dd][j] = argMaxOffsets[dd][lineStart + j*stride];
+				}
+
+				//sliding window: the positions (along the line) of non-increasing values,
+				//a later position is removed only by a strictly larger value, so ties
+				//are resolved in favour of the earlier positions
+				int head = 0, tail = 0;
+				for (int j = 0; j < n+r; ++j)
+				{
+					if (j < n)
+					{
+						final double v = lineVals[j];
+						while (tail > head && lineVals[window[tail-1]] < v) --tail;
+						window[tail++] = j;
+					}
+
+					final int k = j - r;
+					if (k < 0) continue;
+					while (window[head] < k - r) ++head;
+
+					//NB: the argmax of the best voxel differs from it only along
+					//    the previous axes, along which it is the same as for 'k'
+					final int best = window[head];
+					final int out = lineStart + k*stride;
+					maxVals[out] = lineVals[best];
+					for (int dd = 0; dd < d; ++dd)
+						argMaxOffsets[dd][out] = lineOffsets[dd][best];
+					argMaxOffsets[d][out] = (byte)(best - k);
+				}
+			}
+		}
+	}
+
+	public final int D;
+	private final long[] regionMin;
+	private final int[] regionDims;
+	private final int[] strides;
+	private final int noOfVoxels;
+
+	private final double[] maxVals;
+	/** per axis, the offset from the voxel to its argmax */
+	private final byte[][] argMaxOffsets;
+
+
+	/** returns how many bytes a filter over the given number of voxels of 'D'-dimensional image holds */
+	public static long getSizeInBytes(final long noOfVoxels, final int D)
+	{ return noOfVoxels * (8+D); }
+
+	/** returns true if the image coordinate 'pos' is inside the filtered region */
+	public boolean contains(final long[] pos)
+	{
+		for (int d = 0; d < D; ++d)
+			if (pos[d] < regionMin[d] || pos[d] >= regionMin[d] + regionDims[d]) return false;
+		return true;
+	}
+
+	/** returns the flat index of the image coordinate 'pos', which must be inside the region */
+	public int getIndex(final long[] pos)
+	{
+		int idx = 0;
+		for (int d = 0; d < D; ++d)
+			idx += (int)(pos[d] - regionMin[d]) * strides[d];
+		return idx;
+	}
+
+	/** fills the image coordinate of the flat index 'idx' */
+	public void getPosition(int idx, final long[] pos)
+	{
+		for (int d = D-1; d >= 0; --d)
+		{
+			pos[d] = regionMin[d] + idx / strides[d];
+			idx %= strides[d];
+		}
+	}
+
+	/** returns the flat index of the maximum within the box around the voxel 'idx' */
+	public int getArgMax(final int idx)
+	{
+		int argMax = idx;
+		for (int d = 0; d < D; ++d)
+			argMax += argMaxOffsets[d][idx] * strides[d];
+		return argMax;
+	}
+
+	/** returns the maximum within the box around the voxel 'idx' */
+	public double getMax(final int idx)
+	{ return maxVals[idx]; }
+}
@@ -0,0 +1,393 @@
+package de.mpicbg.ulman.ctc.Mastodon.util;
+
+import net.imglib2.Cursor;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.img.planar.PlanarImg;
+import net.imglib2.img.basictypeaccess.array.ArrayDataAccess;
+import net.imglib2.type.numeric.RealType;
+import net.imglib2.type.numeric.integer.ByteType;
+import net.imglib2.type.numeric.integer.IntType;
+import net.imglib2.type.numeric.integer.ShortType;
+import net.imglib2.type.numeric.integer.UnsignedByteType;
+import net.imglib2.type.numeric.integer.UnsignedIntType;
+import net.imglib2.type.numeric.integer.UnsignedShortType;
+import net.imglib2.type.numeric.real.FloatType;
+import net.imglib2.util.Util;
+import net.imglib2.view.Views;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+
+/**
+ * Writes images of scalar voxels directly into a (classic, little-endian)
+ * multi-page TIFF file, one xy-plane per page, without wrapping them into
+ * ImageJ1's ImagePlus. The planes of a PlanarImg are taken directly from its
+ * arrays, planes of other images are read with a cursor. The pages are either
+ * uncompressed or LZW-compressed; in the latter case the planes can be compressed
+ * with more threads (while they are written in order by the calling thread).
+ *
+ * Supported voxel types are: (Unsigned)ByteType, (Unsigned)ShortType,
+ * (Unsigned)IntType and FloatType, see isSupported().
+ */
+public class DirectTiffWriter
+{
+	/** setups the writer: 'doLZW' to compress the pages, and
+	    how many threads shall be compressing the pages */
+	public
+	DirectTiffWriter(final boolean doLZW, final int noOfCompressionThreads)
+	{
+		this.doLZW = doLZW;
+		this.noOfCompressionThreads = Math.max(noOfCompressionThreads,1);
+	}
+
+	private final boolean doLZW;
+	private final int noOfCompressionThreads;
+
+
+	/** returns true if the voxel type of the 'img' can be written by this writer */
+	public static
+	boolean isSupported(final RandomAccessibleInterval<?> img)
+	{
+		return getSampleFormat(Util.getTypeFromInterval(img)) != null;
+	}
+
+	/** returns {bits per sample, TIFF's SampleFormat} of the given voxel type, or null */
+	private static
+	int[] getSampleFormat(final Object type)
+	{
+		if (type instanceof UnsignedByteType)  return new int[] {  8, 1 };
+		if (type instanceof ByteType)          return new int[] {  8, 2 };
+		if (type instanceof UnsignedShortType) return new int[] { 16, 1 };
+		if (type instanceof ShortType)         return new int[] { 16, 2 };
+		if (type instanceof UnsignedIntType)   return new int[] { 32, 1 };
+		if (type instanceof IntType)           return new int[] { 32, 2 };
+		if (type instanceof FloatType)         return new int[] { 32, 3 };
+		return null;
+	}
+
+
+	/** writes the 'img' into the file 'path', which is overwritten if exists,
+	    the file is removed if the writing fails */
+	public <T extends RealType<T>>
+	void write(final RandomAccessibleInterval<T> img, final String path)
+	throws IOException
+	{
+		final int[] format = getSampleFormat(Util.getTypeFromInterval(img));
+		if (format == null)
+			throw new IllegalArgumentException("Cannot write voxels of type "
+				+Util.getTypeFromInterval(img).getClass().getSimpleName()+" into TIFF.");
+
+		final int width  = (int)img.dimension(0);
+		final int height = img.numDimensions() > 1 ? (int)img.dimension(1) : 1;
+		int noOfPlanes = 1;
+		for (int d = 2; d < img.numDimensions(); ++d) noOfPlanes *= (int)img.dimension(d);
+
+		final int bytesPerSample = format[0]/8;
+		final long planeBytes = (long)width*height*bytesPerSample;
+		if (planeBytes > Integer.MAX_VALUE)
+			throw new IllegalArgumentException("One image plane is too large for TIFF.");
+
+		//the planes are (optionally compressed and) written in order,
+		//at most 2x noOfCompressionThreads planes are prepared in advance
+		final long[] stripOffsets = new long[noOfPlanes];
+		final long[] stripByteCounts = new long[noOfPlanes];
+
+		final ExecutorService compressors = doLZW && noOfCompressionThreads > 1
+			? Executors.newFixedThreadPool(noOfCompressionThreads) : null;
+
+		boolean isWritten = false;
+		try (FileChannel out = FileChannel.open(Paths.get(path),
+			StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING))
+		{
+			//header with a placeholder for the first IFD offset
+			final ByteBuffer header = ByteBuffer.allocate(8).order(ByteOrder.LITTLE_ENDIAN);
+			header.put((byte)'I').put((byte)'I').putShort((short)42).putInt(0);
+			header.flip();
+			writeFully(out, header);
+			long filePos = 8;
+
+			final Cursor<T> cursor = img instanceof PlanarImg ? null : Views.flatIterable(img).cursor();
+			final ArrayDeque<Future<byte[]>> prepared = new ArrayDeque<>(2*noOfCompressionThreads);
+			int nextPlaneToPrepare = 0;
+
+			for (int z = 0; z < noOfPlanes; ++z)
+			{
+				//prepare the planes in advance
+				while (nextPlaneToPrepare < noOfPlanes && (nextPlaneToPrepare == z || prepared.size() < 2*noOfCompressionThreads))
+				{
+					final byte[] raw = getPlaneBytes(img, cursor, nextPlaneToPrepare, (int)planeBytes, bytesPerSample);
+					if (compressors != null) prepared.add( compressors.submit( () -> compressLZW(raw) ) );
+					else prepared.add( completed(doLZW ? compressLZW(raw) : raw) );
+					++nextPlaneToPrepare;
+				}
+
+				final byte[] data = prepared.poll().get();
+				stripOffsets[z] = filePos;
+				stripByteCounts[z] = data.length;
+				writeFully(out, ByteBuffer.wrap(data));
+				filePos += data.length;
+				if ((filePos & 1) == 1)
+				{
+					//IFDs and values must start at word boundaries
+					writeFully(out, ByteBuffer.wrap(new byte[1]));
+					++filePos;
+				}
+			}
+
+			//the IFDs, one after another
+			final int noOfTags = 11;
+			final int ifdSize = 2 + 12*noOfTags + 4;
+			if (filePos + (long)ifdSize*noOfPlanes > 0xFFFFFFFFL)
+				throw new IOException("The image is too large for classic TIFF: "+path);
+
+			final ByteBuffer ifd = ByteBuffer.allocate(ifdSize).order(ByteOrder.LITTLE_ENDIAN);
+			final long firstIFD = filePos;
+			for (int z = 0; z < noOfPlanes; ++z)
+			{
+				ifd.clear();
+				ifd.putShort((short)noOfTags);
+				putTag(ifd, 256, 4, width);                 //ImageWidth
+				putTag(ifd, 257, 4, height);                //ImageLength
+				putTag(ifd, 258, 3, format[0]);             //BitsPerSample
+				putTag(ifd, 259, 3, doLZW ? 5 : 1);         //Compression
+				putTag(ifd, 262, 3, 1);                     //PhotometricInterpretation: BlackIsZero
+				putTag(ifd, 273, 4, stripOffsets[z]);       //StripOffsets
+				putTag(ifd, 277, 3, 1);                     //SamplesPerPixel
+				putTag(ifd, 278, 4, height);                //RowsPerStrip
+				putTag(ifd, 279, 4, stripByteCounts[z]);    //StripByteCounts
+				putTag(ifd, 284, 3, 1);                     //PlanarConfiguration: chunky
+				putTag(ifd, 339, 3, format[1]);             //SampleFormat
+				ifd.putInt(z+1 < noOfPlanes ? (int)(filePos+ifdSize) : 0);
+				ifd.flip();
+				writeFully(out, ifd);
+				filePos += ifdSize;
+			}
+
+			//finally, point the header to the first IFD
+			header.clear();
+			header.putInt((int)firstIFD);
+			header.flip();
+			out.write(header, 4);
+			isWritten = true;
+		}
+		catch (InterruptedException e)
+		{
+			throw new IOException("Interrupted while writing: "+path, e);
+		}
+		catch (ExecutionException e)
+		{
+			throw new IOException("Failed compressing: "+path, e.getCause());
+		}
+		finally
+		{
+			if (compressors != null) compressors.shutdownNow();
+
+			//do not leave a truncated file behind
+			if (!isWritten) deletePartialFile(path);
+		}
+	}
+
+
+	/** removes the (partially written) file 'path', if it exists,
+	    failing of the removal is ignored as the writing has failed already */
+	static
+	void deletePartialFile(final String path)
+	{
+		try
+		{
+			Files.deleteIfExists(Paths.get(path));
+		}
+		catch (IOException | RuntimeException e)
+		{
+			//nothing to do about it
+		}
+	}
+
+
+	/** returns the 'z'-th plane as little-endian bytes, the 'cursor' must
+	    be given for non-PlanarImg images and the planes must be requested in order */
+	private <T extends RealType<T>>
+	byte[] getPlaneBytes(final RandomAccessibleInterval<T> img, final Cursor<T> cursor,
+	                     final int z, final int planeBytes, final int bytesPerSample)
+	{
+		final ByteBuffer bb = ByteBuffer.allocate(planeBytes).order(ByteOrder.LITTLE_ENDIAN);
+
+		if (cursor == null)
+		{
+			//the plane's array directly
+			final Object data = ((ArrayDataAccess<?>)((PlanarImg<?,?>)img).getPlane(z)).getCurrentStorageArray();
+			if (data instanceof byte[])       bb.put((byte[])data);
+			else if (data instanceof short[]) bb.asShortBuffer().put((short[])data);
+			else if (data instanceof int[])   bb.asIntBuffer().put((int[])data);
+			else if (data instanceof float[]) bb.asFloatBuffer().put((float[])data);
+			else throw new IllegalArgumentException("Unsupported plane storage: "+data.getClass().getSimpleName());
+			return bb.array();
+		}
+
+		final int noOfVoxels = planeBytes / bytesPerSample;
+		final boolean isFloat = Util.getTypeFromInterval(img) instanceof FloatType;
+		for (int i = 0; i < noOfVoxels; ++i)
+		{
+			final T v = cursor.next();
+			switch (bytesPerSample)
+			{
+			case 1:
+				bb.put((byte)v.getRealDouble());
+				break;
+			case 2:
+				bb.putShort((short)(long)v.getRealDouble());
+				break;
+			default:
+				if (isFloat) bb.putFloat(v.getRealFloat());
+				else bb.putInt((int)(long)v.getRealDouble());
+			}
+		}
+		return bb.array();
+	}
+
+	private static
+	void putTag(final ByteBuffer ifd, final int tag, final int type, final long value)
+	{
+		ifd.putShort((short)tag);
+		ifd.putShort((short)type); //3 = SHORT, 4 = LONG
+		ifd.putInt(1);             //count
+		if (type == 3) ifd.putShort((short)value).putShort((short)0);
+		else ifd.putInt((int)value);
+	}
+
+	private static
+	void writeFully(final FileChannel out, final ByteBuffer bb)
+	throws IOException
+	{
+		while (bb.hasRemaining()) out.write(bb);
+	}
+
+	private static
+	Future<byte[]> completed(final byte[] data)
+	{
+		final FutureTask<byte[]> f = new FutureTask<>( () -> data );
+		f.run();
+		return f;
+	}
+
+
+	// ----------- TIFF flavour of LZW compression -----------
+	private static final int CODE_CLEAR = 256;
+	private static final int CODE_EOI   = 257;
+	private static final int CODE_FIRST = 258;
+	private static final int CODE_MAX   = 4095;
+
+	/** compresses the 'data' with the LZW as defined in TIFF 6.0
+	    (codes of 9 to 12 bits, MSB-first, with the "early change") */
+	static
+	byte[] compressLZW(final byte[] data)
+	{
+		final LZWOutput out = new LZWOutput(data.length/2 + 64);
+
+		//the table of strings, as a hash map: (prefix code, next byte) -> code
+		final int HSIZE = 8192;
+		final int[] hashKeys  = new int[HSIZE];
+		final short[] hashCodes = new short[HSIZE];
+
+		int nbits = 9;
+		int freeEnt = CODE_FIRST;
+		out.put(CODE_CLEAR, nbits);
+		if (data.length == 0)
+		{
+			out.put(CODE_EOI, nbits);
+			return out.toArray();
+		}
+
+		int ent = data[0] & 0xFF;
+		for (int i = 1; i < data.length; ++i)
+		{
+			final int c = data[i] & 0xFF;
+			final int key = ((ent << 8) | c) +1; //NB: +1 to tell apart the empty slots
+
+			int h = ((c << 5) ^ ent) & (HSIZE-1);
+			while (hashKeys[h] != 0 && hashKeys[h] != key) h = (h+1) & (HSIZE-1);
+			if (hashKeys[h] == key)
+			{
+				ent = hashCodes[h];
+				continue;
+			}
+
+			out.put(ent, nbits);
+			ent = c;
+			hashKeys[h] = key;
+			hashCodes[h] = (short)(freeEnt++);
+
+			if (freeEnt == CODE_MAX-1)
+			{
+				//the table is full, restart it
+				out.put(CODE_CLEAR, nbits);
+				Arrays.fill(hashKeys, 0);
+				freeEnt = CODE_FIRST;
+				nbits = 9;
+			}
+			else if (freeEnt > (1 << nbits)-1) ++nbits;
+		}
+
+		//NB: the decoder would add an entry after this last code, hence the width update
+		out.put(ent, nbits);
+		++freeEnt;
+		if (freeEnt == CODE_MAX-1)
+		{
+			out.put(CODE_CLEAR, nbits);
+			nbits = 9;
+		}
+		else if (freeEnt > (1 << nbits)-1) ++nbits;
+		out.put(CODE_EOI, nbits);
+
+		return out.toArray();
+	}
+
+	/** MSB-first bit packer for the compressLZW() */
+	private static class LZWOutput
+	{
+		LZWOutput(final int initialCapacity)
+		{
+			buf = new byte[Math.max(initialCapacity,16)];
+		}
+
+		byte[] buf;
+		int len = 0;
+		long bits = 0;
+		int noOfBits = 0;
+
+		void put(final int code, final int nbits)
+		{
+			bits = (bits << nbits) | code;
+			noOfBits += nbits;
+			while (noOfBits >= 8)
+			{
+				if (len == buf.length) buf = Arrays.copyOf(buf, 2*buf.length);
+				noOfBits -= 8;
+				buf[len++] = (byte)(bits >>> noOfBits);
+			}
+		}
+
+		byte[] toArray()
+		{
+			if (noOfBits > 0)
+			{
+				if (len == buf.length) buf = Arrays.copyOf(buf, len+1);
+				buf[len++] = (byte)(bits << (8-noOfBits));
+				noOfBits = 0;
+			}
+			return Arrays.copyOf(buf, len);
+		}
+	}
+}
@@ -6,11 +6,30 @@ import mpicbg.spim.data.sequence.VoxelDimensions;
 import net.imglib2.realtransform.AffineTransform3D;
 import net.imglib2.RandomAccessibleInterval;
 import net.imglib2.img.Img;
+import net.imglib2.img.array.ArrayImgFactory;
+import net.imglib2.loops.LoopBuilder;
 import net.imglib2.img.display.imagej.ImageJFunctions;
 import ij.ImagePlus;
+import net.imglib2.type.NativeType;
+import net.imglib2.type.numeric.RealType;
+import net.imglib2.util.Intervals;
+import net.imglib2.util.Util;
+import net.imglib2.view.Views;
 import bdv.viewer.Source;
 
 import java.io.File;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.function.BiPredicate;
+import java.util.function.Function;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.FutureTask;
 
 /**
  * Govering class to provide unified way of obtaining images at given time point
@@ -132,18 +151,22 @@ public class ImgProviders
 		Img<?> cachedImg = null;
 		int cachedImgTimePoint;
 
+		/** can be called from more threads in parallel, the images are read
+		    outside the lock, only the cache is accessed under it */
 		@Override
 		public RandomAccessibleInterval<?> getImage(int time)
 		{
 			//reuse the cached image if the same time point requested
-			if (cachedImg != null && cachedImgTimePoint == time) return cachedImg;
+			synchronized (this)
+			{
+				if (cachedImg != null && cachedImgTimePoint == time) return cachedImg;
+			}
 
 			final String filename = String.format(fileTemplate,time);
+			final Img<?> img;
 			try
 			{
-				cachedImg = null; //"invalidate" before attempting to read
-				cachedImg = ImageJFunctions.wrap(new ImagePlus( filename ));
-				cachedImgTimePoint = time;
+				img = ImageJFunctions.wrap(new ImagePlus( filename ));
 			}
 			catch (RuntimeException e)
 			{
@@ -151,9 +174,15 @@ public class ImgProviders
 			}
 
 			//make sure we always return some non-null reference
-			if (cachedImg == null)
+			if (img == null)
 				throw new IllegalArgumentException("Error reading image file "+filename);
-			return cachedImg;
+
+			synchronized (this)
+			{
+				cachedImg = img;
+				cachedImgTimePoint = time;
+			}
+			return img;
 		}
 
 
@@ -248,4 +277,344 @@ public class ImgProviders
 			imgSource.getSourceTransform(time,viewMipLevel, transform);
 		}
 	}
+
+	//-------------------------------------------------------
+	/**
+	 * Wraps any other ImgProvider and keeps the most recently used images
+	 * in a LRU cache that is bounded by the number of images and/or by their
+	 * total size in bytes. Optionally, the next time points are read ahead
+	 * in a background thread whenever an image is requested. The numbers
+	 * of the cache hits and misses are counted to help tuning the bounds.
+	 *
+	 * If the wrapped provider returns lazy views (e.g. the BDV sources of
+	 * Mastodon, whose voxels are loaded only when accessed), the images should
+	 * be copied into memory ('doCopyImage'), otherwise neither the cache nor
+	 * the reading ahead would hold any voxels. Only the copied images, or the
+	 * images of a provider that reads them fully (e.g. ImgProviderFromDisk),
+	 * are counted into the bytes bound. An image larger than the bound is not
+	 * copied.
+	 *
+	 * The time points read ahead are by default the next ones, or those given
+	 * by the setReadAheadOrder().
+	 *
+	 * The getImage() can be called from more threads in parallel.
+	 */
+	public static class CachingImgProvider implements ImgProvider
+	{
+		final ImgProvider source;
+		final int maxImages;
+		final long maxBytes;
+		final int readAhead;
+		final BiPredicate<Integer,RandomAccessibleInterval<?>> doCopyImage;
+
+		/** caches at most 'maxImages' images of the 'source' with at most 'maxBytes'
+		    bytes in total, and reads ahead 'readAhead' next time points (0 to disable);
+		    the image of a time point is copied into memory if 'doCopyImage' (null for
+		    never) accepts it, which is needed for the 'source' that returns lazily loaded
+		    views, but is worth it only if the image is going to be accessed a lot */
+		public CachingImgProvider(final ImgProvider source,
+		                          final int maxImages, final long maxBytes, final int readAhead,
+		                          final BiPredicate<Integer,RandomAccessibleInterval<?>> doCopyImage)
+		{
+			this.source = source;
+			this.maxImages = Math.max(maxImages,1);
+			this.maxBytes = maxBytes;
+			this.readAhead = Math.min(readAhead, this.maxImages-1);
+			this.doCopyImage = doCopyImage != null ? doCopyImage : (t,img) -> false;
+
+			readers = this.readAhead > 0 ? Executors.newSingleThreadExecutor( r -> {
+				final Thread t = new Thread(r, "Image reader ahead");
+				t.setDaemon(true);
+				return t;
+			} ) : null;
+		}
+
+		/** the cached (or being read) images, in the order of their recent use */
+		final LinkedHashMap<Integer,CachedImg> cache = new LinkedHashMap<>(16, 0.75f, true);
+		long cachedBytes = 0;
+
+		/** the reader ahead, or null */
+		final ExecutorService readers;
+
+		/** set after close(), no reading ahead is started since then */
+		boolean isClosed = false;
+
+		/** returns the time point to be read ahead after the given one, or null */
+		Function<Integer,Integer> nextTimePoint = t -> t+1;
+
+		/** makes the reading ahead follow the 'nextTimePoint', which returns the time
+		    point that comes after the given one, or null if there is none */
+		public synchronized void setReadAheadOrder(final Function<Integer,Integer> nextTimePoint)
+		{
+			this.nextTimePoint = nextTimePoint;
+		}
+
+		int hits = 0, misses = 0, readAheads = 0;
+
+		/** obtains the image from the 'source', and copies it if desired */
+		class ImgReader implements Callable<RandomAccessibleInterval<?>>
+		{
+			final int time;
+			boolean isInMemory = false; //NB: done() sees it as it is set before the task completes
+
+			ImgReader(final int time)
+			{
+				this.time = time;
+			}
+
+			@Override
+			public RandomAccessibleInterval<?> call()
+			{
+				final RandomAccessibleInterval<?> img = source.getImage(time);
+				if (doCopyImage.test(time, img) && getSizeInBytes(img) <= maxBytes)
+				{
+					final RandomAccessibleInterval<?> copy = copyIntoMemory(img);
+					isInMemory = copy != img;
+					return copy;
+				}
+
+				//NB: only the Mastodon's images are lazy views
+				isInMemory = !(source instanceof ImgProviderFromMastodon);
+				return img;
+			}
+		}
+
+		class CachedImg extends FutureTask<RandomAccessibleInterval<?>>
+		{
+			final ImgReader reader;
+			final boolean isReadAhead;
+			long bytes = 0;
+			boolean isAccounted = false; //NB: only the accounted images can be evicted
+
+			CachedImg(final int time, final boolean isReadAhead)
+			{
+				this(new ImgReader(time), isReadAhead);
+			}
+
+			private CachedImg(final ImgReader reader, final boolean isReadAhead)
+			{
+				super(reader);
+				this.reader = reader;
+				this.isReadAhead = isReadAhead;
+			}
+
+			@Override
+			protected void done()
+			{
+				long b = 0;
+				try
+				{
+					if (!isCancelled() && reader.isInMemory) b = getSizeInBytes(get());
+				}
+				catch (InterruptedException | ExecutionException e)
+				{
+					//NB: the failure is reported (and the image is uncached) in getImage()
+				}
+
+				synchronized (CachingImgProvider.this)
+				{
+					bytes = b;
+					cachedBytes += b;
+					isAccounted = true;
+					evict();
+				}
+			}
+		}
+
+		@Override
+		public RandomAccessibleInterval<?> getImage(int time)
+		{
+			final CachedImg img;
+			final boolean isNew;
+			synchronized (this)
+			{
+				CachedImg i = cache.get(time);
+				isNew = i == null;
+				if (isNew)
+				{
+					++misses;
+					i = new CachedImg(time,false);
+					cache.put(time, i);
+				}
+				else ++hits;
+				img = i;
+
+				//read ahead the next time points, if not cached already
+				Integer t = time;
+				for (int n = 0; n < readAhead && !isClosed; ++n)
+				{
+					t = nextTimePoint.apply(t);
+					if (t == null) break;
+					if (cache.containsKey(t)) continue;
+
+					final CachedImg next = new CachedImg(t,true);
+					cache.put(t, next);
+					readers.execute(next);
+					++readAheads;
+				}
+
+				//NB: the requested image is made the most recently used one
+				cache.get(time);
+				evict();
+			}
+
+			//read the image in this thread if it is not being read already
+			if (isNew) img.run();
+
+			try
+			{
+				return img.get();
+			}
+			catch (InterruptedException e)
+			{
+				throw new IllegalArgumentException("Interrupted while reading image of time point "+time);
+			}
+			catch (CancellationException e)
+			{
+				//NB: the reading ahead of this image was cancelled by close(),
+				//    which has also uncached it, so this reads it in this thread
+				synchronized (this)
+				{
+					if (cache.get(time) == img) cache.remove(time);
+				}
+				return getImage(time);
+			}
+			catch (ExecutionException e)
+			{
+				synchronized (this)
+				{
+					if (cache.get(time) == img)
+					{
+						cache.remove(time);
+						cachedBytes -= img.bytes;
+					}
+				}
+				if (e.getCause() instanceof RuntimeException) throw (RuntimeException)e.getCause();
+				throw new IllegalArgumentException(e.getCause());
+			}
+		}
+
+		/** removes the least recently used images (that are read already) while the bounds are exceeded */
+		synchronized
+		void evict()
+		{
+			final Iterator<Map.Entry<Integer,CachedImg>> it = cache.entrySet().iterator();
+			while (it.hasNext() && (cache.size() > maxImages || cachedBytes > maxBytes))
+			{
+				final CachedImg img = it.next().getValue();
+				if (!img.isAccounted) continue;
+
+				cachedBytes -= img.bytes;
+				it.remove();
+			}
+		}
+
+		/** returns the memory the image would hold if it were in memory */
+		static
+		long getSizeInBytes(final RandomAccessibleInterval<?> img)
+		{
+			final Object type = Util.getTypeFromInterval(img);
+			final long bytesPerVoxel = type instanceof RealType ? Math.max(((RealType<?>)type).getBitsPerPixel()/8, 1) : 4;
+			return Intervals.numElements(img) * bytesPerVoxel;
+		}
+
+		/** returns an in-memory copy (over the same interval) of the image, or
+		    the image itself if it is not of a NativeType or too large for an ArrayImg */
+		@SuppressWarnings("unchecked")
+		static
+		RandomAccessibleInterval<?> copyIntoMemory(final RandomAccessibleInterval<?> img)
+		{
+			if (!(Util.getTypeFromInterval(img) instanceof NativeType)
+			    || Intervals.numElements(img) > Integer.MAX_VALUE) return img;
+			return copyIntoArrayImg( (RandomAccessibleInterval)img );
+		}
+
+		static <T extends NativeType<T>>
+		RandomAccessibleInterval<T> copyIntoArrayImg(final RandomAccessibleInterval<T> img)
+		{
+			final RandomAccessibleInterval<T> copy = Views.translate(
+				new ArrayImgFactory<>(Util.getTypeFromInterval(img)).create(img),
+				Intervals.minAsLongArray(img) );
+
+			//NB: this is where a lazy view loads its voxels
+			LoopBuilder.setImages(img, copy).forEachPixel( (i,o) -> o.set(i) );
+			return copy;
+		}
+
+		/** stops the reading ahead, and uncaches the images whose reading ahead
+		    has not finished yet (a later getImage() reads them in its own thread) */
+		public void close()
+		{
+			if (readers == null) return;
+
+			//NB: the pending entries are uncached first and cancelled only then,
+			//    because cancel() calls done() that evicts from the cache too
+			final ArrayList<CachedImg> pending = new ArrayList<>();
+			synchronized (this)
+			{
+				isClosed = true;
+				final Iterator<CachedImg> it = cache.values().iterator();
+				while (it.hasNext())
+				{
+					final CachedImg img = it.next();
+					if (img.isReadAhead && !img.isDone())
+					{
+						pending.add(img);
+						it.remove();
+					}
+				}
+			}
+			for (CachedImg img : pending) img.cancel(true);
+			readers.shutdownNow();
+		}
+
+		public synchronized int getHits()
+		{ return hits; }
+
+		public synchronized int getMisses()
+		{ return misses; }
+
+		public synchronized int getReadAheads()
+		{ return readAheads; }
+
+		public synchronized long getCachedBytes()
+		{ return cachedBytes; }
+
+		public synchronized String printStats()
+		{
+			return "image cache: "+hits+" hits, "+misses+" misses, "+readAheads+" read ahead, "
+			      +cache.size()+" images ("+(cachedBytes >> 20)+" MB) cached";
+		}
+
+
+		@Override
+		public int numDimensions()
+		{
+			return source.numDimensions();
+		}
+
+		@Override
+		public VoxelDimensions getVoxelDimensions()
+		{
+			return source.getVoxelDimensions();
+		}
+
+		@Override
+		public double getDimensionOfOneUnitOfWorldCoordinates()
+		{
+			return source.getDimensionOfOneUnitOfWorldCoordinates();
+		}
+
+		@Override
+		public void getSourceTransform(final AffineTransform3D transform)
+		{
+			source.getSourceTransform(transform);
+		}
+
+		@Override
+		public void getSourceTransform(final int time, final AffineTransform3D transform)
+		{
+			source.getSourceTransform(time, transform);
+		}
+	}
 }
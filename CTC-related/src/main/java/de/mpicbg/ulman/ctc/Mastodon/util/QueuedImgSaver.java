@@ -0,0 +1,257 @@
+package de.mpicbg.ulman.ctc.Mastodon.util;
+
+import ij.IJ;
+import ij.ImagePlus;
+import ij.io.FileSaver;
+import net.imglib2.img.display.imagej.ImageJFunctions;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.type.numeric.NumericType;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * A variant of the ParallelImgSaver that never polls: the images waiting
+ * to be saved are kept in a bounded blocking queue, adding a new image
+ * blocks while the queue is full (back-pressure), and every image saving
+ * thread sleeps until there is an image in the queue. Every added image
+ * is given a CompletableFuture that completes once the image is saved, or
+ * completes exceptionally if the saving has failed.
+ *
+ * TIFF images of the types supported by the DirectTiffWriter are written
+ * with it, other images are wrapped into ImagePlus and saved with ImageJ1.
+ */
+public class QueuedImgSaver
+{
+	/** the queue of images waiting to be saved */
+	private
+	final BlockingQueue<ImgPathPair> imgQueue;
+
+	/** the image saving threads */
+	private
+	final Thread[] workersQueue;
+
+	/** the request that makes the image saving thread to finish */
+	private
+	final ImgPathPair POISON_PILL = new ImgPathPair();
+
+	/** flag that no new images are accepted */
+	private volatile
+	boolean isShutdown = false;
+
+	/** makes the check of 'isShutdown' and the enqueuing of an image atomic
+	    with respect to the shutting down: the images are added under the read
+	    lock (so more can be added in parallel), the flag is set under the write
+	    lock, and thus no image can be enqueued after the poison pills */
+	private
+	final ReadWriteLock shutdownLock = new ReentrantReadWriteLock();
+
+	/** the writer for the TIFF files */
+	private
+	final DirectTiffWriter tiffWriter;
+
+	/** setups the image saving threads, and the queue
+	    for at most 'maxQueueLength' images waiting to be saved,
+	    TIFF files are written uncompressed */
+	public
+	QueuedImgSaver(final int noOfWriterThreads, final int maxQueueLength)
+	{
+		this(noOfWriterThreads, maxQueueLength, new DirectTiffWriter(false,1));
+	}
+
+	/** setups the image saving threads, and the queue
+	    for at most 'maxQueueLength' images waiting to be saved,
+	    TIFF files are written with the given 'tiffWriter' */
+	public
+	QueuedImgSaver(final int noOfWriterThreads, final int maxQueueLength,
+	               final DirectTiffWriter tiffWriter)
+	{
+		this.tiffWriter = tiffWriter;
+		imgQueue = new ArrayBlockingQueue<>(maxQueueLength);
+		workersQueue = new Thread[noOfWriterThreads];
+
+		for (int i=0; i < noOfWriterThreads; i++)
+		{
+			workersQueue[i] = new Thread(this::saveImages, "Image saver #"+i);
+			workersQueue[i].start();
+		}
+	}
+
+
+	/** how many images are waiting for (and not yet) being saved */
+	public
+	int notYetSavedImgsCount()
+	{
+		return imgQueue.size();
+	}
+
+	/** enlist the 'img' to the queue of images to be saved, blocks while
+	    the queue is full, returns the future of the saving of this image */
+	public <T extends NumericType<T>>
+	CompletableFuture<Void> addImgSaveRequest(final RandomAccessibleInterval<T> img,
+	                                          final String path)
+	throws InterruptedException
+	{
+		final ImgPathPair ipp = new ImgPathPair(img,path);
+		shutdownLock.readLock().lockInterruptibly();
+		try
+		{
+			if (isShutdown)
+				throw new IllegalStateException("The saver has been shut down already.");
+			imgQueue.put(ipp);
+		}
+		finally
+		{
+			shutdownLock.readLock().unlock();
+		}
+		return ipp.saved;
+	}
+
+	/** stops accepting new images, waits for the images being added right now */
+	private
+	void stopAccepting()
+	{
+		shutdownLock.writeLock().lock();
+		isShutdown = true;
+		shutdownLock.writeLock().unlock();
+	}
+
+
+	/** the body of every image saving thread: takes the next image from the
+	    queue and saves it, until the poison pill is taken or until interrupted;
+	    the future of every taken image is completed, whatever happens */
+	private
+	void saveImages()
+	{
+		try
+		{
+			ImgPathPair ipp;
+			while ((ipp = imgQueue.take()) != POISON_PILL)
+			{
+				try
+				{
+					saveImage(ipp.img, ipp.path);
+					ipp.saved.complete(null);
+				}
+				catch (Throwable e)
+				{
+					//NB: also an Error (e.g. out of memory while encoding) fails only this image,
+					//    the thread lives on to drain the queue and to take its poison pill
+					ipp.saved.completeExceptionally(e);
+				}
+			}
+		}
+		catch (InterruptedException e)
+		{
+			//just finish the thread
+		}
+	}
+
+	/** saves the image, and throws if the saving has failed
+	    (the IJ.save() would not tell us) */
+	@SuppressWarnings({ "unchecked", "rawtypes" })
+	private
+	void saveImage(final RandomAccessibleInterval<?> rai, final String path)
+	throws IOException
+	{
+		final String lpath = path.toLowerCase();
+		final boolean isTiff = lpath.endsWith(".tif") || lpath.endsWith(".tiff");
+		if (isTiff && DirectTiffWriter.isSupported(rai))
+		{
+			tiffWriter.write((RandomAccessibleInterval)rai, path);
+			return;
+		}
+
+		final ImagePlus img = ImageJFunctions.wrap((RandomAccessibleInterval)rai, path);
+		if (isTiff)
+		{
+			final FileSaver fs = new FileSaver(img);
+			final boolean ok = img.getStackSize() > 1 ? fs.saveAsTiffStack(path) : fs.saveAsTiff(path);
+			if (!ok) throw new IOException("Failed saving image: "+path);
+		}
+		else
+		{
+			IJ.save(img, path);
+			if (!new File(path).exists()) throw new IOException("Failed saving image: "+path);
+		}
+	}
+
+
+	/** makes every image saving thread to finish after all images, that are
+	    currently in the queue, are saved, and waits at most the given time for it;
+	    returns false if some thread has not finished within the time */
+	public
+	boolean shutdownAndAwaitTermination(final long timeout, final TimeUnit unit)
+	throws InterruptedException
+	{
+		stopAccepting();
+
+		//one pill per thread, placed after all images in the queue
+		for (int i=0; i < workersQueue.length; i++)
+			imgQueue.put(POISON_PILL);
+
+		final long deadline = System.nanoTime() + unit.toNanos(timeout);
+		for (Thread t : workersQueue)
+		{
+			final long remaining = deadline - System.nanoTime();
+			if (remaining <= 0) return false;
+			TimeUnit.NANOSECONDS.timedJoin(t, remaining);
+			if (t.isAlive()) return false;
+		}
+		return true;
+	}
+
+	/** makes every image saving thread to finish and waits for it, every
+	    thread finishes its current saving (it is not interrupted, which would
+	    break the writing), the images still waiting in the queue are not saved
+	    and their futures are cancelled */
+	public
+	void shutdownNow()
+	throws InterruptedException
+	{
+		stopAccepting();
+
+		ImgPathPair ipp;
+		while ((ipp = imgQueue.poll()) != null)
+			if (ipp != POISON_PILL)
+				ipp.saved.completeExceptionally(new CancellationException("Saver shut down before saving: "+ipp.path));
+
+		//one pill per still running thread, a full queue is drained by the threads
+		//once they finish their current saving (or by an earlier poison pill)
+		for (Thread t : workersQueue)
+			while (t.isAlive() && !imgQueue.offer(POISON_PILL, 100, TimeUnit.MILLISECONDS))
+			{
+				//NB: just retry while the thread is alive
+			}
+		for (Thread t : workersQueue) t.join();
+	}
+
+
+	private class ImgPathPair
+	{
+		final RandomAccessibleInterval<?> img;
+		final String path;
+		final CompletableFuture<Void> saved = new CompletableFuture<>();
+
+		<T extends NumericType<T>>
+		ImgPathPair(final RandomAccessibleInterval<T> i, final String p)
+		{
+			img = i;
+			path = p;
+		}
+
+		/** the poison pill */
+		ImgPathPair()
+		{
+			img = null;
+			path = null;
+		}
+	}
+}
@@ -0,0 +1,447 @@
+package de.mpicbg.ulman.ctc.Mastodon.util;
+
+import net.imglib2.RandomAccess;
+import net.imglib2.img.Img;
+import net.imglib2.img.planar.PlanarImgFactory;
+import net.imglib2.type.NativeType;
+import net.imglib2.type.numeric.RealType;
+import net.imglib2.type.numeric.integer.UnsignedByteType;
+import net.imglib2.type.numeric.integer.UnsignedIntType;
+import net.imglib2.type.numeric.integer.UnsignedShortType;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * A label image that is split into blocks of the same size, and that
+ * allocates only the blocks that have been written into. Such an image
+ * is stored into a directory of gzip-compressed blocks, one file per
+ * non-empty block, in the layout of an N5 dataset (attributes.json and
+ * blocks in the 'x/y/z' files), so the blocks can be read also with N5.
+ *
+ * The full image (e.g. for the standard CTC TIFF) can be produced on
+ * demand from the stored blocks, see toImg() and main().
+ */
+public class SparseLabelImg
+{
+	/** creates an empty image of the given size, split into blocks of the given size */
+	public
+	SparseLabelImg(final long[] dims, final int[] blockSize)
+	{
+		D = dims.length;
+		this.dims = dims.clone();
+		this.blockSize = blockSize.clone();
+
+		gridDims = new long[D];
+		gridStrides = new long[D];
+		blockStrides = new int[D];
+		int blockLength = 1;
+		for (int d = 0; d < D; ++d)
+		{
+			gridDims[d] = (dims[d] + blockSize[d] -1) / blockSize[d];
+			gridStrides[d] = d == 0 ? 1 : gridStrides[d-1]*gridDims[d-1];
+			blockStrides[d] = blockLength;
+			blockLength *= blockSize[d];
+		}
+		this.blockLength = blockLength;
+	}
+
+	public final int D;
+	private final long[] dims;
+	private final int[] blockSize;
+
+	private final long[] gridDims, gridStrides;
+	private final int[] blockStrides;
+	private final int blockLength;
+
+	/** the allocated blocks, indexed with the flat index within the grid of blocks */
+	private final HashMap<Long,int[]> blocks = new HashMap<>();
+
+	public long dimension(final int d)
+	{ return dims[d]; }
+
+	public int getNoOfBlocks()
+	{ return blocks.size(); }
+
+
+	/** returns the label at the given position */
+	public int getLabel(final long[] pos)
+	{
+		long blockIdx = 0;
+		int offset = 0;
+		for (int d = 0; d < D; ++d)
+		{
+			blockIdx += (pos[d] / blockSize[d]) * gridStrides[d];
+			offset   += (int)(pos[d] % blockSize[d]) * blockStrides[d];
+		}
+		final int[] block = blocks.get(blockIdx);
+		return block == null ? 0 : block[offset];
+	}
+
+	/**
+	 * Sets the 'label' to the run of voxels along the x-axis: the run starts
+	 * at the position 'pos' and ends (inclusive) at the x-coordinate 'xTo'.
+	 * Returns the number of voxels in the run that had a non-zero label before.
+	 */
+	public int setLabelRun(final long[] pos, final long xTo, final int label)
+	{
+		//the block and the offset within it, along the axes other than x
+		long rowBlockIdx = 0;
+		int rowOffset = 0;
+		for (int d = 1; d < D; ++d)
+		{
+			rowBlockIdx += (pos[d] / blockSize[d]) * gridStrides[d];
+			rowOffset   += (int)(pos[d] % blockSize[d]) * blockStrides[d];
+		}
+
+		int overwritten = 0;
+		long x = pos[0];
+		while (x <= xTo)
+		{
+			//the part of the run within the current block
+			final long bx = x / blockSize[0];
+			final long segmentEnd = Math.min(xTo, (bx+1)*blockSize[0] -1);
+
+			final int[] block = blocks.computeIfAbsent(rowBlockIdx + bx, k -> new int[blockLength]);
+			int o = rowOffset + (int)(x - bx*blockSize[0]);
+			for (; x <= segmentEnd; ++x, ++o)
+			{
+				if (block[o] != 0) ++overwritten;
+				block[o] = label;
+			}
+		}
+		return overwritten;
+	}
+
+
+	/** returns the full image, with the voxels of the given type */
+	public <T extends RealType<T> & NativeType<T>>
+	Img<T> toImg(final T type)
+	{
+		final Img<T> img = new PlanarImgFactory<T>(type).create(dims);
+		final RandomAccess<T> ra = img.randomAccess();
+
+		final long[] blockPos = new long[D];
+		final long[] pos = new long[D];
+		final int[] inBlock = new int[D];
+		final int[] cropped = new int[D];
+		for (Map.Entry<Long,int[]> b : blocks.entrySet())
+		{
+			getBlockPosition(b.getKey(), blockPos, cropped);
+			final int[] block = b.getValue();
+
+			//over all rows of the block (cropped to the image)
+			Arrays.fill(inBlock, 0);
+			while (inBlock[D-1] < cropped[D-1])
+			{
+				int o = 0;
+				for (int d = 0; d < D; ++d)
+				{
+					pos[d] = blockPos[d]*blockSize[d] + inBlock[d];
+					o += inBlock[d] * blockStrides[d];
+				}
+				ra.setPosition(pos);
+				for (int x = 0; x < cropped[0]; ++x, ++o, ra.fwd(0))
+					ra.get().setReal(block[o]);
+
+				//next row
+				if (D == 1) break;
+				int d = 1;
+				while (++inBlock[d] >= cropped[d] && d < D-1)
+				{
+					inBlock[d] = 0;
+					++d;
+				}
+			}
+		}
+		return img;
+	}
+
+	/** fills the position of the block (in the grid of blocks), and its size cropped to the image */
+	private void getBlockPosition(final long blockIdx, final long[] blockPos, final int[] croppedSize)
+	{
+		long rest = blockIdx;
+		for (int d = 0; d < D; ++d)
+		{
+			blockPos[d] = rest % gridDims[d];
+			rest /= gridDims[d];
+			croppedSize[d] = (int)Math.min(blockSize[d], dims[d] - blockPos[d]*blockSize[d]);
+		}
+	}
+
+
+	/** the N5 data types of the stored labels, chosen per the bit depth of the voxel type */
+	public static
+	String getDataType(final RealType<?> type)
+	{
+		if (type.getBitsPerPixel() <= 8)  return "uint8";
+		if (type.getBitsPerPixel() <= 16) return "uint16";
+		return "uint32";
+	}
+
+	/**
+	 * Writes the non-empty blocks into the directory 'path', the labels are stored
+	 * with the N5 'dataType' (uint8, uint16 or uint32) in the big endian order, and
+	 * gzip-compressed. The blocks are first written into a sibling directory that
+	 * replaces the 'path' only once complete, so no blocks of an earlier write are
+	 * mixed in, and the earlier content stays intact if the writing fails. The 'path'
+	 * must not exist, or must be an earlier written image (or an empty directory).
+	 */
+	public void write(final String path, final String dataType)
+	throws IOException
+	{
+		final int bytesPerVoxel = getBytesPerVoxel(dataType);
+		final File finalDir = new File(path).getAbsoluteFile();
+		if (finalDir.exists() && !isReplaceable(finalDir))
+			throw new IOException("Refusing to overwrite what is not a label image directory: "+path);
+
+		final File dir = new File(finalDir.getPath()+".partial");
+		deleteTree(dir);
+		if (!dir.mkdirs())
+			throw new IOException("Cannot create the directory: "+dir);
+
+		//the attributes of the N5 dataset
+		final StringBuilder sb = new StringBuilder("{\"n5\":\"2.0.0\",\"dimensions\":[");
+		for (int d = 0; d < D; ++d) sb.append(d > 0 ? "," : "").append(dims[d]);
+		sb.append("],\"blockSize\":[");
+		for (int d = 0; d < D; ++d) sb.append(d > 0 ? "," : "").append(blockSize[d]);
+		sb.append("],\"dataType\":\"").append(dataType)
+		  .append("\",\"compression\":{\"type\":\"gzip\",\"level\":-1,\"useZlib\":false}}");
+
+		boolean isWritten = false;
+		try
+		{
+			final File attributesFile = new File(dir, "attributes.json");
+			Files.write(attributesFile.toPath(), sb.toString().getBytes(StandardCharsets.UTF_8));
+
+			final long[] blockPos = new long[D];
+			final int[] cropped = new int[D];
+			final int[] inBlock = new int[D];
+			for (Map.Entry<Long,int[]> b : blocks.entrySet())
+			{
+				getBlockPosition(b.getKey(), blockPos, cropped);
+				final int[] block = b.getValue();
+
+				File blockFile = dir;
+				for (int d = 0; d < D; ++d) blockFile = new File(blockFile, String.valueOf(blockPos[d]));
+				final File blockDir = blockFile.getParentFile();
+				if (!blockDir.isDirectory() && !blockDir.mkdirs())
+					throw new IOException("Cannot create the directory: "+blockDir);
+
+				try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(blockFile))))
+				{
+					//the N5 block header: default mode, dimensionality and the (cropped) block size
+					out.writeShort(0);
+					out.writeShort(D);
+					for (int d = 0; d < D; ++d) out.writeInt(cropped[d]);
+					out.flush();
+
+					final DataOutputStream data = new DataOutputStream(new BufferedOutputStream(new GZIPOutputStream(out)));
+					Arrays.fill(inBlock, 0);
+					while (inBlock[D-1] < cropped[D-1])
+					{
+						int o = 0;
+						for (int d = 1; d < D; ++d) o += inBlock[d] * blockStrides[d];
+						for (int x = 0; x < cropped[0]; ++x, ++o)
+						{
+							if (bytesPerVoxel == 1) data.writeByte(block[o]);
+							else if (bytesPerVoxel == 2) data.writeShort(block[o]);
+							else data.writeInt(block[o]);
+						}
+
+						//next row
+						if (D == 1) break;
+						int d = 1;
+						while (++inBlock[d] >= cropped[d] && d < D-1)
+						{
+							inBlock[d] = 0;
+							++d;
+						}
+					}
+					data.close();
+				}
+			}
+
+			//replace the earlier content
+			deleteTree(finalDir);
+			if (!dir.renameTo(finalDir))
+				throw new IOException("Cannot rename "+dir+" to "+finalDir);
+			isWritten = true;
+		}
+		finally
+		{
+			//do not leave a partial dataset behind
+			if (!isWritten) deleteTree(dir);
+		}
+	}
+
+	/** removes the image written with write() into the directory 'path', if it exists */
+	public static
+	void remove(final String path)
+	throws IOException
+	{
+		final File dir = new File(path).getAbsoluteFile();
+		if (dir.exists() && !isReplaceable(dir))
+			throw new IOException("Refusing to remove what is not a label image directory: "+path);
+		deleteTree(dir);
+		deleteTree(new File(dir.getPath()+".partial"));
+	}
+
+	/** returns true if the directory 'dir' holds an earlier written image, or is empty */
+	private static
+	boolean isReplaceable(final File dir)
+	{
+		final String[] content = dir.list();
+		return content != null && (content.length == 0 || new File(dir, "attributes.json").isFile());
+	}
+
+	/** deletes the file or the directory 'f' with all its content, if it exists */
+	private static
+	void deleteTree(final File f)
+	throws IOException
+	{
+		final File[] content = f.listFiles();
+		if (content != null)
+			for (File c : content) deleteTree(c);
+		if (f.exists() && !f.delete())
+			throw new IOException("Cannot delete: "+f);
+	}
+
+	/** reads the image from the directory 'path' that was written with write() */
+	public static
+	SparseLabelImg read(final String path)
+	throws IOException
+	{
+		final String attributes = new String(Files.readAllBytes(new File(path, "attributes.json").toPath()), StandardCharsets.UTF_8);
+		final long[] dims = parseArray(attributes, "dimensions");
+		final long[] bs = parseArray(attributes, "blockSize");
+		final int[] blockSize = new int[bs.length];
+		for (int d = 0; d < bs.length; ++d) blockSize[d] = (int)bs[d];
+		final int bytesPerVoxel = getBytesPerVoxel(parseString(attributes, "dataType"));
+
+		final SparseLabelImg img = new SparseLabelImg(dims, blockSize);
+		final int D = img.D;
+
+		final long[] blockPos = new long[D];
+		final int[] cropped = new int[D];
+		final int[] inBlock = new int[D];
+		final long noOfBlocks = img.gridStrides[D-1] * img.gridDims[D-1];
+		for (long blockIdx = 0; blockIdx < noOfBlocks; ++blockIdx)
+		{
+			img.getBlockPosition(blockIdx, blockPos, cropped);
+			File blockFile = new File(path);
+			for (int d = 0; d < D; ++d) blockFile = new File(blockFile, String.valueOf(blockPos[d]));
+			if (!blockFile.isFile()) continue;
+
+			try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(blockFile))))
+			{
+				in.readShort(); //mode
+				if (in.readShort() != D)
+					throw new IOException("Block of wrong dimensionality: "+blockFile);
+				for (int d = 0; d < D; ++d)
+					if (in.readInt() != cropped[d])
+						throw new IOException("Block of wrong size: "+blockFile);
+
+				final int[] block = new int[img.blockLength];
+				final DataInputStream data = new DataInputStream(new BufferedInputStream(new GZIPInputStream(in)));
+				Arrays.fill(inBlock, 0);
+				while (inBlock[D-1] < cropped[D-1])
+				{
+					int o = 0;
+					for (int d = 1; d < D; ++d) o += inBlock[d] * img.blockStrides[d];
+					for (int x = 0; x < cropped[0]; ++x, ++o)
+					{
+						if (bytesPerVoxel == 1) block[o] = data.readUnsignedByte();
+						else if (bytesPerVoxel == 2) block[o] = data.readUnsignedShort();
+						else block[o] = data.readInt();
+					}
+
+					//next row
+					if (D == 1) break;
+					int d = 1;
+					while (++inBlock[d] >= cropped[d] && d < D-1)
+					{
+						inBlock[d] = 0;
+						++d;
+					}
+				}
+				img.blocks.put(blockIdx, block);
+			}
+		}
+		return img;
+	}
+
+	private static
+	int getBytesPerVoxel(final String dataType)
+	{
+		if (dataType.equals("uint8"))  return 1;
+		if (dataType.equals("uint16")) return 2;
+		if (dataType.equals("uint32")) return 4;
+		throw new IllegalArgumentException("Unsupported data type: "+dataType);
+	}
+
+	private static
+	long[] parseArray(final String json, final String key)
+	{
+		final Matcher m = Pattern.compile("\""+key+"\"\\s*:\\s*\\[([^\\]]*)\\]").matcher(json);
+		if (!m.find()) throw new IllegalArgumentException("Missing attribute: "+key);
+		final String[] items = m.group(1).split(",");
+		final long[] vals = new long[items.length];
+		for (int i = 0; i < items.length; ++i) vals[i] = Long.parseLong(items[i].trim());
+		return vals;
+	}
+
+	private static
+	String parseString(final String json, final String key)
+	{
+		final Matcher m = Pattern.compile("\""+key+"\"\\s*:\\s*\"([^\"]*)\"").matcher(json);
+		if (!m.find()) throw new IllegalArgumentException("Missing attribute: "+key);
+		return m.group(1);
+	}
+
+
+	/** converts the blocks directory into the standard CTC TIFF image */
+	public static
+	void main(String[] args)
+	{
+		if (args.length != 2)
+		{
+			System.out.println("Usage: SparseLabelImg blocksDirectory outputImage.tif");
+			System.out.println("Converts the blocks exported by the CTC exporter into a TIFF image.");
+			return;
+		}
+
+		try
+		{
+			final SparseLabelImg img = read(args[0]);
+			final String attributes = new String(Files.readAllBytes(new File(args[0], "attributes.json").toPath()), StandardCharsets.UTF_8);
+			final String dataType = parseString(attributes, "dataType");
+
+			final DirectTiffWriter writer = new DirectTiffWriter(false, 1);
+			if (dataType.equals("uint8"))
+				writer.write(img.toImg(new UnsignedByteType()), args[1]);
+			else if (dataType.equals("uint16"))
+				writer.write(img.toImg(new UnsignedShortType()), args[1]);
+			else
+				writer.write(img.toImg(new UnsignedIntType()), args[1]);
+		}
+		catch (IOException e) {
+			System.out.println("Failed converting the blocks: "+e.getMessage());
+		}
+	}
+}
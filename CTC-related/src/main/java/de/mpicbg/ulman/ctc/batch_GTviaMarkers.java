@@ -0,0 +1,349 @@
+/*
+ * CC BY-SA 4.0
+ *
+ * The code is licensed with "Attribution-ShareAlike 4.0 International license".
+ * See the license details:
+ *     https://creativecommons.org/licenses/by-sa/4.0/
+ */
+package de.mpicbg.ulman.ctc;
+
+import org.scijava.Context;
+import org.scijava.log.LogService;
+import net.imagej.ops.OpService;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+
+import java.util.List;
+import java.util.TreeSet;
+import java.util.ArrayList;
+import java.text.ParseException;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ExecutionException;
+
+import de.mpicbg.ulman.ctc.workers.machineGTViaMarkers_Worker;
+import de.mpicbg.ulman.ctc.workers.DefaultCombineGTsViaMarkers;
+import de.mpicbg.ulman.ctc.util.NumberSequenceHandler;
+
+/**
+ * Headless command-line counterpart of the plugin_GTviaMarkers, intended for
+ * cluster nodes: it merges the time points of the job file, possibly only
+ * a shard of them, in parallel, and can write statistics of every merged
+ * time point into a JSON file.
+ *
+ * Usage: batch_GTviaMarkers [options] jobFile timepoints outputPattern
+ *
+ * The jobFile is the same as for the plugin_GTviaMarkers, the timepoints
+ * are given in the same way (e.g. "0-9,12,15-20"), the outputPattern must
+ * contain XXX or XXXX. Options:
+ *
+ *   --majority           use the "Majority" merging model (the default)
+ *   --threshold X        use the "Threshold - flat weights" model with threshold X
+ *   --user-weights X     use the "Threshold - user weights" model with threshold X,
+ *                        the weights are in the second column of the job file
+ *   --shard k/N          split the (sorted) timepoints into N consecutive parts of
+ *                        nearly equal size and process only the k-th one (k = 0..N-1)
+ *   --threads T          merge at most T time points in parallel (default: all CPUs),
+ *                        the number may be lowered if not enough memory is available
+ *   --stats file.json    write statistics of every time point into this file
+ *   --cell-images        read the images piece-wise and cache the result on disk, this
+ *                        lowers the memory held by the full-size images, but the merging
+ *                        is not block-wise and the images must still fit into the memory
+ *                        (per-label data are held in it, see machineGTViaMarkers_Worker)
+ *
+ * The program exits with non-zero code if some time point could not be merged
+ * or its result could not be saved.
+ */
+public class batch_GTviaMarkers
+{
+	public static void main(String... args)
+	{
+		//defaults
+		boolean weightAvail = false;
+		boolean isMajority = true;
+		float threshold = 0.f;
+		int shardIdx = 0, noOfShards = 1;
+		int noOfThreads = Runtime.getRuntime().availableProcessors();
+		String statsFile = null;
+		boolean cellImgMode = false;
+		final List<String> positional = new ArrayList<>(3);
+
+		//parse the command line
+		try {
+			for (int i = 0; i < args.length; ++i)
+			{
+				switch (args[i])
+				{
+				case "--majority":
+					isMajority = true;
+					weightAvail = false;
+					break;
+				case "--threshold":
+					isMajority = false;
+					weightAvail = false;
+					threshold = Float.parseFloat(args[++i]);
+					break;
+				case "--user-weights":
+					isMajority = false;
+					weightAvail = true;
+					threshold = Float.parseFloat(args[++i]);
+					break;
+				case "--shard":
+					final String[] shard = args[++i].split("/");
+					if (shard.length != 2)
+						throw new IllegalArgumentException("Shard must be given as k/N.");
+					shardIdx   = Integer.parseInt(shard[0]);
+					noOfShards = Integer.parseInt(shard[1]);
+					if (noOfShards < 1 || shardIdx < 0 || shardIdx >= noOfShards)
+						throw new IllegalArgumentException("Shard must be given as k/N with 0 <= k < N.");
+					break;
+				case "--threads":
+					noOfThreads = Integer.parseInt(args[++i]);
+					if (noOfThreads < 1)
+						throw new IllegalArgumentException("At least one thread is required.");
+					break;
+				case "--stats":
+					statsFile = args[++i];
+					break;
+				case "--cell-images":
+					cellImgMode = true;
+					break;
+				default:
+					if (args[i].startsWith("--"))
+						throw new IllegalArgumentException("Unknown option "+args[i]);
+					positional.add(args[i]);
+				}
+			}
+			if (positional.size() != 3)
+				throw new IllegalArgumentException("Expected exactly jobFile, timepoints and outputPattern.");
+		}
+		catch (ArrayIndexOutOfBoundsException | IllegalArgumentException e)
+		{
+			//NB: NumberFormatException is an IllegalArgumentException
+			System.out.println("Usage: batch_GTviaMarkers [--majority | --threshold X | --user-weights X]");
+			System.out.println("                          [--shard k/N] [--threads T] [--stats file.json] [--cell-images]");
+			System.out.println("                          jobFile timepoints outputPattern");
+			System.out.println("Error: "+(e instanceof ArrayIndexOutOfBoundsException ? "missing option value" : e.getMessage()));
+			System.exit(2);
+			return;
+		}
+
+		final Context ctx = new Context(OpService.class, LogService.class);
+		int failedFrames = 0;
+		try {
+			failedFrames = new batch_GTviaMarkers(ctx.getService(OpService.class), ctx.getService(LogService.class))
+				.work(positional.get(0), positional.get(1), positional.get(2),
+				      weightAvail, isMajority, threshold,
+				      shardIdx, noOfShards, noOfThreads, statsFile, cellImgMode);
+		}
+		catch (IOException | ParseException | RuntimeException e)
+		{
+			System.out.println("batch_GTviaMarkers error: "+e.getMessage());
+			failedFrames = -1;
+		}
+		finally {
+			ctx.dispose();
+		}
+
+		System.exit(failedFrames == 0 ? 0 : 1);
+	}
+
+
+	///shortcuts to some Fiji services
+	private final OpService ops;
+	private final LogService log;
+
+	public batch_GTviaMarkers(final OpService _ops, final LogService _log)
+	{
+		if (_ops == null || _log == null)
+			throw new RuntimeException("Please, give me existing OpService and LogService.");
+
+		ops = _ops;
+		log = _log;
+	}
+
+	///statistics of one time point, as collected by work()
+	private static class FrameReport
+	{
+		int timepoint;
+		String outputFile;
+		///true only if the time point was merged and its result was saved successfully
+		boolean merged = false;
+		///true if reading, merging or saving of the time point has failed
+		boolean failed = false;
+		///from the start of reading till the result was saved, see machineGTViaMarkers_Worker.getLastSeconds()
+		double seconds;
+		DefaultCombineGTsViaMarkers.MergingStats stats;
+	}
+
+	/**
+	 * Merges the time points of the given shard, see the class documentation for the
+	 * meaning of the parameters, and returns the number of time points that failed.
+	 */
+	public int work(final String jobFile, final String timepoints, final String outputPattern,
+	                final boolean weightAvail, final boolean isMajority, final float threshold,
+	                final int shardIdx, final int noOfShards, final int maxThreads,
+	                final String statsFile, final boolean cellImgMode)
+	throws IOException, ParseException
+	{
+		//the generic job specification
+		final List<String> job = Files.readAllLines(Paths.get(jobFile));
+		if (job.size() < 2)
+			throw new IllegalArgumentException("Job file must list at least one input and the markers.");
+		for (int i = 0; i < job.size()-1; ++i)
+			if (weightAvail && job.get(i).trim().split("\\s+").length < 2)
+				throw new IllegalArgumentException("Missing column with weights on line "+(i+1)+".");
+
+		final String[] argsPattern = plugin_GTviaMarkers.createJobPattern(job, weightAvail,
+			isMajority, threshold, new File(outputPattern).getAbsolutePath());
+		for (int i = 0; i < argsPattern.length; i += 2)
+			if (argsPattern[i].indexOf("XXX") == -1)
+				throw new IllegalArgumentException("Filename \""+argsPattern[i]+"\" does not contain XXX or XXXX pattern.");
+		for (int i = 1; i < argsPattern.length-2; i += 2)
+			Float.parseFloat(argsPattern[i]);
+
+		//the time points of this shard
+		final TreeSet<Integer> fileIdxList = new TreeSet<>();
+		NumberSequenceHandler.parseSequenceOfNumbers(timepoints,fileIdxList);
+		final List<Integer> allIdxs = new ArrayList<>(fileIdxList);
+		final List<Integer> shardIdxs = allIdxs.subList(
+			(int)((long)shardIdx     * allIdxs.size() / noOfShards),
+			(int)((long)(shardIdx+1) * allIdxs.size() / noOfShards) );
+		log.info("Shard "+shardIdx+"/"+noOfShards+": "+shardIdxs.size()+" of "+allIdxs.size()+" time points.");
+		if (shardIdxs.size() == 0) return 0;
+
+		final List<String[]> allArgs = new ArrayList<>(shardIdxs.size());
+		final FrameReport[] reports = new FrameReport[shardIdxs.size()];
+		for (int j = 0; j < shardIdxs.size(); ++j)
+		{
+			final String[] jobArgs = plugin_GTviaMarkers.expandJob(argsPattern, shardIdxs.get(j));
+			allArgs.add(jobArgs);
+
+			reports[j] = new FrameReport();
+			reports[j].timepoint  = shardIdxs.get(j);
+			reports[j].outputFile = jobArgs[jobArgs.length-1];
+		}
+
+		//merge, every worker takes its own run of consecutive time points
+		//NB: also in the cell images mode, as the voting buffers can be image-sized
+		final int noOfThreads = plugin_GTviaMarkers.getNoOfParallelTimepoints(argsPattern,
+				shardIdxs.get(0), Math.min(maxThreads, shardIdxs.size()), log);
+		final ExecutorService workers = Executors.newFixedThreadPool(noOfThreads);
+		long ttime = System.currentTimeMillis();
+		try {
+			final List<Future<?>> jobs = new ArrayList<>(noOfThreads);
+			for (int t = 0; t < noOfThreads; ++t)
+			{
+				final int from = (int)((long)t     * allArgs.size() / noOfThreads);
+				final int to   = (int)((long)(t+1) * allArgs.size() / noOfThreads);
+				if (from == to) continue;
+
+				jobs.add( workers.submit( () -> {
+					final machineGTViaMarkers_Worker Worker = new machineGTViaMarkers_Worker(ops,log);
+					Worker.setCellImgMode(cellImgMode);
+
+					Worker.work( allArgs.subList(from,to), () -> false,
+						j -> {
+							final FrameReport report = reports[from+j];
+							report.merged  = true;
+							report.seconds = Worker.getLastSeconds();
+							report.stats   = Worker.getLastStats();
+							log.info("time point "+report.timepoint+" read, merged and saved in "+report.seconds+" seconds");
+						},
+						j -> {
+							final FrameReport report = reports[from+j];
+							report.merged = false;
+							report.failed = true;
+						} );
+				} ) );
+			}
+
+			for (Future<?> j : jobs)
+			{
+				try {
+					j.get();
+				}
+				catch (ExecutionException e) {
+					log.error("batch_GTviaMarkers error: "+e.getCause());
+				}
+			}
+		}
+		catch (InterruptedException e) {
+			log.error("batch_GTviaMarkers error: interrupted while waiting for the merging: "+e);
+		}
+		finally {
+			workers.shutdownNow();
+		}
+
+		ttime = System.currentTimeMillis() - ttime;
+		log.info("TOTAL ELAPSED TIME: "+(ttime/1000)+" seconds");
+
+		int failedFrames = 0;
+		for (FrameReport r : reports)
+			if (!r.merged)
+			{
+				log.error("batch_GTviaMarkers: time point "+r.timepoint+(r.failed
+					? " failed to be read, merged or saved." : " was not merged."));
+				++failedFrames;
+			}
+
+		if (statsFile != null) writeStats(statsFile, jobFile, shardIdx, noOfShards, reports);
+		return failedFrames;
+	}
+
+	///writes the \e reports as JSON into the \e statsFile
+	private
+	void writeStats(final String statsFile, final String jobFile,
+	                final int shardIdx, final int noOfShards,
+	                final FrameReport[] reports)
+	throws IOException
+	{
+		try (PrintWriter out = new PrintWriter(Files.newBufferedWriter(Paths.get(statsFile))))
+		{
+			out.println("{");
+			out.println("  \"jobFile\": \""+escapeJSON(jobFile)+"\",");
+			out.println("  \"shard\": \""+shardIdx+"/"+noOfShards+"\",");
+			out.println("  \"frames\": [");
+			for (int j = 0; j < reports.length; ++j)
+			{
+				final FrameReport r = reports[j];
+				out.print("    { \"timepoint\": "+r.timepoint
+				         +", \"output\": \""+escapeJSON(r.outputFile)+"\""
+				         +", \"merged\": "+r.merged
+				         +", \"failed\": "+r.failed);
+				if (r.merged)
+				{
+					out.print(", \"seconds\": "+r.seconds);
+					if (r.stats != null)
+					{
+						out.print(", \"markers\": "+r.stats.allMarkers
+						         +", \"notFound\": "+r.stats.notFoundMarkers
+						         +", \"atBorder\": "+r.stats.borderMarkers
+						         +", \"colliding\": "+r.stats.collidingMarkers
+						         +", \"secured\": "+r.stats.securedMarkers
+						         +", \"collisionHistogram\": [");
+						for (int h = 0; h < r.stats.collisionHistogram.length; ++h)
+							out.print((h > 0 ? "," : "")+r.stats.collisionHistogram[h]);
+						out.print("]");
+					}
+				}
+				out.println(" }"+(j+1 < reports.length ? "," : ""));
+			}
+			out.println("  ]");
+			out.println("}");
+		}
+		log.info("Statistics written into: "+statsFile);
+	}
+
+	private static
+	String escapeJSON(final String s)
+	{
+		return s.replace("\\","\\\\").replace("\"","\\\"");
+	}
+}
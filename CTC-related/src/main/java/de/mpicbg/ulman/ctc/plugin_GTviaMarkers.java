@@ -28,8 +28,15 @@ import io.scif.img.ImgIOException;
 import java.util.List;
 
 import java.util.TreeSet;
+import java.util.ArrayList;
 import java.text.ParseException;
 
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+
 import javax.swing.BoxLayout;
 import javax.swing.JFrame;
 import org.jhotdraw.samples.svg.gui.ProgressIndicator;
@@ -107,6 +114,16 @@ public class plugin_GTviaMarkers implements Command
 		callback = "outFileOKAY")
 	private File outputPath = new File("CHANGE THIS PATH/mergedXXX.tif");
 
+	@Parameter(label = "Number of time points merged in parallel:", min = "1",
+		description = "The number may be lowered automatically if not enough memory is available.")
+	private int noOfWorkers = Runtime.getRuntime().availableProcessors();
+
+	@Parameter(label = "Reduce memory held by the full-size images:",
+		description = "Images are opened as cell images that are read piece-wise, and the result is cached on disk. "
+		             +"The merging is not block-wise, per-label data (voxel runs and voting buffers of the labels' boxes, "
+		             +"which can be image-sized) are still held in memory, so the images must still fit in it.")
+	private boolean doCellImgMode = false;
+
 
 	//citation footer...
 	@Parameter(visibility = ItemVisibility.MESSAGE, persist = false, required = false, label = "Please, refer to:")
@@ -300,8 +317,87 @@ public class plugin_GTviaMarkers implements Command
 		return true;
 	}
 
+	/**
+	 * Parses the lines of a (sane, see inFileOKAY()) job file into a generic job
+	 * specification: pairs of input filename pattern and its weight, the marker
+	 * filename pattern, the threshold and the output filename pattern. If \e weightAvail,
+	 * the weights are read from the second column of the job file, otherwise 1.0 is used.
+	 * If \e isMajority, the threshold is set to the majority of the inputs.
+	 * Use expandJob() to obtain a particular time point instance of the job.
+	 */
+	static
+	String[] createJobPattern(final List<String> job, final boolean weightAvail,
+	                          final boolean isMajority, final float mergeThreshold,
+	                          final String outputPattern)
+	{
+		//prepare the output array
+		String[] argsPattern = new String[2*job.size()+1]; //= 2*(job.size()-1) +1 +2
+
+		//parse the input job specification file (which we know is sane for sure)
+		int lineNo=0;
+		for (String line : job)
+		{
+			//this currently represents the first column/complete line
+			String partOne = line;
+
+			//should there be the weight column on this line?
+			//are we still on lines where weight column should be handled?
+			if (lineNo < (job.size()-1))
+			{
+				if (weightAvail)
+				{
+					//yes, there should be one...
+					String[] lineTokens = line.split("\\s+");
+					//NB: inFileOKAY() was true, so there is the second column
+
+					//get the first part into the partOne variable
+					partOne = new String(); //NB: could be nice to be able to tell the String how much to reserve as we know it
+					for (int q=0; q < lineTokens.length-1; ++q)
+						partOne += lineTokens[q];
+
+					//the weight itself
+					argsPattern[2*lineNo +1] = lineTokens[lineTokens.length-1];
+				}
+				else
+				{
+					//if user-weights not available, provide own ones
+					//(provided we are not parsing the very last line with TRA marker image)
+					argsPattern[2*lineNo +1] = "1.0";
+				}
+			}
+
+			//add the input file item as well
+			argsPattern[2*lineNo +0] = partOne;
+
+			++lineNo;
+		}
+
+		final float threshold =
+			isMajority ? (int)((job.size()-1)/2)+1.0f : mergeThreshold;
+		argsPattern[2*lineNo -1] = Float.toString(threshold);
+		argsPattern[2*lineNo +0] = outputPattern;
+		//generic job specification is done
+
+		return argsPattern;
+	}
+
+	///returns a new instance of the \e argsPattern (see createJobPattern()) for the time point \e idx
+	static
+	String[] expandJob(final String[] argsPattern, final int idx)
+	{
+		final String[] args = new String[argsPattern.length];
+		for (int i=0; i < args.length-2; i+=2)
+		{
+			args[i]   = expandFilenamePattern(argsPattern[i],idx);
+			args[i+1] = argsPattern[i+1]; //weights and the threshold are constant all the time
+		}
+		args[args.length-1] = expandFilenamePattern(argsPattern[args.length-1],idx);
+		return args;
+	}
+
 	/** populates Xs in the \e pattern with \e idx, and returns result in a new string,
 	    it supports XXX or XXXX */
+	static
 	String expandFilenamePattern(final String pattern, final int idx)
 	{
 		//detect position
@@ -316,6 +412,36 @@ public class plugin_GTviaMarkers implements Command
 		return res;
 	}
 
+	/**
+	 * Determines how many time points can be merged in parallel: not more than
+	 * \e noOfWorkers, and not more than what fits into the available memory.
+	 * The memory demand of one worker is estimated from the sizes of the input
+	 * files (assuming they are not compressed) at the time point \e idx: every
+	 * worker is a pipeline (see machineGTViaMarkers_Worker.work(List,...)) that
+	 * holds the input and marker images of two time points (the merged one and
+	 * the one being read), and two output images (the merged one and the one
+	 * being written), and the auxiliary data of the merging are about the size
+	 * of the marker image.
+	 */
+	static
+	int getNoOfParallelTimepoints(final String[] argsPattern, final int idx,
+	                              final int noOfWorkers, final LogService log)
+	{
+		long frameSize = 0;
+		for (int i=0; i < argsPattern.length-2; i+=2)
+			frameSize += new File(expandFilenamePattern(argsPattern[i],idx)).length();
+		frameSize = 2*frameSize + 3*new File(expandFilenamePattern(argsPattern[argsPattern.length-3],idx)).length();
+		frameSize = Math.max(frameSize,1);
+
+		final Runtime rt = Runtime.getRuntime();
+		final long freeMemory = rt.maxMemory() - (rt.totalMemory() - rt.freeMemory());
+		final long fittingFrames = Math.max( (long)(0.8*freeMemory) / frameSize, 1 );
+
+		log.info("Estimated memory per worker: "+(frameSize>>20)+" MB, available: "+(freeMemory>>20)
+			+" MB, thus merging up to "+Math.min(noOfWorkers,fittingFrames)+" time points in parallel.");
+		return (int)Math.min(noOfWorkers,fittingFrames);
+	}
+
 
 	//the GUI path entry function:
 	@Override
@@ -357,77 +483,27 @@ public class plugin_GTviaMarkers implements Command
 			log.error("plugin_GTviaMarkers error: "+e);
 		}
 
-		//prepare the output array
-		String[] argsPattern = new String[2*job.size()+1]; //= 2*(job.size()-1) +1 +2
-
-		//parse the input job specification file (which we know is sane for sure)
-		int lineNo=0;
-		for (String line : job)
-		{
-			//this currently represents the first column/complete line
-			String partOne = line;
-
-			//should there be the weight column on this line?
-			//are we still on lines where weight column should be handled?
-			if (lineNo < (job.size()-1))
-			{
-				if (weightAvail)
-				{
-					//yes, there should be one...
-					String[] lineTokens = line.split("\\s+");
-					//NB: inFileOKAY() was true, so there is the second column
-
-					//get the first part into the partOne variable
-					partOne = new String(); //NB: could be nice to be able to tell the String how much to reserve as we know it
-					for (int q=0; q < lineTokens.length-1; ++q)
-						partOne += lineTokens[q];
-
-					//the weight itself
-					argsPattern[2*lineNo +1] = lineTokens[lineTokens.length-1];
-				}
-				else
-				{
-					//if user-weights not available, provide own ones
-					//(provided we are not parsing the very last line with TRA marker image)
-					argsPattern[2*lineNo +1] = "1.0";
-				}
-			}
-
-			//add the input file item as well
-			argsPattern[2*lineNo +0] = partOne;
-
-			++lineNo;
-		}
-
-		final float threshold =
-			mergeModel.startsWith("Majority") ? (int)((job.size()-1)/2)+1.0f : mergeThreshold;
-		argsPattern[2*lineNo -1] = Float.toString(threshold);
-		argsPattern[2*lineNo +0] = outputPath.getAbsolutePath();
-		//generic job specification is done
-
-		//create an array to hold an "expanded"/instantiated job
-		String[] args = new String[argsPattern.length];
-
-		//save the threshold value which is constant all the time
-		args[args.length-2] = argsPattern[args.length-2];
-		//
-		//also weights are constant all the time
-		for (int i=1; i < args.length-3; i+=2) args[i] = argsPattern[i];
+		//prepare the generic job specification
+		final String[] argsPattern = createJobPattern(job, weightAvail,
+			mergeModel.startsWith("Majority"), mergeThreshold, outputPath.getAbsolutePath());
 
 		//defined here so that finally() block can see them...
 		JFrame frame = null;
 		Button pbtn = null;
 		ProgressIndicator pbar = null;
 		ButtonHandler pbtnHandler = null;
+		ExecutorService workers = null;
 
 		try {
 			//parse out the list of timepoints
 			TreeSet<Integer> fileIdxList = new TreeSet<>();
 			NumberSequenceHandler.parseSequenceOfNumbers(fileIdxStr,fileIdxList);
+			if (fileIdxList.size() == 0) return;
 
-			//start up the worker class
-			final machineGTViaMarkers_Worker Worker
-				= new machineGTViaMarkers_Worker(ops,log);
+			//start up the pool of workers
+			//NB: also in the cell images mode, as the voting buffers can be image-sized
+			final int noOfThreads = getNoOfParallelTimepoints(argsPattern, fileIdxList.first(), noOfWorkers, log);
+			workers = Executors.newFixedThreadPool(noOfThreads);
 
 			//prepare a progress bar:
 			//init the components of the bar
@@ -450,39 +526,73 @@ public class plugin_GTviaMarkers implements Command
 				if (uiService.isVisible()) frame.setVisible(true);
 			}
 
+			//shared progress reporting
+			final ProgressIndicator progressBar = pbar;
+			final ButtonHandler stopButton = pbtnHandler;
+			final AtomicInteger progresCnt = new AtomicInteger(0);
+
 			long ttime = System.currentTimeMillis();
 
-			//iterate over all jobs
-			int progresCnt = 0;
-			for (Integer idx : fileIdxList)
+			//populate/expand to get particular instances of the job
+			final ArrayList<String[]> allArgs = new ArrayList<>(fileIdxList.size());
+			final ArrayList<Integer> allIdxs = new ArrayList<>(fileIdxList);
+			for (Integer idx : allIdxs)
 			{
-				if (frame != null)
-				{
-					pbar.setProgress(progresCnt++);
-					if (pbtnHandler.buttonPressed()) break;
-				}
-
-				//first populate/expand to get a particular instance of a job
-				for (int i=0; i < args.length-2; i+=2)
-					args[i] = expandFilenamePattern(argsPattern[i],idx);
-				args[args.length-1] = expandFilenamePattern(argsPattern[args.length-1],idx);
+				final String[] args = expandJob(argsPattern,idx);
+				allArgs.add(args);
 
-				log.info("new job:");
+				String jobReport = "new job for time point "+idx+":";
 				int i=0;
 				for (; i < args.length-3; i+=2)
-					log.info(i+": "+args[i]+"  "+args[i+1]);
+					jobReport += "\n"+i+": "+args[i]+"  "+args[i+1];
 				for (; i < args.length; ++i)
-					log.info(i+": "+args[i]);
+					jobReport += "\n"+i+": "+args[i];
+				log.info(jobReport);
+			}
 
+			//submit all jobs: every worker gets its own run of consecutive time points,
+			//which it processes with its own reading/merging/writing pipeline
+			final ArrayList<Future<?>> jobs = new ArrayList<>(noOfThreads);
+			for (int t=0; t < noOfThreads; ++t)
+			{
+				final int from = (int)((long)t     * allArgs.size() / noOfThreads);
+				final int to   = (int)((long)(t+1) * allArgs.size() / noOfThreads);
+				if (from == to) continue;
+
+				jobs.add( workers.submit( () -> {
+					final machineGTViaMarkers_Worker Worker = new machineGTViaMarkers_Worker(ops,log);
+					Worker.setCellImgMode(doCellImgMode);
+
+					Worker.work( allArgs.subList(from,to),
+						() -> stopButton != null && stopButton.buttonPressed(),
+						j -> {
+							log.info("time point "+allIdxs.get(from+j)+" read, merged and saved in "+Worker.getLastSeconds()+" seconds");
+
+							if (progressBar != null) progressBar.setProgress(progresCnt.incrementAndGet());
+						},
+						j -> {
+							//the failure itself has been reported by the Worker
+							if (progressBar != null) progressBar.setProgress(progresCnt.incrementAndGet());
+						} );
+				} ) );
+			}
 
-				long time = System.currentTimeMillis();
-				Worker.work(args);
-				time -= System.currentTimeMillis();
-				System.out.println("ELAPSED TIME: "+(-time/1000)+" seconds");
+			//wait for all jobs to finish
+			for (int j=0; j < jobs.size(); ++j)
+			{
+				try {
+					jobs.get(j).get();
+				}
+				catch (ExecutionException e) {
+					log.error("plugin_GTviaMarkers error: "+e.getCause());
+				}
 			}
 
 			ttime -= System.currentTimeMillis();
-			System.out.println("TOTAL ELAPSED TIME: "+(-ttime/1000)+" seconds");
+			log.info("TOTAL ELAPSED TIME: "+(-ttime/1000)+" seconds");
+		}
+		catch (InterruptedException e) {
+			log.error("plugin_GTviaMarkers error: interrupted while waiting for the merging: "+e);
 		}
 		catch (UnsupportedOperationException | ImgIOException e) {
 			log.error("plugin_GTviaMarkers error: "+e);
@@ -493,6 +603,8 @@ public class plugin_GTviaMarkers implements Command
 				uiService.showDialog("Timepoints:\n"+e.getMessage());
 		}
 		finally {
+			if (workers != null) workers.shutdownNow();
+
 			//hide away the progress bar once the job is done
 			if (frame != null)
 			{
@@ -0,0 +1,357 @@
+/*
+ * CC BY-SA 4.0
+ *
+ * The code is licensed with "Attribution-ShareAlike 4.0 International license".
+ * See the license details:
+ *     https://creativecommons.org/licenses/by-sa/4.0/
+ */
+package de.mpicbg.ulman.ctc.util;
+
+import net.imglib2.Cursor;
+import net.imglib2.FinalInterval;
+import net.imglib2.Interval;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.type.numeric.IntegerType;
+import net.imglib2.type.numeric.RealType;
+import net.imglib2.util.Util;
+import net.imglib2.view.Views;
+
+import java.util.Arrays;
+import java.util.HashMap;
+
+/**
+ * Index of all labels (positive voxel values) found in a label image.
+ * The index is built with a single sweep over the image, and it provides for
+ * every label its voxel count, its AABB (axes-aligned bounding box), the sum
+ * of coordinates of its voxels and, optionally, the list of runs of its voxels.
+ *
+ * A run is a maximal sequence of voxels of the same label that are consecutive
+ * along the first axis (x-axis), runs never span over more image rows. A run is
+ * described with the flat index of its first voxel and with its length, see
+ * getRunPosition() to obtain the image coordinate of the first voxel.
+ *
+ * If the voxel type is an unsigned integer type of at most 16 bits, all per-label
+ * data are stored in dense arrays indexed directly with the label values (the
+ * arrays grow as larger labels are discovered). Otherwise, the labels are mapped
+ * to the slots of the arrays (in the order of their discovery) with a hash map,
+ * which is slower but has no limit on the label values. The voxel values must
+ * be integers then (also if the voxel type is a floating-point one), values
+ * that are not positive are considered to be the background.
+ */
+public class LabelIndex
+{
+	///the largest label the dense arrays are used for
+	public static final int MAX_LABEL = 65535;
+
+	///returns true if the voxel type of the image guarantees labels from 0 to MAX_LABEL,
+	///the index of such image is stored in the dense arrays
+	public static boolean isDenselyIndexable(final RandomAccessibleInterval<? extends RealType<?>> img)
+	{
+		final RealType<?> type = Util.getTypeFromInterval(img);
+		return type instanceof IntegerType && type.getMinValue() >= 0 && type.getMaxValue() <= MAX_LABEL;
+	}
+
+	///builds the index of the labels of the given image, without the runs
+	public LabelIndex(final RandomAccessibleInterval<? extends RealType<?>> img)
+	{
+		this(img,false);
+	}
+
+	///builds the index of the labels of the given image, with the runs if \e doRuns is true
+	public LabelIndex(final RandomAccessibleInterval<? extends RealType<?>> img, final boolean doRuns)
+	{
+		D = img.numDimensions();
+		imgMin  = new long[D];
+		imgDims = new long[D];
+		img.min(imgMin);
+		img.dimensions(imgDims);
+		storeRuns = doRuns;
+		isDense = isDenselyIndexable(img);
+		sparseSlots = isDense ? null : new HashMap<>(1000);
+
+		ensureCapacity(255);
+		buildIndex(img);
+	}
+
+
+	// ----------- the index itself -----------
+	///dimensionality of the indexed image
+	public final int D;
+
+	///the lower corner and size of the indexed image (for the conversions of flat indices)
+	private final long[] imgMin, imgDims;
+
+	///flag if the runs are stored
+	private final boolean storeRuns;
+
+	///flag if the per-label arrays are indexed directly with the labels,
+	///otherwise with the slots given in this.sparseSlots
+	private final boolean isDense;
+	private final HashMap<Integer,Integer> sparseSlots;
+
+	///discovered labels, in the order of their discovery (in the flat iteration order)
+	private int[] labels = new int[64];
+	private int labelsCnt = 0;
+
+	//NB: all following arrays are indexed with the label (dense) or with its slot (sparse)
+	///voxel counts per label, zero indicates the label was not found
+	private long[] counts;
+
+	///AABBs per label, every box is D-times the "lower-left" corner and then D-times the "upper-right" corner
+	private long[] boxes;
+
+	///sums of coordinates per label, D-times per label
+	private double[] coordSums;
+
+	///runs per label, every run is a pair of flat index and length
+	private long[][] runs;
+	///the number of used items in the runs arrays per label
+	private int[] runsLengths;
+
+
+	private void ensureCapacity(final int slot)
+	{
+		final int oldCapacity = counts != null ? counts.length : 0;
+		if (slot < oldCapacity) return;
+
+		int newCapacity = Math.max(2*oldCapacity, slot+1);
+		if (isDense && newCapacity > MAX_LABEL+1) newCapacity = MAX_LABEL+1;
+
+		counts    = counts    != null ? Arrays.copyOf(counts,    newCapacity)   : new long[newCapacity];
+		boxes     = boxes     != null ? Arrays.copyOf(boxes,   2*D*newCapacity) : new long[2*D*newCapacity];
+		coordSums = coordSums != null ? Arrays.copyOf(coordSums, D*newCapacity) : new double[D*newCapacity];
+		if (storeRuns)
+		{
+			runs        = runs        != null ? Arrays.copyOf(runs,        newCapacity) : new long[newCapacity][];
+			runsLengths = runsLengths != null ? Arrays.copyOf(runsLengths, newCapacity) : new int[newCapacity];
+		}
+	}
+
+	private void buildIndex(final RandomAccessibleInterval<? extends RealType<?>> img)
+	{
+		final Cursor<? extends RealType<?>> cursor = Views.flatIterable(img).localizingCursor();
+
+		//the currently open run
+		int runLabel = 0;
+		long runStart = 0;
+		long runLength = 0;
+		final long[] runPos = new long[D];
+
+		//flat index of the current voxel, and its x-coordinate (relative to the image)
+		long idx = 0;
+		long x = 0;
+		final long rowLength = imgDims[0];
+
+		while (cursor.hasNext())
+		{
+			final double value = cursor.next().getRealDouble();
+			int label = (int)value;
+			if (!isDense)
+			{
+				if (value <= 0) label = 0;
+				else if (label != value)
+					throw new IllegalArgumentException("LabelIndex: voxel value "+value
+						+" is not a label (integer from 1 to "+Integer.MAX_VALUE+").");
+			}
+
+			if (label != runLabel)
+			{
+				//close the previous run (if any), and open a new one (if not background)
+				if (runLabel > 0) closeRun(runLabel, runStart,runLength, runPos);
+				runLabel = label;
+				if (label > 0)
+				{
+					runStart = idx;
+					runLength = 0;
+					cursor.localize(runPos);
+				}
+			}
+			if (label > 0) ++runLength;
+
+			++idx;
+			if (++x == rowLength)
+			{
+				//end of row, which also ends any run
+				if (runLabel > 0) closeRun(runLabel, runStart,runLength, runPos);
+				runLabel = 0;
+				x = 0;
+			}
+		}
+
+		//close the last run (for the case the image is not a full row)
+		if (runLabel > 0) closeRun(runLabel, runStart,runLength, runPos);
+	}
+
+	private void closeRun(final int label, final long start, final long length, final long[] pos)
+	{
+		//the slot of this label, possibly a new one
+		int slot = label;
+		if (!isDense)
+		{
+			final Integer s = sparseSlots.get(label);
+			if (s != null) slot = s;
+			else
+			{
+				slot = labelsCnt;
+				sparseSlots.put(label,slot);
+			}
+		}
+		ensureCapacity(slot);
+
+		final int bOff = 2*D*slot;
+		final int cOff = D*slot;
+		if (counts[slot] == 0)
+		{
+			//new label
+			if (labelsCnt == labels.length) labels = Arrays.copyOf(labels, 2*labels.length);
+			labels[labelsCnt++] = label;
+
+			for (int d = 0; d < D; ++d)
+			{
+				boxes[bOff+d]   = pos[d];
+				boxes[bOff+D+d] = pos[d];
+			}
+		}
+
+		//the run spans from pos[0] to pos[0]+length-1 along the x-axis
+		counts[slot] += length;
+		if (pos[0] < boxes[bOff]) boxes[bOff] = pos[0];
+		if (pos[0]+length-1 > boxes[bOff+D]) boxes[bOff+D] = pos[0]+length-1;
+		coordSums[cOff] += (double)length*(double)pos[0] + 0.5*(double)length*(double)(length-1);
+		for (int d = 1; d < D; ++d)
+		{
+			if (pos[d] < boxes[bOff+d])   boxes[bOff+d]   = pos[d];
+			if (pos[d] > boxes[bOff+D+d]) boxes[bOff+D+d] = pos[d];
+			coordSums[cOff+d] += (double)length*(double)pos[d];
+		}
+
+		if (storeRuns)
+		{
+			long[] r = runs[slot];
+			if (r == null)
+			{
+				r = new long[16];
+				runs[slot] = r;
+			}
+			else if (runsLengths[slot] == r.length)
+			{
+				r = Arrays.copyOf(r, 2*r.length);
+				runs[slot] = r;
+			}
+			r[runsLengths[slot]++] = start;
+			r[runsLengths[slot]++] = length;
+		}
+	}
+
+
+	// ----------- the access to the index -----------
+	///returns the slot (the index into the per-label arrays) of the given label, or -1 if no such label was found
+	private int slotOf(final int label)
+	{
+		if (isDense) return label > 0 && label < counts.length && counts[label] > 0 ? label : -1;
+		final Integer slot = sparseSlots.get(label);
+		return slot != null ? slot : -1;
+	}
+
+	///returns true if the per-label data are stored in the dense arrays, see isDenselyIndexable()
+	public boolean isDense()
+	{ return isDense; }
+
+	///returns the number of labels found in the image
+	public int getNoOfLabels()
+	{ return labelsCnt; }
+
+	///returns the i-th discovered label, labels are discovered in the flat iteration order
+	public int getLabel(final int i)
+	{ return labels[i]; }
+
+	///returns the largest label found in the image, or 0 if no label was found
+	public int getMaxLabel()
+	{
+		int max = 0;
+		for (int i = 0; i < labelsCnt; ++i)
+			if (labels[i] > max) max = labels[i];
+		return max;
+	}
+
+	///returns true if the given label was found in the image
+	public boolean contains(final int label)
+	{ return slotOf(label) >= 0; }
+
+	///returns the number of voxels of the given label, or 0 if no such label was found
+	public long getVoxelCount(final int label)
+	{
+		final int slot = slotOf(label);
+		return slot >= 0 ? counts[slot] : 0;
+	}
+
+	///fills the corners of the AABB of the given label (which must exist)
+	public void getAABB(final int label, final long[] minBound, final long[] maxBound)
+	{
+		final int bOff = 2*D*slotOf(label);
+		for (int d = 0; d < D; ++d)
+		{
+			minBound[d] = boxes[bOff+d];
+			maxBound[d] = boxes[bOff+D+d];
+		}
+	}
+
+	///returns the AABB of the given label (which must exist)
+	public Interval getAABBInterval(final int label)
+	{
+		final long[] minBound = new long[D];
+		final long[] maxBound = new long[D];
+		getAABB(label, minBound,maxBound);
+		return new FinalInterval(minBound, maxBound);
+	}
+
+	///fills the geometrical centre (the average coordinate) of the given label (which must exist)
+	public void getCentre(final int label, final double[] centre)
+	{
+		final int slot = slotOf(label);
+		final int cOff = D*slot;
+		for (int d = 0; d < D; ++d)
+			centre[d] = coordSums[cOff+d] / (double)counts[slot];
+	}
+
+	///fills the size of the indexed image
+	public void getImgDimensions(final long[] dims)
+	{
+		for (int d = 0; d < D; ++d) dims[d] = imgDims[d];
+	}
+
+	///returns true if the runs are available in this index
+	public boolean hasRuns()
+	{ return storeRuns; }
+
+	///returns the number of runs of the given label
+	public int getNoOfRuns(final int label)
+	{
+		final int slot = slotOf(label);
+		return slot >= 0 ? runsLengths[slot]/2 : 0;
+	}
+
+	///returns the flat index of the first voxel of the given run of the given label
+	public long getRunStart(final int label, final int run)
+	{ return runs[slotOf(label)][2*run]; }
+
+	///returns the length of the given run of the given label
+	public long getRunLength(final int label, final int run)
+	{ return runs[slotOf(label)][2*run+1]; }
+
+	///fills the image coordinate of the first voxel of the given run of the given label
+	public void getRunPosition(final int label, final int run, final long[] pos)
+	{
+		getPosition(runs[slotOf(label)][2*run], pos);
+	}
+
+	///converts the flat index into the image coordinate
+	public void getPosition(long flatIdx, final long[] pos)
+	{
+		for (int d = 0; d < D; ++d)
+		{
+			pos[d] = imgMin[d] + flatIdx % imgDims[d];
+			flatIdx /= imgDims[d];
+		}
+	}
+}
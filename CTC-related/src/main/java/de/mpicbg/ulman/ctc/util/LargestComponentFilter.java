@@ -0,0 +1,265 @@
+/*
+ * CC BY-SA 4.0
+ *
+ * The code is licensed with "Attribution-ShareAlike 4.0 International license".
+ * See the license details:
+ *     https://creativecommons.org/licenses/by-sa/4.0/
+ */
+package de.mpicbg.ulman.ctc.util;
+
+import net.imglib2.RandomAccess;
+import net.imglib2.type.numeric.RealType;
+
+import java.util.Arrays;
+
+/**
+ * Finds the connected components of individual labels and removes all but
+ * the largest component of a label. The components are found with union-find
+ * over the runs of the label, which are taken from a LabelIndex (that must be
+ * built with the runs), so no extra image and no sweep over the image is needed.
+ *
+ * Two runs are connected if they are in neighboring rows (rows whose
+ * coordinates differ at most by one along every axis except the x-axis)
+ * and if they touch or overlap along the x-axis, including diagonally. This
+ * is the full (8-neighborhood in 2D, 26-neighborhood in 3D) connectivity,
+ * the same as ConnectedComponents.StructuringElement.EIGHT_CONNECTED.
+ *
+ * Components of a label are numbered from 1 in the order of their discovery
+ * (in the flat iteration order), the largest component is the one with most
+ * voxels, ties are resolved in favour of the earlier discovered component.
+ */
+public class LargestComponentFilter
+{
+	///the filter will work with the labels (and their runs) of this index
+	public LargestComponentFilter(final LabelIndex index)
+	{
+		if (!index.hasRuns())
+			throw new IllegalArgumentException("LargestComponentFilter: the LabelIndex must be built with the runs.");
+		this.index = index;
+
+		final int D = index.D;
+		imgDims = new long[D];
+		index.getImgDimensions(imgDims);
+
+		//strides of the rows along the axes, the x-axis is not counted
+		final long[] rowStrides = new long[D];
+		for (int d = 1; d < D; ++d)
+			rowStrides[d] = d == 1 ? 1 : rowStrides[d-1]*imgDims[d-1];
+
+		//offsets (in the row indices) of all neighboring rows that precede the current row,
+		//that is, the ones whose last non-zero delta (along the highest axis) is negative
+		int noOfNeighbors = 1;
+		for (int d = 1; d < D; ++d) noOfNeighbors *= 3;
+		noOfNeighbors = (noOfNeighbors-1) / 2;
+
+		nbRowOffsets = new long[noOfNeighbors];
+		nbRowDeltas  = new int[noOfNeighbors][D];
+		int n = 0;
+		final int[] delta = new int[D];
+		Arrays.fill(delta,-1);
+		delta[0] = 0;
+		for (int i = 0; D > 1 && i < 2*noOfNeighbors+1; ++i)
+		{
+			long offset = 0;
+			int lastNonZero = 0;
+			for (int d = 1; d < D; ++d)
+			{
+				offset += delta[d]*rowStrides[d];
+				if (delta[d] != 0) lastNonZero = delta[d];
+			}
+			if (lastNonZero < 0)
+			{
+				nbRowOffsets[n] = offset;
+				System.arraycopy(delta,0,nbRowDeltas[n],0,D);
+				++n;
+			}
+
+			//next combination of deltas
+			for (int d = 1; d < D; ++d)
+			{
+				if (++delta[d] <= 1) break;
+				delta[d] = -1;
+			}
+		}
+
+		rowCoord = new long[D];
+	}
+
+
+	///the index with the runs of the labels
+	private final LabelIndex index;
+
+	///the size of the indexed image
+	private final long[] imgDims;
+
+	///offsets of the preceding neighboring rows, and their deltas per axis
+	private final long[] nbRowOffsets;
+	private final int[][] nbRowDeltas;
+
+	///aux coordinate of the current row
+	private final long[] rowCoord;
+
+	///working arrays, indexed with the runs of the current label, they grow as needed
+	private long[] runRows    = new long[1024];
+	private int[]  runParents = new int[1024];
+	private long[] compSizes  = new long[1024];
+
+	///the label whose components were found most recently
+	private int currentLabel = 0;
+	private int noOfComponents = 0;
+	private int largestComponent = 0;
+	private int largestComponentRoot = -1;
+	private long largestComponentSize = 0;
+
+
+	/**
+	 * Finds the components of the given \e label, and returns their number.
+	 * Use getLargestComponent() and removeOtherComponents() afterwards.
+	 */
+	public int findComponents(final int label)
+	{
+		currentLabel = label;
+		noOfComponents = 0;
+		largestComponent = 0;
+		largestComponentRoot = -1;
+		largestComponentSize = 0;
+
+		final int noOfRuns = index.getNoOfRuns(label);
+		if (noOfRuns == 0) return 0;
+
+		if (runRows.length < noOfRuns)
+		{
+			final int newLength = Math.max(noOfRuns, 2*runRows.length);
+			runRows    = new long[newLength];
+			runParents = new int[newLength];
+			compSizes  = new long[newLength];
+		}
+
+		//the runs are in the flat iteration order, and so are their rows
+		for (int r = 0; r < noOfRuns; ++r)
+		{
+			runRows[r] = index.getRunStart(label,r) / imgDims[0];
+			runParents[r] = r;
+		}
+
+		for (int r = 0; r < noOfRuns; ++r)
+		{
+			final long row = runRows[r];
+			final long xFrom = index.getRunStart(label,r) - row*imgDims[0];
+			final long xTo   = xFrom + index.getRunLength(label,r) -1;
+
+			//coordinate of this row
+			long rest = row;
+			for (int d = 1; d < index.D; ++d)
+			{
+				rowCoord[d] = rest % imgDims[d];
+				rest /= imgDims[d];
+			}
+
+			for (int n = 0; n < nbRowOffsets.length; ++n)
+			{
+				//skip the neighboring rows outside the image
+				boolean isInside = true;
+				for (int d = 1; d < index.D && isInside; ++d)
+				{
+					final long c = rowCoord[d] + nbRowDeltas[n][d];
+					if (c < 0 || c >= imgDims[d]) isInside = false;
+				}
+				if (!isInside) continue;
+
+				//union with all runs of the neighboring row that touch this run
+				final long nbRow = row + nbRowOffsets[n];
+				for (int o = findFirstRunOfRow(nbRow, r); o < r && runRows[o] == nbRow; ++o)
+				{
+					final long oFrom = index.getRunStart(label,o) - nbRow*imgDims[0];
+					if (oFrom > xTo+1) break;
+					if (oFrom + index.getRunLength(label,o) -1 >= xFrom-1) union(o,r);
+				}
+			}
+		}
+
+		//sizes of the components, the roots are the first runs of the components
+		for (int r = 0; r < noOfRuns; ++r) compSizes[r] = 0;
+		for (int r = 0; r < noOfRuns; ++r) compSizes[find(r)] += index.getRunLength(label,r);
+
+		for (int r = 0; r < noOfRuns; ++r)
+		{
+			if (runParents[r] != r) continue;
+			++noOfComponents;
+			if (compSizes[r] > largestComponentSize)
+			{
+				largestComponentSize = compSizes[r];
+				largestComponentRoot = r;
+				largestComponent = noOfComponents;
+			}
+		}
+
+		return noOfComponents;
+	}
+
+	///returns the number (from 1) of the largest component found by the last findComponents()
+	public int getLargestComponent()
+	{ return largestComponent; }
+
+	///returns the voxel count of the largest component found by the last findComponents()
+	public long getLargestComponentSize()
+	{ return largestComponentSize; }
+
+	/**
+	 * Zeroes all voxels of the label of the last findComponents() that are not
+	 * in its largest component. The \e ra must access the indexed image.
+	 */
+	public <T extends RealType<T>>
+	void removeOtherComponents(final RandomAccess<T> ra)
+	{
+		if (noOfComponents < 2) return;
+
+		final long[] pos = new long[index.D];
+		final int noOfRuns = index.getNoOfRuns(currentLabel);
+		for (int r = 0; r < noOfRuns; ++r)
+		{
+			if (find(r) == largestComponentRoot) continue;
+
+			index.getRunPosition(currentLabel,r,pos);
+			ra.setPosition(pos);
+			for (long l = index.getRunLength(currentLabel,r); l > 0; --l)
+			{
+				ra.get().setZero();
+				ra.fwd(0);
+			}
+		}
+	}
+
+
+	///returns the index of the first run (before \e upTo) that is in the row \e row or in any later row
+	private int findFirstRunOfRow(final long row, final int upTo)
+	{
+		int lo = 0, hi = upTo;
+		while (lo < hi)
+		{
+			final int mid = (lo+hi) >>> 1;
+			if (runRows[mid] < row) lo = mid+1;
+			else hi = mid;
+		}
+		return lo;
+	}
+
+	private int find(int r)
+	{
+		while (runParents[r] != r)
+		{
+			runParents[r] = runParents[runParents[r]]; //path halving
+			r = runParents[r];
+		}
+		return r;
+	}
+
+	///the smaller run index becomes the root, so the roots are the first runs of the components
+	private void union(final int a, final int b)
+	{
+		final int ra = find(a);
+		final int rb = find(b);
+		if (ra < rb) runParents[rb] = ra;
+		else if (rb < ra) runParents[ra] = rb;
+	}
+}
@@ -15,13 +15,15 @@ package de.mpicbg.ulman.ctc.workers;
 import net.imglib2.*;
 import net.imglib2.exception.IncompatibleTypeException;
 import net.imglib2.img.Img;
+import net.imglib2.img.cell.AbstractCellImg;
+import net.imglib2.cache.img.DiskCachedCellImgFactory;
+import net.imglib2.cache.img.DiskCachedCellImgOptions;
 import net.imglib2.view.Views;
-import net.imglib2.view.IntervalView;
 import net.imglib2.type.numeric.RealType;
 import net.imglib2.type.numeric.integer.UnsignedShortType;
-import net.imglib2.type.numeric.real.FloatType;
 
 import org.scijava.plugin.Parameter;
+import org.scijava.log.LogService;
 //import org.scijava.plugin.Plugin;
 
 import io.scif.img.ImgIOException;
@@ -31,12 +33,28 @@ import java.util.Iterator;
 import java.util.Vector;
 import java.util.HashSet;
 import java.util.HashMap;
+import java.util.List;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.ArrayDeque;
+import java.util.WeakHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.ExecutionException;
 import net.imagej.ops.OpService;
 import net.imglib2.algorithm.labeling.ConnectedComponents;
 import net.imglib2.type.numeric.IntegerType;
 import net.imglib2.roi.labeling.*;
 import net.imglib2.loops.LoopBuilder;
 
+import de.mpicbg.ulman.ctc.util.LabelIndex;
+import de.mpicbg.ulman.ctc.util.LargestComponentFilter;
+
 /**
  * Every voxel in the output image is set with the number of non-zero
  * corresponding voxels from the input set of images.
@@ -94,6 +112,145 @@ public class DefaultCombineGTsViaMarkers<T extends RealType<T>>
 	 */
 	private final Boolean insertTRAforCollidingOrMissingMarkers = false;
 
+	/**
+	 * Flag if the voting and thresholding for every marker shall happen only
+	 * inside the bounding box of the labels matching this marker (the "box-local"
+	 * mode), or over the whole image (the original mode). Both modes give the same
+	 * output, the box-local one is, however, much faster on larger images.
+	 * The box-local mode is used only if all input images are of an (up to)
+	 * 16-bit unsigned voxel type, see LabelIndex.isDenselyIndexable().
+	 */
+	private boolean doBoxLocalVoting = true;
+
+	///enables or disables the box-local voting, see this.doBoxLocalVoting
+	public void setBoxLocalVoting(final boolean _doBoxLocalVoting)
+	{
+		doBoxLocalVoting = _doBoxLocalVoting;
+	}
+
+	/**
+	 * Flag if the output image shall be a disk-cached cell image, whose cells
+	 * are kept in memory only while accessed (and saved to a temporary disk
+	 * storage otherwise), instead of an image created with the markers' image
+	 * factory. This lowers the memory held by the full-size output image.
+	 *
+	 * This is not a block-wise merging, the images must still fit into the memory. In addition to the cells of the images that are currently
+	 * accessed (and cached), one compute() still needs in the memory:
+	 * - the runs of the markers, and later of the merged labels (see LabelIndex),
+	 *   that is 16 to 32 bytes per every run (row segment) of every label,
+	 * - the boxes of the labels of every input image (per label, not per voxel),
+	 * - per voting thread, 1 byte (all weights equal) or 4 bytes (otherwise) per
+	 *   voxel of the box that encloses all labels matching the voted marker, and
+	 *   1 bit per voxel of such box for every marker of the currently voted batch
+	 *   (4 markers per thread); a box can be as large as the whole image if the
+	 *   matching labels are large or far apart,
+	 * - the boxes are always the whole image if the box-local voting is not used
+	 *   (see this.doBoxLocalVoting), the voting buffers are then image-sized.
+	 * Removing of the colliding markers and indexing of the merged labels sweep
+	 * each over the whole output image, reading all its cells back from the disk.
+	 */
+	private boolean doOutputOnDisk = false;
+
+	///enables or disables the disk-cached output image, see this.doOutputOnDisk
+	public void setOutputOnDisk(final boolean _doOutputOnDisk)
+	{
+		doOutputOnDisk = _doOutputOnDisk;
+	}
+
+	///markers that were processed but will be removed, see compute()
+	private final HashSet<Integer> mColliding = new HashSet<>(100);
+	private final HashSet<Integer> mBordering = new HashSet<>(100);
+	///markers for which no counterparts were found, see compute()
+	private final HashSet<Integer> mNoMatches = new HashSet<>(100);
+	///markers with which the current one is in collision, see compute()
+	private final HashSet<Integer> localColliders = new HashSet<>(100);
+	///number of colliding and non-colliding voxels per marker, see compute()
+	private final HashMap<Integer,Long> mCollidingVolume = new HashMap<>(100);
+	private final HashMap<Integer,Long> mNoCollidingVolume = new HashMap<>(100);
+	//NB: these are re-used (cleared) between calls of compute()
+
+	///the number of threads used to vote for the markers, see setNoOfThreads()
+	private int noOfThreads = 1;
+
+	/**
+	 * Sets the number of threads that vote for the markers in parallel,
+	 * the output is, however, the same as with a single thread.
+	 */
+	public void setNoOfThreads(final int _noOfThreads)
+	{
+		if (_noOfThreads < 1)
+			throw new IllegalArgumentException("At least one thread is required for merging.");
+		if (_noOfThreads != noOfThreads) shutdown();
+		noOfThreads = _noOfThreads;
+	}
+
+	///the threads voting for the markers, started by the first compute() that needs them
+	private ExecutorService votingWorkers = null;
+
+	///returns the threads voting for the markers, or null if voting happens in the calling thread
+	private ExecutorService obtainVotingWorkers()
+	{
+		if (noOfThreads > 1 && votingWorkers == null)
+			votingWorkers = Executors.newFixedThreadPool(noOfThreads);
+		return votingWorkers;
+	}
+
+	/**
+	 * Stops the threads that vote for the markers (if any were started). The threads
+	 * are kept between the calls of compute(), so call this function once no more
+	 * compute() is expected. A later compute() would start the threads again.
+	 */
+	public void shutdown()
+	{
+		if (votingWorkers != null)
+		{
+			votingWorkers.shutdownNow();
+			votingWorkers = null;
+		}
+	}
+
+	///where the reports of compute() go, see report()
+	private LogService log = null;
+
+	///sets the LogService for the reports of compute(), the console is used if not set
+	public void setLogService(final LogService _log)
+	{
+		log = _log;
+	}
+
+	/**
+	 * Reports one whole line, either via the LogService (if set) or on the console.
+	 * Every report is a single call, so reports of more merging running in parallel
+	 * are not mixed within a line.
+	 */
+	private void report(final String line)
+	{
+		if (log != null) log.info(line);
+		else System.out.println(line);
+	}
+
+	///statistics of one merging, the same figures that compute() reports on the console
+	public static class MergingStats
+	{
+		///the number of all markers in the marker image
+		public int allMarkers;
+
+		///the numbers of markers not found, at the boundary, in collision, and secured
+		public int notFoundMarkers, borderMarkers, collidingMarkers, securedMarkers;
+
+		///histogram of the colliding volume ratios, with bins of 10 %, the last bin is for 100 %
+		public final int[] collisionHistogram = new int[11];
+	}
+
+	///statistics of the last compute(), or null if nothing was computed yet
+	private MergingStats lastStats = null;
+
+	///returns the statistics of the last compute(), or null if nothing was computed yet
+	public MergingStats getLastStats()
+	{
+		return lastStats;
+	}
+
 	///sets explicitly the parameters that SciJava normally supplies in its own way...
 	public void setParams(final Vector<Float> _inWeights,
 	                      final float _threshold,
@@ -125,9 +282,6 @@ public class DefaultCombineGTsViaMarkers<T extends RealType<T>>
 		//later post-processing
 
 		//some constants to be used:
-		//short-cut for increasing voxel values when combining multiple masks
-		final FloatType ONE = new FloatType(1);
-
 		//after merging, only voxels above this value are used to form the final mask
 		final float THRESHOLD = threshold;
 
@@ -142,224 +296,218 @@ public class DefaultCombineGTsViaMarkers<T extends RealType<T>>
 		markerImg.max(maxBound);
 		final FinalInterval mInterval = new FinalInterval(minBound, maxBound);
 
-		//create a temporary image (of the same iteration order as the markerImg)...
-		final Img<FloatType> tmpImg
-			= markerImg.factory().imgFactory(new FloatType()).create(markerImg);
-
-		//...and prepare its cursor
-		final Cursor<FloatType> tmpFICursor = Views.flatIterable( tmpImg ).cursor();
-
-		//finally, create the output image (of the same iteration order as the markerImg)...
-		final Img<UnsignedShortType> outImg
-			= markerImg.factory().create(markerImg);
-
-		//... and init it
+		//finally, obtain the output image (of the same size as the markerImg)...
+		//... together with the list of its regions that we will write into
+		final List<Interval> dirtyRegions = new ArrayList<>(1000);
+		final Img<UnsignedShortType> outImg = obtainOutImg(markerImg, dirtyRegions);
 		final Cursor<UnsignedShortType> outFICursor = Views.flatIterable( outImg ).localizingCursor();
-		while (outFICursor.hasNext())
-			outFICursor.next().setZero();
 
 
-		//set to remember already discovered TRA markers
-		//(with initial capacity set for 100 markers)
-		HashSet<Integer> mDiscovered = new HashSet<>(100);
+		//index of all TRA markers, including their voxels (runs),
+		//the markers are processed in the order of their discovery in the index
+		final LabelIndex mIndex = new LabelIndex(markerImg, true);
 		//of these, the following markers were processed but will be removed...
-		HashSet<Integer> mColliding = new HashSet<>(100);
-		HashSet<Integer> mBordering = new HashSet<>(100);
+		mColliding.clear();
+		mBordering.clear();
 		//of these, no counterparts were found for these markers
-		HashSet<Integer> mNoMatches = new HashSet<>(100);
-
-		//markers with which the current one is in collision
-		HashSet<Integer> localColliders = new HashSet<>(100);
+		mNoMatches.clear();
 
 		//number of colliding and non-colliding voxels per marker
 		//NB: used to determine portion of the colliding volume
-		HashMap<Integer,Long> mCollidingVolume = new HashMap<>(100);
-		HashMap<Integer,Long> mNoCollidingVolume = new HashMap<>(100);
+		mCollidingVolume.clear();
+		mNoCollidingVolume.clear();
 
 		//also prepare the positions holding aux array
 		pos = new int[markerImg.numDimensions()];
 
-		//sweep over the marker image
-		final Cursor<UnsignedShortType> mCursor = markerImg.cursor();
-		while (mCursor.hasNext())
-		{
-			final int curMarker = mCursor.next().getInteger();
+		//the box-local voting mode: bounding boxes of all labels of all input
+		//images are found beforehand, with one sweep over every input image
+		//NB: if the threshold is not positive, every voxel (even the never-voted one)
+		//    would pass the thresholding, the whole image must be considered then
+		//NB: the labels' boxes are indexed only for images with (up to) 16-bit unsigned
+		//    labels, images of other voxel types (e.g. float or 32-bit labels) are voted
+		//    over the whole image, which is the original mode that handles them exactly
+		boolean inputsIndexable = true;
+		for (int i = 0; i < inImgs.size() && inputsIndexable; ++i)
+			inputsIndexable = LabelIndex.isDenselyIndexable(inImgs.get(i));
+		if (doBoxLocalVoting && !inputsIndexable)
+			report("Input images are not of (up to) 16-bit unsigned type, voting over the whole image.");
+		final boolean boxLocal = doBoxLocalVoting && THRESHOLD > 0 && inputsIndexable;
+		if (doOutputOnDisk && !boxLocal)
+			report("Warning: voting over the whole image, the voting buffers will be of the image size.");
+		if (!boxLocal) dirtyRegions.add(mInterval);
+
+		//if all weights are the same (e.g. the "Majority" model), the votes are
+		//only counted, and a voxel passes if it has at least this many votes
+		final int VOTES_TO_PASS = getVotesToPass(THRESHOLD);
+		final Vector<LabelIndex> inIndices = boxLocal ? new Vector<>(inImgs.size()) : null;
+		if (boxLocal)
+			for (int i = 0; i < inImgs.size(); ++i)
+				inIndices.add( new LabelIndex(inImgs.get(i)) );
+
+		//the voting for the markers happens in batches: markers of one batch
+		//are voted (in parallel) first, and their votes are then inserted (sequentially)
+		//into the output image in the order of the markers' discovery, which makes
+		//the output the same regardless of the number of threads used
+		final int batchSize = noOfThreads > 1 ? 4*noOfThreads : 1;
+		final ExecutorService workers = obtainVotingWorkers();
+		final List<Future<MarkerVotes>> batchVotes = new ArrayList<>(batchSize);
+
+		try {
 
-			//scan for not yet observed markers (and ignore background values...)
-			if ( curMarker > 0 && (!mDiscovered.contains(curMarker)) )
+		//over all markers
+		for (int mi = 0; mi < mIndex.getNoOfLabels(); ++mi)
+		{
+			//get the votes for this marker, possibly voting the whole next batch beforehand
+			final int batchIdx = mi % batchSize;
+			if (batchIdx == 0)
 			{
-				//found a new marker, determine its size and the AABB it spans
-				final long markerSizeRef = findAABB(mCursor, minBound,maxBound);
-/*
-				//report detected markers just for debug
-				System.out.print("marker "+mCursor.get().getInteger()+": lower corner: (");
-				for (int d=0; d < minBound.length-1; ++d)
-					System.out.print(minBound[d]+",");
-				System.out.println(minBound[minBound.length-1]+")");
-				System.out.print("marker "+mCursor.get().getInteger()+": upper corner: (");
-				for (int d=0; d < maxBound.length-1; ++d)
-					System.out.print(maxBound[d]+",");
-				System.out.println(maxBound[maxBound.length-1]+"), size="+markerSizeRef);
-*/
-				//the sweeping interval just around this marker
-				final Cursor<UnsignedShortType> mSubCursor
-					= Views.interval(markerImg, minBound,maxBound).cursor();
-
-				//sweep over all input images
-				int noOfMatchingImages = 0;
-				for (int i = 0; i < inImgs.size(); ++i)
+				batchVotes.clear();
+				for (int bi = mi; bi < mi+batchSize && bi < mIndex.getNoOfLabels(); ++bi)
 				{
-					//sweeper of the same marker's geometry-restricted interval
-					final Cursor<T> inSubCursor = Views.interval(inImgs.get(i), minBound,maxBound).cursor();
-
-					//find the corresponding label in the input image
-					final float matchingLabel = findMatchingLabel(inSubCursor,
-						mSubCursor.copyCursor(), curMarker, markerSizeRef);
-
-					//System.out.println(i+". image: found label "+matchingLabel);
-
-					if (matchingLabel > 0)
-					{
-						//extract this label into a temporary image
-						//(from which we will threshold it and insert into the output image)
-						//
-						//change the "adding constant" to the weight of this image
-						ONE.set(inWeights.get(i));
-
-						final Cursor<T> inCursor = Views.flatIterable( inImgs.get(i) ).cursor();
-						tmpFICursor.reset(); //NB: tmpFICursor is Views.flatIterable(tmpImg).cursor()
-						//NB: input and tmp images are guaranteed to have the same size
-                        //
-						//sweep the _entire_ input image and "copy" the bestLabel to the tmp image
-						while (inCursor.hasNext())
-						{
-							//advance and initiate the tmp image if we are processing the first input image
-							tmpFICursor.next();
-							if (noOfMatchingImages == 0) tmpFICursor.get().setZero();
-
-							//advance and search the input image...
-							if (inCursor.next().getRealFloat() == matchingLabel)
-							{
-								//found the label, "copy" it
-								tmpFICursor.get().add(ONE);
-							}
+					final int marker = mIndex.getLabel(bi);
+					final Callable<MarkerVotes> voting = () -> {
+						final VotingContext ctx = obtainVotingContext(inImgs);
+						try {
+							return computeMarkerVotes(marker, inImgs, mIndex, inIndices, mInterval, THRESHOLD, VOTES_TO_PASS, ctx);
+						}
+						finally {
+							releaseVotingContext(ctx);
 						}
+					};
 
-						//increase the counter...
-						++noOfMatchingImages;
+					if (workers != null) batchVotes.add( workers.submit(voting) );
+					else
+					{
+						final FutureTask<MarkerVotes> task = new FutureTask<>(voting);
+						task.run();
+						batchVotes.add(task);
 					}
 				}
-/*
-				//save the debug image
-				try {
-					ImgSaver imgSaver = new ImgSaver();
-					imgSaver.saveImg("/Users/ulman/DATA/dbgMerge__"+curMarker+".tif", tmpImg);
-				}
-				catch (UnsupportedOperationException | ImgIOException | IncompatibleTypeException e) {
-					System.out.println("Unable to write output file.");
-				}
-				//....end save....
-*/
-				//flags to see if we are facing any specifig problem
-				//during the upcomming thresholding and merging
-				Boolean inCollision = false;
-				Boolean atBorder = false;
-				Boolean foundAtAll = false;
-				localColliders.clear();
-
-				//init the volume aggregators
-				mCollidingVolume.put(curMarker,0L);
-				mNoCollidingVolume.put(curMarker,0L);
-
-				//now, threshold the tmp image (provided we have written there something
-				//at all) and store it with the appropriate label in the output image
-				outFICursor.reset();
-				tmpFICursor.reset();
-				while (outFICursor.hasNext() && noOfMatchingImages > 0)
+			}
+
+			final MarkerVotes votes;
+			try {
+				votes = batchVotes.get(batchIdx).get();
+			}
+			catch (InterruptedException | ExecutionException e) {
+				throw new RuntimeException("Voting for marker "+mIndex.getLabel(mi)+" failed: "+e.getMessage(), e);
+			}
+
+			final int curMarker = votes.marker;
+			final int noOfMatchingImages = votes.noOfMatchingImages;
+
+			//flags to see if we are facing any specifig problem
+			//during the upcomming thresholding and merging
+			Boolean inCollision = false;
+			Boolean atBorder = false;
+			Boolean foundAtAll = false;
+			localColliders.clear();
+
+			//init the volume aggregators
+			mCollidingVolume.put(curMarker,0L);
+			mNoCollidingVolume.put(curMarker,0L);
+
+			//now, store the thresholded votes (provided there are some at all)
+			//with the appropriate label in the output image
+			//NB: only the voting box is considered (which is the whole image in the original mode),
+			//    and the votes are stored in the flat iteration order of this box
+			final Cursor<UnsignedShortType> outVCursor = noOfMatchingImages > 0
+				? Views.flatIterable( Views.interval(outImg, votes.minBound,votes.maxBound) ).localizingCursor() : null;
+			if (boxLocal && noOfMatchingImages > 0)
+				dirtyRegions.add(new FinalInterval(votes.minBound,votes.maxBound));
+			for (int k = 0; noOfMatchingImages > 0 && outVCursor.hasNext(); ++k)
+			{
+				outVCursor.next();
+				if (votes.mask.get(k))
 				{
-					outFICursor.next();
-					if (tmpFICursor.next().get() >= THRESHOLD)
+					//voxel to be inserted into the output final label mask
+					foundAtAll = true;
+
+					final int otherMarker = outVCursor.get().getInteger();
+					if (otherMarker == 0)
+					{
+						//inserting into an unoccupied voxel
+						outVCursor.get().set(curMarker);
+						mNoCollidingVolume.put(curMarker,mNoCollidingVolume.get(curMarker)+1);
+					}
+					else
 					{
-						//voxel to be inserted into the output final label mask
-						foundAtAll = true;
+						//collision detected
+						outVCursor.get().set(INTERSECTION);
+						mCollidingVolume.put(curMarker,mCollidingVolume.get(curMarker)+1);
+						inCollision = true;
 
-						final int otherMarker = outFICursor.get().getInteger();
-						if (otherMarker == 0)
+						if (otherMarker != INTERSECTION)
 						{
-							//inserting into an unoccupied voxel
-							outFICursor.get().set(curMarker);
-							mNoCollidingVolume.put(curMarker,mNoCollidingVolume.get(curMarker)+1);
-						}
-						else
-						{
-							//collision detected
-							outFICursor.get().set(INTERSECTION);
-							mCollidingVolume.put(curMarker,mCollidingVolume.get(curMarker)+1);
-							inCollision = true;
-
-							if (otherMarker != INTERSECTION)
-							{
-								localColliders.add(otherMarker);
-
-								//update also stats of the other guy
-								//because he was not intersecting here previously
-								mNoCollidingVolume.put(otherMarker,mNoCollidingVolume.get(otherMarker)-1);
-								mCollidingVolume.put(otherMarker,mCollidingVolume.get(otherMarker)+1);
-							}
-						}
+							localColliders.add(otherMarker);
 
-						//check if we are at the image boundary
-						outFICursor.localize(pos);
-						for (int i = 0; i < pos.length && !atBorder; ++i)
-							if (pos[i] == mInterval.min(i) || pos[i] == mInterval.max(i))
-								atBorder = true;
+							//update also stats of the other guy
+							//because he was not intersecting here previously
+							mNoCollidingVolume.put(otherMarker,mNoCollidingVolume.get(otherMarker)-1);
+							mCollidingVolume.put(otherMarker,mCollidingVolume.get(otherMarker)+1);
+						}
 					}
-				}
 
-				//finally, mark we have processed this marker
-				mDiscovered.add(curMarker);
+					//check if we are at the image boundary
+					outVCursor.localize(pos);
+					for (int i = 0; i < pos.length && !atBorder; ++i)
+						if (pos[i] == mInterval.min(i) || pos[i] == mInterval.max(i))
+							atBorder = true;
+				}
+			}
 
-				//acknowledge the main flag:
-				atBorder &= removeMarkersAtBoundary;
+			//acknowledge the main flag:
+			atBorder &= removeMarkersAtBoundary;
 
-				//some per marker report:
-				System.out.print("TRA marker: "+curMarker+" , images matching: "+noOfMatchingImages);
+			//some per marker report, the line is reported as a whole
+			//(as more frames can be merged in parallel)
+			final StringBuilder markerReport = new StringBuilder();
+			markerReport.append("TRA marker: "+curMarker+" , images matching: "+noOfMatchingImages);
 
-				//outcomes in 4 states:
-				//TRA marker was secured (TODO: secured after threshold increase)
-				//TRA marker was hit but removed due to collision, or due to border
-				//TRA marker was not hit at all
+			//outcomes in 4 states:
+			//TRA marker was secured (TODO: secured after threshold increase)
+			//TRA marker was hit but removed due to collision, or due to border
+			//TRA marker was not hit at all
 
-				//also note the outcome of this processing, which is exclusively:
-				//found, not found, in collision, at border
-				if (!foundAtAll)
+			//also note the outcome of this processing, which is exclusively:
+			//found, not found, in collision, at border
+			if (!foundAtAll)
+			{
+				mNoMatches.add(curMarker);
+				markerReport.append(" , not included because not matched in results");
+			}
+			else
+			{
+				if (atBorder)
 				{
-					mNoMatches.add(curMarker);
-					System.out.println(" , not included because not matched in results");
+					mBordering.add(curMarker);
+					markerReport.append(" , detected to be at boundary");
 				}
+				else if (inCollision)
+					//NB: mColliding.add() must be done after all markers are processed
+					markerReport.append(" , detected to be in collision");
 				else
-				{
-					if (atBorder)
-					{
-						mBordering.add(curMarker);
-						System.out.println(" , detected to be at boundary");
-					}
-					else if (inCollision)
-						//NB: mColliding.add() must be done after all markers are processed
-						System.out.println(" , detected to be in collision");
-					else
-						System.out.println(" , secured for now");
-				}
+					markerReport.append(" , secured for now");
+			}
+			report(markerReport.toString());
 
-				if (localColliders.size() > 0)
-				{
-					System.out.print("guys colliding with this marker: ");
-					for (Iterator<Integer> it = localColliders.iterator(); it.hasNext(); )
-						System.out.print(it.next()+",");
-					System.out.println();
-				}
-			} //after marker processing
-		} //after all voxel looping
+			if (localColliders.size() > 0)
+			{
+				final StringBuilder collidersReport = new StringBuilder("guys colliding with this marker: ");
+				for (Iterator<Integer> it = localColliders.iterator(); it.hasNext(); )
+					collidersReport.append(it.next()+",");
+				report(collidersReport.toString());
+			}
+		} //after all markers
+
+		}
+		finally
+		{
+			//NB: the threads are kept for the next compute(), but no voting of
+			//    this one shall be running after it (e.g. after a failed insertion)
+			for (Future<MarkerVotes> v : batchVotes) v.cancel(true);
+		}
 
 		//save now a debug image
 		try {
@@ -370,7 +518,7 @@ public class DefaultCombineGTsViaMarkers<T extends RealType<T>>
 			}
 		}
 		catch (UnsupportedOperationException | ImgIOException | IncompatibleTypeException e) {
-			System.out.println("Unable to write debug output file.");
+			report("Unable to write debug output file.");
 		}
 
 		//check colliding markers and decide if to be removed or not
@@ -417,103 +565,43 @@ public class DefaultCombineGTsViaMarkers<T extends RealType<T>>
 				//System.out.println("cleaning: marker at boundary");
 			}
 		}
-		final int allMarkers = mDiscovered.size();
+		final int allMarkers = mIndex.getNoOfLabels();
 
 		// --------- CCA analyses ---------
-		final Img<UnsignedShortType> ccaInImg  = outImg.factory().create(outImg); //copy of just one label
-		final Img<UnsignedShortType> ccaOutImg = outImg.factory().create(outImg); //result of CCA on this one label
+		//index of the markers that have survived until now, with their runs for the CCA
+		final LabelIndex outIndex = new LabelIndex(outImg,true);
+		final LargestComponentFilter ccaFilter = new LargestComponentFilter(outIndex);
+		final RandomAccess<UnsignedShortType> outRA = outImg.randomAccess();
 
-		mDiscovered.clear();
-		outFICursor.reset();
-		while (outFICursor.hasNext())
+		for (int oi = 0; oi < outIndex.getNoOfLabels(); ++oi)
 		{
-			final int curMarker = outFICursor.next().getInteger();
+			final int curMarker = outIndex.getLabel(oi);
+			final int noOfLabels = ccaFilter.findComponents(curMarker);
 
-			//scan for not yet observed markers (and ignore background values...)
-			if ( curMarker > 0 && (!mDiscovered.contains(curMarker)) )
+			//is there anything to change?
+			if (noOfLabels > 1)
 			{
-				//found a new marker, determine its size and the AABB it spans
-				findAABB(outFICursor, minBound,maxBound);
-				final Interval ccaInterval = new FinalInterval(minBound, maxBound); //TODO: can't I be reusing the same Interval?
-
-				//copy out only this marker
-				final IntervalView<UnsignedShortType> ccaInView = Views.interval(ccaInImg,ccaInterval);
-				      Cursor<UnsignedShortType> ccaCursor = ccaInView.cursor();
-				final Cursor<UnsignedShortType> outCursor = Views.interval(outImg,ccaInterval).cursor();
-				while (ccaCursor.hasNext())
-				{
-					ccaCursor.next().set( outCursor.next().getInteger() == curMarker ? 1 : 0 );
-				}
-
-				//CCA to this View
-				final IntervalView<UnsignedShortType> ccaOutView = Views.interval(ccaOutImg,ccaInterval);
-				//since the View comes from one shared large image, there might results of CCA for other markers,
-				//we better clear it before (so that the CCA function cannot be fooled by some previous result)
-				ccaCursor = ccaOutView.cursor();
-				while (ccaCursor.hasNext()) ccaCursor.next().setZero();
-
-				final int noOfLabels
-					= ConnectedComponents.labelAllConnectedComponents(ccaInView,ccaOutView, ConnectedComponents.StructuringElement.EIGHT_CONNECTED);
-
-				//is there anything to change?
-				if (noOfLabels > 1)
-				{
-					System.out.println("CCA for marker "+curMarker+": choosing one from "+noOfLabels+" components");
-
-					//calculate sizes of the detected labels
-					final HashMap<Integer,Integer> hist = new HashMap<>(10);
-					ccaCursor.reset();
-					while (ccaCursor.hasNext())
-					{
-						final int curLabel = ccaCursor.next().getInteger();
-						if (curLabel == 0) continue; //skip over the background component
-						final Integer count = hist.get(curLabel);
-						hist.put(curLabel, count == null ? 1 : count+1 );
-					}
-
-					//find the  frequent pixel value (the largest label)
-					int largestCC = -1;
-					int largestSize = 0;
-					int totalSize = 0;
-					for (Integer lab : hist.keySet())
-					{
-						final int size = hist.get(lab);
-						if (size > largestSize)
-						{
-							largestSize = size;
-							largestCC   = lab;
-						}
-						totalSize += size;
-					}
-					System.out.println("CCA for marker "+curMarker+": chosen component no. "+largestCC+" which constitutes "
-					                   +(float)largestSize/(float)totalSize+" % of the original size");
-
-					//remove anything from the current marker that does not overlap with the largest CCA component
-					ccaCursor.reset();
-					outCursor.reset();
-					while (ccaCursor.hasNext())
-					{
-						ccaCursor.next();
-						if ( outCursor.next().getInteger() == curMarker && ccaCursor.get().getInteger() != largestCC )
-							outCursor.get().setZero();
-					}
-				}
-
-				//finally, mark we have processed this marker
-				mDiscovered.add(curMarker);
+				report("CCA for marker "+curMarker+": choosing one from "+noOfLabels+" components");
+				report("CCA for marker "+curMarker+": chosen component no. "+ccaFilter.getLargestComponent()
+				                   +" which constitutes "
+				                   +(float)ccaFilter.getLargestComponentSize()/(float)outIndex.getVoxelCount(curMarker)
+				                   +" % of the original size");
+
+				//remove anything from the current marker that is not the largest CCA component
+				ccaFilter.removeOtherComponents(outRA);
 			}
 		}
 		// --------- CCA analyses ---------
 
 		//report details of colliding markers:
-		System.out.println("reporting colliding markers:");
+		report("reporting colliding markers:");
 		for (Iterator<Integer> it = mCollidingVolume.keySet().iterator(); it.hasNext(); )
 		{
 			final int marker = it.next();
 			float collRatio = (float)mCollidingVolume.get(marker);
 			collRatio /= (float)(mNoCollidingVolume.get(marker)+mCollidingVolume.get(marker));
 			if (collRatio > 0.f)
-				System.out.println("marker: "+marker+": colliding "+mCollidingVolume.get(marker)
+				report("marker: "+marker+": colliding "+mCollidingVolume.get(marker)
 				                  +" and non-colliding "+mNoCollidingVolume.get(marker)
 				                  +" voxels ( "+collRatio+" ) "
 				                  +(collRatio > removeMarkersCollisionThreshold? "too much":"acceptable"));
@@ -521,32 +609,43 @@ public class DefaultCombineGTsViaMarkers<T extends RealType<T>>
 
 		//report the histogram of colliding volume ratios
 		for (int hi=0; hi < 10; ++hi)
-			System.out.println("HIST: "+(hi*10)+" %- "+(hi*10+9)+" % collision area happened "
+			report("HIST: "+(hi*10)+" %- "+(hi*10+9)+" % collision area happened "
 			                  +collHistogram[hi]+" times");
-		System.out.println("HIST: 100 %- 100 % collision area happened "
+		report("HIST: 100 %- 100 % collision area happened "
 		                  +collHistogram[10]+" times");
 
 		//also some per image report:
 		final int okMarkers = allMarkers - mNoMatches.size() - mBordering.size() - mColliding.size();
-		System.out.println("not found markers    = "+mNoMatches.size()
+		report("not found markers    = "+mNoMatches.size()
 			+" = "+ 100.0f*(float)mNoMatches.size()/(float)allMarkers +" %");
-		System.out.println("markers at boundary  = "+mBordering.size()
+		report("markers at boundary  = "+mBordering.size()
 			+" = "+ 100.0f*(float)mBordering.size()/(float)allMarkers +" %");
-		System.out.println("markers in collision = "+mColliding.size()
+		report("markers in collision = "+mColliding.size()
 			+" = "+ 100.0f*(float)mColliding.size()/(float)allMarkers +" %");
-		System.out.println("secured markers      = "+okMarkers
+		report("secured markers      = "+okMarkers
 			+" = "+ 100.0f*(float)okMarkers/(float)allMarkers +" %");
 
+		//and keep them for the caller
+		final MergingStats stats = new MergingStats();
+		stats.allMarkers = allMarkers;
+		stats.notFoundMarkers  = mNoMatches.size();
+		stats.borderMarkers    = mBordering.size();
+		stats.collidingMarkers = mColliding.size();
+		stats.securedMarkers   = okMarkers;
+		System.arraycopy(collHistogram,0, stats.collisionHistogram,0, collHistogram.length);
+		lastStats = stats;
+
 		if (insertTRAforCollidingOrMissingMarkers && (mColliding.size() > 0 || mNoMatches.size() > 0))
 		{
 			//sweep the output image and add missing TRA markers
+			dirtyRegions.add(mInterval);
 			final RandomAccess<UnsignedShortType> tCursor
 				= markerImg.randomAccess(mInterval);
 
 			//TODO: accumulate numbers of how many times submitting of TRA label
 			//would overwrite existing label in the output image, and report it
+			final Cursor<UnsignedShortType> mCursor = Views.flatIterable( markerImg ).cursor();
 			outFICursor.reset();
-			mCursor.reset();
 			while (outFICursor.hasNext())
 			{
 				final int outLabel = outFICursor.next().getInteger();
@@ -560,93 +659,486 @@ public class DefaultCombineGTsViaMarkers<T extends RealType<T>>
 	}
 	
 	
+	// ----------- recycling of the output images -----------
+	///an output image returned for reuse, with the regions that were written into it
+	private class FreeOutImg
+	{
+		FreeOutImg(final Img<UnsignedShortType> _img, final List<Interval> _dirtyRegions)
+		{
+			img = _img;
+			dirtyRegions = _dirtyRegions;
+		}
+
+		final Img<UnsignedShortType> img;
+		final List<Interval> dirtyRegions;
+	}
+
+	///output images returned with recycleOutImg(), waiting for the next compute()
+	private final ArrayDeque<FreeOutImg> freeOutImgs = new ArrayDeque<>(MAX_FREE_OUTIMGS);
+	private static final int MAX_FREE_OUTIMGS = 2;
+
+	///output images given away by compute(), with the regions written into them
+	///NB: the images are not held by this map, a not-recycled image is just forgotten
+	private final WeakHashMap<Img<UnsignedShortType>,List<Interval>> lentOutImgs = new WeakHashMap<>();
+
 	/**
-	 * Determines the minimal AABB (axes-aligned bounding box) around the marker
-	 * found at the cursor position. It is assumed that the cursor points on the
-	 * first occurence of such marker.
-	 * 
-	 * @param mCursor	Position of the first occurence of the marker (will not be changed)
-	 * @param minBound	output "lower-left" corner of the box (must be preallocated)
-	 * @param maxBound	output "upper-right" corner of the box (must be preallocated)
-	 * @return number of voxels occupied by this marker
+	 * Returns the output image, obtained from compute(), for the reuse by later calls
+	 * of compute() on images of the same size. The image must not be used after this
+	 * call anymore. Only the regions that compute() has written into are cleared before
+	 * the image is reused, which is much cheaper than allocating and clearing a new image.
+	 * The function can be called from any thread.
 	 */
+	public void recycleOutImg(final Img<UnsignedShortType> outImg)
+	{
+		synchronized (freeOutImgs)
+		{
+			final List<Interval> dirtyRegions = lentOutImgs.remove(outImg);
+			if (dirtyRegions == null || freeOutImgs.size() == MAX_FREE_OUTIMGS) return;
+			freeOutImgs.add( new FreeOutImg(outImg, dirtyRegions) );
+		}
+	}
+
+	/**
+	 * Returns a zero-filled image of the same size as the \e markerImg, either a recycled
+	 * one (see recycleOutImg()) or a new one. The caller is expected to register into the
+	 * \e dirtyRegions all regions it will write into the image.
+	 */
+	private
+	Img<UnsignedShortType> obtainOutImg(final Img<UnsignedShortType> markerImg,
+	                                    final List<Interval> dirtyRegions)
+	{
+		//NB: the disk-cached images are not recycled
+		FreeOutImg free = null;
+		synchronized (freeOutImgs)
+		{
+			for (Iterator<FreeOutImg> it = freeOutImgs.iterator(); it.hasNext() && !doOutputOnDisk; )
+			{
+				final FreeOutImg candidate = it.next();
+				if (isOfSameGeometry(candidate.img, markerImg))
+				{
+					it.remove();
+					free = candidate;
+					break;
+				}
+			}
+		}
+
+		Img<UnsignedShortType> outImg;
+		if (free != null)
+		{
+			//clear only where it was written, every voxel at most once
+			outImg = free.img;
+			for (Interval region : mergeOverlappingRegions(free.dirtyRegions))
+			{
+				final Cursor<UnsignedShortType> c = Views.interval(outImg, region).cursor();
+				while (c.hasNext()) c.next().setZero();
+			}
+		}
+		else if (doOutputOnDisk)
+		{
+			//NB: cells of the disk-cached image are zero when first touched,
+			//    we better not touch all of them here
+			outImg = createDiskCachedImg(markerImg);
+		}
+		else
+		{
+			outImg = markerImg.factory().create(markerImg);
+			final Cursor<UnsignedShortType> c = outImg.cursor();
+			while (c.hasNext()) c.next().setZero();
+		}
+
+		if (!doOutputOnDisk)
+			synchronized (freeOutImgs) { lentOutImgs.put(outImg, dirtyRegions); }
+		return outImg;
+	}
+
+	/**
+	 * Returns boxes that cover all given \e regions, and no two of which overlap:
+	 * overlapping regions are replaced with their bounding box (repeatedly, as the
+	 * bounding box may overlap further regions). The voxels of the returned boxes
+	 * can be thus visited each once, but the boxes may cover also voxels outside
+	 * the \e regions.
+	 */
+	private static
+	List<Interval> mergeOverlappingRegions(final List<Interval> regions)
+	{
+		//the boxes found so far, every is D-times the min corner and then D-times the max corner
+		final List<long[]> boxes = new ArrayList<>(regions.size());
+		for (Interval region : regions)
+		{
+			final int D = region.numDimensions();
+			final long[] box = new long[2*D];
+			for (int d = 0; d < D; ++d)
+			{
+				box[d]   = region.min(d);
+				box[D+d] = region.max(d);
+			}
+
+			//absorb all boxes that overlap with this one, until none overlaps
+			boolean grown = true;
+			while (grown)
+			{
+				grown = false;
+				for (Iterator<long[]> it = boxes.iterator(); it.hasNext(); )
+				{
+					final long[] other = it.next();
+					boolean overlap = true;
+					for (int d = 0; d < D && overlap; ++d)
+						overlap = box[d] <= other[D+d] && other[d] <= box[D+d];
+					if (!overlap) continue;
+
+					for (int d = 0; d < D; ++d)
+					{
+						box[d]   = Math.min(box[d],   other[d]);
+						box[D+d] = Math.max(box[D+d], other[D+d]);
+					}
+					it.remove();
+					grown = true;
+				}
+			}
+			boxes.add(box);
+		}
+
+		final List<Interval> merged = new ArrayList<>(boxes.size());
+		for (long[] box : boxes)
+		{
+			final int D = box.length/2;
+			merged.add( new FinalInterval(Arrays.copyOfRange(box,0,D), Arrays.copyOfRange(box,D,2*D)) );
+		}
+		return merged;
+	}
+
+	///returns true if both images are of the same size and from the same image factory
+	private
+	boolean isOfSameGeometry(final Img<UnsignedShortType> imgA, final Img<UnsignedShortType> imgB)
+	{
+		if (imgA.numDimensions() != imgB.numDimensions()) return false;
+		for (int d = 0; d < imgA.numDimensions(); ++d)
+			if (imgA.min(d) != imgB.min(d) || imgA.dimension(d) != imgB.dimension(d)) return false;
+		return imgA.factory().getClass() == imgB.factory().getClass();
+	}
+
+
+	/**
+	 * Creates a disk-cached cell image of the same size as the \e template,
+	 * with the same cells layout if the \e template is a cell image too.
+	 */
+	private
+	Img<UnsignedShortType> createDiskCachedImg(final Img<UnsignedShortType> template)
+	{
+		final int[] cellDims = new int[template.numDimensions()];
+		if (template instanceof AbstractCellImg)
+			((AbstractCellImg<?,?,?,?>)template).getCellGrid().cellDimensions(cellDims);
+		else
+			for (int d = 0; d < cellDims.length; ++d)
+				cellDims[d] = (int)Math.min(template.dimension(d), 64);
+
+		final DiskCachedCellImgOptions options = DiskCachedCellImgOptions.options().cellDimensions(cellDims);
+		return new DiskCachedCellImgFactory<>(new UnsignedShortType(), options).create(template);
+	}
+
+
+	///result of the voting for one marker, see computeMarkerVotes()
+	private class MarkerVotes
+	{
+		MarkerVotes(final int _marker, final int D)
+		{
+			marker = _marker;
+			minBound = new long[D];
+			maxBound = new long[D];
+		}
+
+		///the marker for which the votes are
+		final int marker;
+
+		///the number of input images that had a label matching the marker
+		int noOfMatchingImages = 0;
+
+		///the box in which the votes are stored
+		final long[] minBound, maxBound;
+
+		///voxels of the box (in its flat iteration order) that passed the threshold
+		BitSet mask = null;
+	}
+
+	///working data for computeMarkerVotes(), see obtainVotingContext()
+	private class VotingContext
+	{
+		///binds this context to the given input images
+		void bindTo(final Vector<RandomAccessibleInterval<T>> inImgs)
+		{
+			inRAs.clear();
+			for (int i = 0; i < inImgs.size(); ++i)
+				inRAs.add( inImgs.get(i).randomAccess() );
+
+			final int D = inImgs.get(0).numDimensions();
+			if (runPos.length != D)
+			{
+				runPos  = new long[D];
+				strides = new long[D];
+			}
+			if (matchingLabels.length < inImgs.size())
+				matchingLabels = new float[inImgs.size()];
+		}
+
+		///random accesses to the input images, to visit the markers' voxels
+		final Vector<RandomAccess<T>> inRAs = new Vector<>();
+
+		///aux arrays for positions and for the layout of the votes
+		long[] runPos = new long[0], strides = new long[0];
+
+		///the matching labels per input image
+		float[] matchingLabels = new float[0];
+
+		///the votes (in the flat iteration order of the voting box), re-used between markers
+		float[] votes = new float[0];
+
+		///the counted votes (unsigned, in the same layout as the votes), used instead of
+		///the votes if all weights are the same, re-used between markers
+		byte[] voteCounts = new byte[0];
+	}
+
+	///voting contexts not used at the moment, they are kept across calls of compute()
+	private final ConcurrentLinkedQueue<VotingContext> freeVotingContexts = new ConcurrentLinkedQueue<>();
+
+	///returns a (possibly recycled) voting context bound to the \e inImgs
+	private
+	VotingContext obtainVotingContext(final Vector<RandomAccessibleInterval<T>> inImgs)
+	{
+		VotingContext ctx = freeVotingContexts.poll();
+		if (ctx == null) ctx = new VotingContext();
+		ctx.bindTo(inImgs);
+		return ctx;
+	}
+
+	///returns the context for the reuse, it does not keep the input images after this call
 	private
-	long findAABB(final Cursor<UnsignedShortType> mCursor,
-	              final long[] minBound, final long[] maxBound)
+	void releaseVotingContext(final VotingContext ctx)
 	{
-		//time-saver: the marker we search for, and the current position array
-		final int marker = mCursor.get().getInteger();
-		final long[] pos = new long[minBound.length];
-
-		//init the output variables
-		long size = 0; //nothing seen yet since we reset() below
-		mCursor.localize(minBound); //BB spans this one pixel yet
-		mCursor.localize(maxBound);
-
-		//working copy of the input cursor
-		final Cursor<UnsignedShortType> cursor = mCursor.copyCursor();
-		cursor.reset();
-		//NB: for some reason we cannot continue from the mCursor's place, in which case
-		//the cursor does not see the original image content (until we cursor.reset() it)
-
-		//scan the rest of the image
-		while (cursor.hasNext())
-		{
-			//the same marker?
-			if (cursor.next().getInteger() == marker)
+		ctx.inRAs.clear();
+		freeVotingContexts.add(ctx);
+	}
+
+	/**
+	 * Determines if all input weights are the same and positive, and if so, returns
+	 * the minimal number of votes (input images with the matching label) that a voxel
+	 * must obtain to pass the \e THRESHOLD. The number is found by adding up the
+	 * weight in the same (float) way as computeMarkerVotes() does it, so counting the
+	 * votes gives exactly the same result as summing the weights.
+	 * The function returns -1 if the weights differ (or if there are more than 255 of
+	 * them), the weights must be summed in that case.
+	 */
+	private
+	int getVotesToPass(final float THRESHOLD)
+	{
+		final int noOfVotes = inWeights.size();
+		if (noOfVotes == 0 || noOfVotes > 255) return -1;
+
+		final float weight = inWeights.get(0);
+		if (!(weight > 0)) return -1;
+		for (int i = 1; i < noOfVotes; ++i)
+			if (inWeights.get(i) != weight) return -1;
+
+		float sum = 0.f;
+		for (int votes = 0; votes <= noOfVotes; ++votes)
+		{
+			if (sum >= THRESHOLD) return votes;
+			sum += weight;
+		}
+
+		//not even all votes together pass the threshold
+		return noOfVotes+1;
+	}
+
+	/**
+	 * Finds the matching labels of the marker \e curMarker in all input images,
+	 * sums up (votes) their weights in the box in which they all are (the whole
+	 * image if \e inIndices is null), and thresholds the votes. If \e votesToPass
+	 * is not negative, the votes are only counted, see getVotesToPass(). The function reads
+	 * only the input images and the indices, and changes only the given \e ctx, so
+	 * it can be called from more threads for different markers simultaneously.
+	 */
+	private
+	MarkerVotes computeMarkerVotes(final int curMarker,
+	                               final Vector<RandomAccessibleInterval<T>> inImgs,
+	                               final LabelIndex mIndex,
+	                               final Vector<LabelIndex> inIndices,
+	                               final Interval wholeImg,
+	                               final float THRESHOLD,
+	                               final int votesToPass,
+	                               final VotingContext ctx)
+	{
+		final int D = wholeImg.numDimensions();
+		final boolean boxLocal = inIndices != null;
+		final MarkerVotes votes = new MarkerVotes(curMarker, D);
+		final float[] matchingLabels = ctx.matchingLabels;
+
+		//sweep over all input images
+		for (int i = 0; i < inImgs.size(); ++i)
+		{
+			//find the corresponding label in the input image
+			final float matchingLabel = findMatchingLabel(ctx.inRAs.get(i),
+				mIndex, curMarker, ctx.runPos);
+			matchingLabels[i] = matchingLabel;
+
+			//System.out.println(i+". image: found label "+matchingLabel);
+
+			if (matchingLabel > 0)
 			{
-				//yes, update the box corners
-				cursor.localize(pos);
-				for (int d = 0; d < minBound.length; ++d)
+				//extend the box in which the voting will happen
+				if (boxLocal)
+					extendAABB(inIndices.get(i), (int)matchingLabel, votes.minBound,votes.maxBound,
+					           votes.noOfMatchingImages == 0);
+
+				//increase the counter...
+				++votes.noOfMatchingImages;
+			}
+		}
+		if (votes.noOfMatchingImages == 0) return votes;
+
+		//in the original mode, the voting happens over the whole image
+		if (!boxLocal)
+		{
+			wholeImg.min(votes.minBound);
+			wholeImg.max(votes.maxBound);
+		}
+
+		//layout of the votes: the flat iteration order of the voting box
+		final long[] strides = ctx.strides;
+		long boxSize = 1;
+		for (int d = 0; d < D; ++d)
+		{
+			strides[d] = boxSize;
+			boxSize *= votes.maxBound[d] - votes.minBound[d] +1;
+		}
+		if (boxSize > Integer.MAX_VALUE)
+			throw new RuntimeException("Marker "+curMarker+" spans too large region for voting.");
+		final int size = (int)boxSize;
+
+		//init the votes (only where we gonna use them)
+		final boolean doCounting = votesToPass >= 0;
+		float[] voxelVotes = null;
+		byte[] voxelCounts = null;
+		if (doCounting)
+		{
+			if (ctx.voteCounts.length < size) ctx.voteCounts = new byte[size];
+			voxelCounts = ctx.voteCounts;
+			Arrays.fill(voxelCounts, 0,size, (byte)0);
+		}
+		else
+		{
+			if (ctx.votes.length < size) ctx.votes = new float[size];
+			voxelVotes = ctx.votes;
+			Arrays.fill(voxelVotes, 0,size, 0.f);
+		}
+
+		//extract the matching labels into the votes
+		//(from which we will threshold it and insert into the output image)
+		for (int i = 0; i < inImgs.size(); ++i)
+		{
+			if (matchingLabels[i] <= 0) continue;
+			final float matchingLabel = matchingLabels[i];
+
+			//the "adding constant" is the weight of this image
+			final float weight = inWeights.get(i);
+
+			//sweep only the box of this label (or the _entire_ input image in the
+			//original mode) and "copy" the matchingLabel into the votes
+			final Interval labelBox = boxLocal
+				? inIndices.get(i).getAABBInterval((int)matchingLabel)
+				: wholeImg;
+			final Cursor<T> inCursor = Views.flatIterable( Views.interval(inImgs.get(i), labelBox) ).localizingCursor();
+			while (inCursor.hasNext())
+			{
+				if (inCursor.next().getRealFloat() == matchingLabel)
 				{
-					if (pos[d] < minBound[d]) minBound[d] = pos[d];
-					if (pos[d] > maxBound[d]) maxBound[d] = pos[d];
+					//found the label, "copy" it
+					long idx = 0;
+					for (int d = 0; d < D; ++d)
+						idx += (inCursor.getLongPosition(d) - votes.minBound[d]) * strides[d];
+					if (doCounting) ++voxelCounts[(int)idx];
+					else voxelVotes[(int)idx] += weight;
 				}
-				++size;
 			}
 		}
-		
-		return size;
+
+		//threshold the votes
+		votes.mask = new BitSet(size);
+		if (doCounting)
+		{
+			for (int k = 0; k < size; ++k)
+				if ((voxelCounts[k] & 0xFF) >= votesToPass) votes.mask.set(k);
+		}
+		else
+		{
+			for (int k = 0; k < size; ++k)
+				if (voxelVotes[k] >= THRESHOLD) votes.mask.set(k);
+		}
+
+		return votes;
 	}
 
 
 	/**
-	 * Sweeps over \e inMarker labelled voxels inside the bounding box
-	 * (represented with \e mSubCursor) of the marker image, checks labels
-	 * found in the corresponding voxels in the input image (accessible via
-	 * \e inCursor), and returns the most frequently occuring such label
-	 * (provided also it occurs more than half of the marker size \e inMarkerSize).
+	 * Extends the box given with the \e minBound and \e maxBound corners to
+	 * include also the AABB of the \e label from the \e index. If \e init
+	 * is true, the corners are set to this AABB instead.
+	 */
+	private
+	void extendAABB(final LabelIndex index, final int label,
+	                final long[] minBound, final long[] maxBound,
+	                final boolean init)
+	{
+		final long[] boxMin = new long[minBound.length];
+		final long[] boxMax = new long[maxBound.length];
+		index.getAABB(label, boxMin,boxMax);
+		for (int d = 0; d < minBound.length; ++d)
+		{
+			if (init || boxMin[d] < minBound[d]) minBound[d] = boxMin[d];
+			if (init || boxMax[d] > maxBound[d]) maxBound[d] = boxMax[d];
+		}
+	}
+
+
+	/**
+	 * Visits all voxels of the \e inMarker (via its runs stored in the \e mIndex),
+	 * checks labels found in the corresponding voxels in the input image (accessible
+	 * via \e inRA), and returns the most frequently occuring such label (provided
+	 * also it occurs more than half of the marker size).
 	 * The functions returns -1 if no such label is found.
 	 *
-	 * @param inCursor		Sweeper of the input image (whose label is to be returned)
-	 * @param mSubCursor	Sweeper of the input marker image
-	 * @param inMarker		Marker (from the input marker image) in question...
-	 * @param inMarkerSize	...and number of voxels it spans over
+	 * @param inRA		Accessor of the input image (whose label is to be returned)
+	 * @param mIndex	Index (with runs) of the input marker image
+	 * @param inMarker	Marker (from the input marker image) in question
+	 * @param runPos	Aux array for positions (must be preallocated)
 	 */
 	private
-	float findMatchingLabel(final Cursor<T> inCursor,
-	                        final Cursor<UnsignedShortType> mSubCursor,
+	float findMatchingLabel(final RandomAccess<T> inRA,
+	                        final LabelIndex mIndex,
 	                        final int inMarker,
-	                        final long inMarkerSize)
+	                        final long[] runPos)
 	{
 		//keep frequencies of labels discovered across the marker volume
 		HashMap<Float,Integer> labelCounter = new HashMap<>();
 		Integer count = null;
 
 		//find relevant label(s), if any
-		while (mSubCursor.hasNext())
+		final int noOfRuns = mIndex.getNoOfRuns(inMarker);
+		for (int r = 0; r < noOfRuns; ++r)
 		{
-			//advance both cursors in synchrony
-			inCursor.next();
-			if (mSubCursor.next().getInteger() == inMarker)
+			//we are over the original marker in the marker image,
+			//check what values are in the input image
+			mIndex.getRunPosition(inMarker, r, runPos);
+			inRA.setPosition(runPos);
+			for (long l = mIndex.getRunLength(inMarker, r); l > 0; --l)
 			{
-				//we are over the original marker in the marker image,
-				//check what value is in the input image
-				final float inVal = inCursor.get().getRealFloat();
+				final float inVal = inRA.get().getRealFloat();
 
 				//and update the counter of found values
 				count = labelCounter.get(inVal);
 				labelCounter.put(inVal, count == null ? 1 : count+1);
+
+				inRA.fwd(0);
 			}
 		}
 
@@ -666,9 +1158,9 @@ public class DefaultCombineGTsViaMarkers<T extends RealType<T>>
 
 		//check if the most frequent one also spans at least half
 		//of the input marker volume
-		return ( (2*count > inMarkerSize)? bestLabel : -1 );
+		return ( (2*count > mIndex.getVoxelCount(inMarker))? bestLabel : -1 );
 	}
-	
+
 	//temporary buffer for position handling, shared between functions overhere
 	//(in a believe that we avoid many allocs)
 	private int pos[];
@@ -719,7 +1211,7 @@ public class DefaultCombineGTsViaMarkers<T extends RealType<T>>
 			}
 		}
 		//uiService.show("Result", outputImg);
-		System.out.println("Components removed in " + num_removed_img + "/" + noComponents + " regions. Max removed in a particular region is " + max_removed + ". In total, " + total_removed + " components removed.");
+		report("Components removed in " + num_removed_img + "/" + noComponents + " regions. Max removed in a particular region is " + max_removed + ". In total, " + total_removed + " components removed.");
 
 		//now, rewrite the original input with its cleaned (no isolated islands) version, that is, with the outputImg
 		LoopBuilder.setImages(inImg, outputImg).forEachPixel( (i, o) -> i.setInteger(o.getInteger()) );
@@ -19,8 +19,18 @@ import net.imglib2.type.numeric.RealType;
 import net.imglib2.type.numeric.integer.UnsignedShortType;
 
 import sc.fiji.simplifiedio.SimplifiedIO;
+import io.scif.config.SCIFIOConfig;
+import io.scif.img.ImgOpener;
 
+import java.util.List;
 import java.util.Vector;
+import java.util.function.BooleanSupplier;
+import java.util.function.IntConsumer;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ExecutionException;
 
 public class machineGTViaMarkers_Worker
 {
@@ -30,6 +40,9 @@ public class machineGTViaMarkers_Worker
 	///shortcut to future mainstream imagej-ops function
 	final DefaultCombineGTsViaMarkers<?> myOps;
 
+	///the OpService, its context is needed to open the images as cell images
+	final OpService ops;
+
 	///a convenience constructor requiring connection to some Fiji services
 	@SuppressWarnings("rawtypes")
 	public machineGTViaMarkers_Worker(final OpService _ops, final LogService _log)
@@ -38,17 +51,222 @@ public class machineGTViaMarkers_Worker
 			throw new RuntimeException("Please, give me existing OpService and LogService.");
 
 		log = _log;
+		ops = _ops;
 		myOps = new DefaultCombineGTsViaMarkers(_ops);
+		myOps.setLogService(_log);
+	}
+
+	/**
+	 * Flag if the input images shall be opened as cell images, whose cells are
+	 * read from the files only when accessed (and can be released afterwards),
+	 * and if the output image shall be a disk-cached cell image. This lowers the
+	 * memory held by the full-size images, but the merging itself is not
+	 * block-wise: per-label data (the runs and the voting buffers, which can be
+	 * image-sized) are still held in the memory, and so the images must still
+	 * fit into it, see DefaultCombineGTsViaMarkers.setOutputOnDisk().
+	 */
+	private boolean doCellImgMode = false;
+
+	///enables or disables the cell images mode, see this.doCellImgMode
+	public void setCellImgMode(final boolean _doCellImgMode)
+	{
+		doCellImgMode = _doCellImgMode;
+		myOps.setOutputOnDisk(_doCellImgMode);
+	}
+
+	///sets the number of threads used to merge one image, see DefaultCombineGTsViaMarkers.setNoOfThreads()
+	public void setNoOfThreads(final int noOfThreads)
+	{
+		myOps.setNoOfThreads(noOfThreads);
+	}
+
+	///stops the threads used to merge one image, call it after the last work(String...),
+	///the work(List,...) does it itself, see DefaultCombineGTsViaMarkers.shutdown()
+	public void shutdown()
+	{
+		myOps.shutdown();
+	}
+
+	///statistics of the most recently finished (merged and saved) time point
+	private DefaultCombineGTsViaMarkers.MergingStats lastStats = null;
+
+	///how long the most recently finished time point took, from the start of its reading till its result was saved
+	private double lastSeconds = 0;
+
+	/**
+	 * Returns the statistics of the most recently finished (merged and saved) time
+	 * point (or null). When used with work(List,...), call it from the \e frameDone
+	 * callback to obtain the statistics of the reported time point.
+	 */
+	public DefaultCombineGTsViaMarkers.MergingStats getLastStats()
+	{
+		return lastStats;
+	}
+
+	/**
+	 * Returns how many seconds the most recently finished (merged and saved) time
+	 * point took, from the start of its reading till its result was saved. With the
+	 * work(List,...), this includes the waiting in the pipeline for the previous time
+	 * point, and the time points overlap, so the sum is more than the elapsed time.
+	 */
+	public double getLastSeconds()
+	{
+		return lastSeconds;
 	}
 
 	///prevent from creating the class without any connection
 	@SuppressWarnings("unused")
 	private machineGTViaMarkers_Worker()
-	{ log = null; myOps = null; } //this is to get rid of some warnings
+	{ log = null; ops = null; myOps = null; } //this is to get rid of some warnings
 
-	@SuppressWarnings({ "rawtypes", "unchecked" })
+	///merges one time point: reads the inputs, merges them and saves the result
 	public void work(final String... args)
 	{
+		final LoadedFrame frame = load(args);
+		final Img<UnsignedShortType> outImg = merge(frame);
+		final DefaultCombineGTsViaMarkers.MergingStats stats = myOps.getLastStats();
+		saveAndRecycle(outImg, frame.outputPath);
+		lastStats = stats;
+		lastSeconds = (System.currentTimeMillis() - frame.loadStartTime) / 1000.0;
+	}
+
+	/**
+	 * Merges a sequence of time points, each given with its own \e args (see work(String...)),
+	 * in a three-stage pipeline: while the time point \e j is merged (in the calling thread),
+	 * the inputs of the time point \e j+1 are read and decoded in a reading thread and the
+	 * result of the time point \e j-1 is encoded and written in a writing thread. At most three
+	 * time points are held in memory at any moment.
+	 *
+	 * The \e stopRequested is consulted before reading of every next time point is started.
+	 * The \e frameDone is called with the index (into the \e jobs) of every time point whose
+	 * result has been saved successfully, the \e frameFailed is called with the index of every
+	 * time point that failed to be read, merged or saved (and the next time points continue).
+	 * Both are called from the calling thread, and not necessarily in the order of the indices.
+	 * A time point that was not started (because of \e stopRequested or an interruption) is
+	 * reported with neither of them.
+	 */
+	public void work(final List<String[]> jobs, final BooleanSupplier stopRequested,
+	                 final IntConsumer frameDone, final IntConsumer frameFailed)
+	{
+		if (jobs.size() == 0) return;
+
+		final ExecutorService reader = Executors.newSingleThreadExecutor();
+		final ExecutorService writer = Executors.newSingleThreadExecutor();
+		try {
+			Future<LoadedFrame> nextFrame = reader.submit( () -> load(jobs.get(0)) );
+			Future<?> lastSave = null;
+			String lastSavePath = null;
+			int lastSaveIdx = -1;
+			DefaultCombineGTsViaMarkers.MergingStats lastSaveStats = null;
+			long lastSaveLoadStart = 0;
+
+			for (int j=0; nextFrame != null; ++j)
+			{
+				final Future<LoadedFrame> currFrame = nextFrame;
+				final String[] args = jobs.get(j);
+
+				//start reading the next time point while this one is merged
+				nextFrame = null;
+				if (j+1 < jobs.size() && !stopRequested.getAsBoolean())
+				{
+					final String[] nextArgs = jobs.get(j+1);
+					nextFrame = reader.submit( () -> load(nextArgs) );
+				}
+
+				try {
+					final LoadedFrame frame = currFrame.get();
+					final Img<UnsignedShortType> outImg = merge(frame);
+					final DefaultCombineGTsViaMarkers.MergingStats stats = myOps.getLastStats();
+
+					//let only one result wait for the writer
+					finishSaving(lastSave,lastSavePath,lastSaveIdx,lastSaveStats,lastSaveLoadStart, frameDone,frameFailed);
+					lastSave = writer.submit( () -> saveAndRecycle(outImg, frame.outputPath) );
+					lastSavePath = frame.outputPath;
+					lastSaveIdx = j;
+					lastSaveStats = stats;
+					lastSaveLoadStart = frame.loadStartTime;
+				}
+				catch (ExecutionException e) {
+					log.error("machineGTViaMarkers_Worker: failed reading "+args[args.length-3]+": "+e.getCause());
+					frameFailed.accept(j);
+				}
+				catch (RuntimeException e) {
+					log.error("machineGTViaMarkers_Worker: failed merging for "+args[args.length-1]+": "+e);
+					frameFailed.accept(j);
+				}
+			}
+
+			finishSaving(lastSave,lastSavePath,lastSaveIdx,lastSaveStats,lastSaveLoadStart, frameDone,frameFailed);
+		}
+		catch (InterruptedException e) {
+			log.error("machineGTViaMarkers_Worker: interrupted while merging: "+e);
+		}
+		finally {
+			reader.shutdownNow();
+			writer.shutdownNow();
+			myOps.shutdown();
+		}
+	}
+
+	/**
+	 * Waits for the \e saving of the time point \e idx (if any), and reports it
+	 * either with the \e frameDone (and makes its \e stats, and the time since its
+	 * \e loadStartTime, available via getLastStats() and getLastSeconds()), or with
+	 * the \e frameFailed if the saving has failed.
+	 */
+	private
+	void finishSaving(final Future<?> saving, final String path,
+	                  final int idx, final DefaultCombineGTsViaMarkers.MergingStats stats,
+	                  final long loadStartTime,
+	                  final IntConsumer frameDone, final IntConsumer frameFailed)
+	throws InterruptedException
+	{
+		if (saving == null) return;
+		try {
+			saving.get();
+		}
+		catch (ExecutionException e) {
+			log.error("machineGTViaMarkers_Worker: failed saving "+path+": "+e.getCause());
+			frameFailed.accept(idx);
+			return;
+		}
+
+		lastStats = stats;
+		lastSeconds = (System.currentTimeMillis() - loadStartTime) / 1000.0;
+		frameDone.accept(idx);
+	}
+
+
+	///input images of one time point, as prepared by load()
+	private static class LoadedFrame
+	{
+		final Vector<RandomAccessibleInterval<?>> inImgs;
+		final Vector<Float> inWeights;
+		final Img<UnsignedShortType> markerImg;
+		final float threshold;
+		final String outputPath;
+		///when the reading of this time point has started, in milliseconds
+		final long loadStartTime;
+
+		LoadedFrame(final Vector<RandomAccessibleInterval<?>> _inImgs, final Vector<Float> _inWeights,
+		            final Img<UnsignedShortType> _markerImg, final float _threshold, final String _outputPath,
+		            final long _loadStartTime)
+		{
+			inImgs = _inImgs;
+			inWeights = _inWeights;
+			markerImg = _markerImg;
+			threshold = _threshold;
+			outputPath = _outputPath;
+			loadStartTime = _loadStartTime;
+		}
+	}
+
+	///reads and checks the input images of one time point, does not touch this.myOps
+	@SuppressWarnings("unchecked")
+	private LoadedFrame load(final String... args)
+	{
+		final long loadStartTime = System.currentTimeMillis();
+
 		//check the minimum number of input parameters, should be odd number
 		if (args.length < 5 || (args.length&1)==0)
 		{
@@ -80,7 +298,7 @@ public class machineGTViaMarkers_Worker
 		{
 			//load the image
 			log.info("Reading pair: "+args[2*i]+" "+args[2*i +1]);
-			img = SimplifiedIO.openImage(args[2*i]);
+			img = doCellImgMode ? openCellImage(args[2*i]) : SimplifiedIO.openImage(args[2*i]);
 
 			//check the type of the image (the combineGTs plug-in requires RealType<>)
 			if (!(img.firstElement() instanceof RealType<?>))
@@ -130,6 +348,20 @@ public class machineGTViaMarkers_Worker
 		if (markerImg instanceof ImgPlus)
 			markerImg = ((ImgPlus<UnsignedShortType>) markerImg).getImg();
 
+		return new LoadedFrame(inImgs, inWeights, markerImg, threshold, args[args.length-1], loadStartTime);
+	}
+
+	///opens the image as a cell image, whose cells are read only when accessed
+	private Img<?> openCellImage(final String path)
+	{
+		final SCIFIOConfig config = new SCIFIOConfig().imgOpenerSetImgModes(SCIFIOConfig.ImgMode.CELL);
+		return new ImgOpener(ops.getContext()).openImgs(path, config).get(0);
+	}
+
+	///merges the loaded images of one time point
+	@SuppressWarnings({ "rawtypes", "unchecked" })
+	private Img<UnsignedShortType> merge(final LoadedFrame frame)
+	{
 		//setup the debug image filename
 		/*
 		String newName = args[args.length-1];
@@ -140,15 +372,25 @@ public class machineGTViaMarkers_Worker
 
 		//NB: we have checked that images are of RealType<?> in the loading loop,
 		//    so we know we can cast to raw type to be able to call the combineGTs()
-		System.out.println("calling CombineGTsViaMarkers with threshold="+threshold);
+		log.info("calling CombineGTsViaMarkers with threshold="+frame.threshold);
 		//ops.images().combineGTsViaMarkers((Vector)inImgs, markerImg, threshold, outImg);
 		//ops.images().combineGTsViaMarkers((Vector)inImgs, markerImg, threshold, outImg, newName);
-		myOps.setParams(inWeights, threshold, newName);
+		myOps.setParams(frame.inWeights, frame.threshold, newName);
 
 		//obtain an output image (that happens to be of the same size and type as the markerImg)
-		Img<UnsignedShortType> outImg = myOps.compute((Vector)inImgs, markerImg);
+		return myOps.compute((Vector)frame.inImgs, frame.markerImg);
+	}
 
-		log.info("Saving file: "+args[args.length-1]);
-		SimplifiedIO.saveImage(outImg, args[args.length-1]);
+	///saves the merged image of one time point, and returns the image for the reuse
+	///by next merging (see DefaultCombineGTsViaMarkers.recycleOutImg(), which is thread-safe)
+	private void saveAndRecycle(final Img<UnsignedShortType> outImg, final String outputPath)
+	{
+		try {
+			log.info("Saving file: "+outputPath);
+			SimplifiedIO.saveImage(outImg, outputPath);
+		}
+		finally {
+			myOps.recycleOutImg(outImg);
+		}
 	}
 }
@@ -0,0 +1,155 @@
+/*
+ * CC BY-SA 4.0
+ *
+ * The code is licensed with "Attribution-ShareAlike 4.0 International license".
+ * See the license details:
+ *     https://creativecommons.org/licenses/by-sa/4.0/
+ */
+package de.mpicbg.ulman.ctc;
+
+import de.mpicbg.ulman.ctc.Mastodon.util.DirectTiffWriter;
+import de.mpicbg.ulman.ctc.Mastodon.util.SparseLabelImg;
+
+import ij.IJ;
+import ij.ImagePlus;
+import ij.process.ImageProcessor;
+import net.imglib2.Cursor;
+import net.imglib2.img.Img;
+import net.imglib2.img.array.ArrayImgs;
+import net.imglib2.img.planar.PlanarImgs;
+import net.imglib2.type.numeric.RealType;
+import net.imglib2.type.numeric.integer.UnsignedIntType;
+import net.imglib2.type.numeric.integer.UnsignedShortType;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Random;
+
+/**
+ * Round-trip check of the DirectTiffWriter and the SparseLabelImg: images are
+ * written with them, read back (the TIFFs with ImageJ1's own decoder) and
+ * compared voxel by voxel with the originals.
+ */
+public class testDirectTiffWriter
+{
+	public static void main(final String... args) throws IOException
+	{
+		final File dir = Files.createTempDirectory("testDirectTiffWriter").toFile();
+		System.out.println("Writing into: "+dir.getAbsolutePath());
+		int failures = 0;
+
+		//uncompressed and LZW-compressed, planar and other images, 2D and 3D;
+		//the noise makes the LZW table full (and thus reset) several times per plane
+		for (boolean doLZW : new boolean[] { false, true })
+		{
+			final DirectTiffWriter writer = new DirectTiffWriter(doLZW, doLZW ? 3 : 1);
+			final String suffix = doLZW ? "_lzw.tif" : ".tif";
+			failures += checkTiff(writer, fill(PlanarImgs.unsignedBytes(301,203,5), 256),  new File(dir,"u8planar"+suffix));
+			failures += checkTiff(writer, fill(ArrayImgs.unsignedShorts(301,203,3), 4000), new File(dir,"u16array"+suffix));
+			failures += checkTiff(writer, fill(PlanarImgs.floats(301,203), 1000),          new File(dir,"f32planar2D"+suffix));
+			failures += checkTiff(writer, PlanarImgs.unsignedShorts(64,64,2),              new File(dir,"u16zeros"+suffix));
+		}
+
+		//sparse blocks with labels that fit and that do not fit into 16 bits
+		failures += checkSparse(1000,  new UnsignedShortType(), new File(dir,"blocks16"));
+		failures += checkSparse(70000, new UnsignedIntType(),   new File(dir,"blocks32"));
+
+		System.out.println(failures == 0 ? "All round-trips OK." : failures+" round-trip(s) FAILED.");
+	}
+
+
+	///fills the image with (reproducible) noise of values from 0 to maxValue-1, returns the image
+	static <T extends RealType<T>>
+	Img<T> fill(final Img<T> img, final int maxValue)
+	{
+		final Random rnd = new Random(42);
+		final Cursor<T> c = img.cursor();
+		while (c.hasNext())
+		{
+			//runs of the same value are interleaved with pure noise
+			final int v = rnd.nextInt(maxValue);
+			for (int r = rnd.nextInt(4); r >= 0 && c.hasNext(); --r) c.next().setReal(v);
+		}
+		return img;
+	}
+
+	///writes the image, reads it back with ImageJ and compares, returns 1 if they differ
+	static <T extends RealType<T>>
+	int checkTiff(final DirectTiffWriter writer, final Img<T> img, final File file)
+	throws IOException
+	{
+		writer.write(img, file.getAbsolutePath());
+		final ImagePlus imp = IJ.openImage(file.getAbsolutePath());
+		if (imp == null) return report(file, "ImageJ could not open it");
+
+		final int noOfPlanes = img.numDimensions() > 2 ? (int)img.dimension(2) : 1;
+		if (imp.getWidth() != img.dimension(0) || imp.getHeight() != img.dimension(1)
+		    || imp.getStackSize() != noOfPlanes)
+			return report(file, "of wrong size "+imp.getWidth()+"x"+imp.getHeight()+"x"+imp.getStackSize());
+
+		final Cursor<T> c = img.localizingCursor();
+		while (c.hasNext())
+		{
+			final float expected = c.next().getRealFloat();
+			final int z = img.numDimensions() > 2 ? c.getIntPosition(2) : 0;
+			final ImageProcessor ip = imp.getStack().getProcessor(z+1);
+			final float found = ip.getf(c.getIntPosition(0), c.getIntPosition(1));
+			if (found != expected)
+				return report(file, "differs at ["+c.getIntPosition(0)+","+c.getIntPosition(1)+","+z
+				                    +"]: "+found+" instead of "+expected);
+		}
+		return report(file, null);
+	}
+
+	///writes a sparse image with labels up to maxLabel, reads it back
+	///(also via its TIFF export) and compares, returns 1 if they differ
+	static <T extends RealType<T>>
+	int checkSparse(final int maxLabel, final T type, final File blocksDir)
+	throws IOException
+	{
+		final long[] dims = { 100, 80, 7 };
+		final SparseLabelImg img = new SparseLabelImg(dims, new int[] { 32, 32, 4 });
+
+		//runs crossing the block boundaries, some blocks stay empty
+		final Random rnd = new Random(42);
+		final long[] pos = new long[3];
+		for (int i = 0; i < 200; ++i)
+		{
+			pos[0] = rnd.nextInt(60);
+			pos[1] = rnd.nextInt(40);
+			pos[2] = rnd.nextInt(7);
+			img.setLabelRun(pos, pos[0]+rnd.nextInt(40), 1+rnd.nextInt(maxLabel));
+		}
+
+		img.write(blocksDir.getAbsolutePath(), SparseLabelImg.getDataType(type));
+		final SparseLabelImg readImg = SparseLabelImg.read(blocksDir.getAbsolutePath());
+		if (readImg.getNoOfBlocks() != img.getNoOfBlocks())
+			return report(blocksDir, "has "+readImg.getNoOfBlocks()+" instead of "+img.getNoOfBlocks()+" blocks");
+
+		for (pos[2] = 0; pos[2] < dims[2]; ++pos[2])
+		for (pos[1] = 0; pos[1] < dims[1]; ++pos[1])
+		for (pos[0] = 0; pos[0] < dims[0]; ++pos[0])
+			if (readImg.getLabel(pos) != img.getLabel(pos))
+				return report(blocksDir, "differs at ["+pos[0]+","+pos[1]+","+pos[2]
+				                         +"]: "+readImg.getLabel(pos)+" instead of "+img.getLabel(pos));
+
+		//the TIFF export of labels that fit into 16 bits can be checked with ImageJ
+		if (maxLabel < 65536)
+			return checkTiff(new DirectTiffWriter(true,1), readImg.toImg(new UnsignedShortType()),
+			                 new File(blocksDir.getAbsolutePath()+".tif"));
+		return report(blocksDir, null);
+	}
+
+	static
+	int report(final File file, final String problem)
+	{
+		if (problem == null)
+		{
+			System.out.println("OK     : "+file.getName());
+			return 0;
+		}
+		System.out.println("FAILED : "+file.getName()+" "+problem);
+		return 1;
+	}
+}